@@ -0,0 +1,71 @@
+#!/usr/bin/env bash
+# Runs the JMH benchmarks in bench/, with the GC and megapixels-per-second profilers,
+# and saves the results to bench/results/latest.csv.
+#
+#   ./bench.sh [JMH options]       eg. ./bench.sh StageBenchmark -p megapixels=1 -p variant=cpu
+#   ./bench.sh --save-baseline     copies bench/results/latest.csv to bench/baseline.csv
+#   ./bench.sh --compare [percent] compares bench/results/latest.csv with bench/baseline.csv
+#
+# The baseline depends on the machine, so it is not kept in git.  If there is no
+# bench/baseline.csv yet, the first run saves its results as the baseline.
+#
+# The JMH jars are downloaded from Maven Central into $JMH_LIB the first time.
+# The benchmark JVMs get the options in $BENCH_JVM_ARGS (the 50 megapixel images need a big heap).
+set -e
+cd "$(dirname "$0")"
+
+JMH_VERSION=1.37
+JMH_LIB=${JMH_LIB:-$HOME/.cache/cartoonify-jmh}
+BENCH_JVM_ARGS=${BENCH_JVM_ARGS:-"-Xmx4g --add-modules=jdk.incubator.vector"}
+BUILD=bench/build
+CP="$BUILD:lib/*:$JMH_LIB/*"
+
+fetch(){
+    mkdir -p "$JMH_LIB"
+    if [ ! -f "$JMH_LIB/$(basename "$1")" ]
+    then
+        echo "Downloading $(basename "$1")"
+        curl -sSfL -o "$JMH_LIB/$(basename "$1")" "https://repo1.maven.org/maven2/$1"
+    fi
+}
+
+compile(){
+    fetch org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar
+    fetch org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar
+    fetch net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar
+    fetch org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar
+    rm -rf "$BUILD"
+    mkdir -p "$BUILD/META-INF"
+    cp -r src/META-INF/services "$BUILD/META-INF/"
+    javac -nowarn -cp "$CP" -d "$BUILD" $(find src bench -name '*.java')
+    # the SIMD stages are optional: without them the "simd" variant runs the scalar code.
+    javac -nowarn --add-modules jdk.incubator.vector -cp "$CP" -d "$BUILD" $(find src-vector -name '*.java') 2>/dev/null \
+        || echo "Warning: could not compile the SIMD stages in src-vector."
+}
+
+case "$1" in
+    --save-baseline)
+        cp bench/results/latest.csv bench/baseline.csv
+        echo "Saved bench/baseline.csv"
+        ;;
+    --compare)
+        if [ ! -f bench/baseline.csv ]
+        then
+            echo "There is no bench/baseline.csv to compare with: run the benchmarks once to create it."
+            exit 2
+        fi
+        compile
+        java -cp "$CP" com.celanim.cartoonify.BenchCompare bench/baseline.csv bench/results/latest.csv $2
+        ;;
+    *)
+        compile
+        mkdir -p bench/results
+        java -cp "$CP" org.openjdk.jmh.Main -prof gc -prof com.celanim.cartoonify.MegapixelsProfiler \
+            -jvmArgsAppend "$BENCH_JVM_ARGS" -rf csv -rff bench/results/latest.csv "$@"
+        if [ ! -f bench/baseline.csv ]
+        then
+            cp bench/results/latest.csv bench/baseline.csv
+            echo "Saved these results as the first bench/baseline.csv"
+        fi
+        ;;
+esac
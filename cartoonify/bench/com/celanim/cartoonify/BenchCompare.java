@@ -0,0 +1,101 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares two JMH result files (in CSV format) and reports the change in each score.
+ * <p>
+ * Scores measured per second (throughput, and megapixels per second in MP/s) are regressions
+ * when they go down; scores measured per operation (such as gc.alloc.rate.norm, in B/op)
+ * are regressions when they go up.  Usage:
+ * <pre>
+ *   java com.celanim.cartoonify.BenchCompare baseline.csv latest.csv [thresholdPercent]
+ * </pre>
+ * The exit status is 1 if any score regressed by more than the threshold (default 5%).
+ */
+public class BenchCompare {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Arguments: baseline.csv latest.csv [thresholdPercent]");
+            System.exit(2);
+        }
+        final double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 5.0;
+        final Map<String, String[]> baseline = read(args[0]);
+        final Map<String, String[]> latest = read(args[1]);
+        int regressions = 0;
+        System.out.format("%-90s %14s %14s %8s%n", "Benchmark", "Baseline", "Latest", "Change");
+        for (Map.Entry<String, String[]> entry : latest.entrySet()) {
+            final String[] before = baseline.get(entry.getKey());
+            final String[] after = entry.getValue();
+            if (before == null) {
+                System.out.format("%-90s %14s %14s %8s%n", entry.getKey(), "-", after[0] + " " + after[1], "new");
+                continue;
+            }
+            final double old = Double.parseDouble(before[0]);
+            final double now = Double.parseDouble(after[0]);
+            final double change = old == 0 ? 0 : (now - old) * 100 / old;
+            final boolean perSecond = after[1].endsWith("/s") || after[1].endsWith("/sec");
+            final boolean worse = perSecond ? change < -threshold : change > threshold;
+            if (worse) {
+                regressions++;
+            }
+            System.out.format("%-90s %14.3f %14.3f %+7.1f%% %s%n", entry.getKey(), old, now, change,
+                    worse ? "REGRESSION" : "");
+        }
+        System.out.println(regressions + " scores regressed by more than " + threshold + "%.");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Reads a JMH CSV result file.
+     *
+     * @return the benchmark name plus its parameters, mapped to its score and unit.
+     */
+    static Map<String, String[]> read(String fileName) throws IOException {
+        final List<String> lines = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+        final List<String> header = split(lines.get(0));
+        final int score = header.indexOf("Score");
+        final int unit = header.indexOf("Unit");
+        final Map<String, String[]> result = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            final List<String> fields = split(line);
+            final StringBuilder key = new StringBuilder(fields.get(0));
+            for (int i = unit + 1; i < fields.size(); i++) {
+                if (!fields.get(i).isEmpty()) {
+                    key.append(' ').append(header.get(i).replace("Param: ", "")).append('=').append(fields.get(i));
+                }
+            }
+            result.put(key.toString(), new String[] {fields.get(score), fields.get(unit)});
+        }
+        return result;
+    }
+
+    /**
+     * Splits one line of CSV into its fields, removing any quotes.
+     */
+    private static List<String> split(String line) {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (char ch : line.toCharArray()) {
+            if (ch == '"') {
+                quoted = !quoted;
+            } else if (ch == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(ch);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+}
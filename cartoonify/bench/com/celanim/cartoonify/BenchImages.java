@@ -0,0 +1,73 @@
+package com.celanim.cartoonify;
+
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic photos and a megapixel counter, shared by the benchmarks.
+ */
+public final class BenchImages {
+
+    private BenchImages() {
+    }
+
+    /**
+     * Counts how many megapixels each benchmark processes, so that <code>MegapixelsProfiler</code>
+     * can report megapixels per second as well as operations per second.
+     */
+    @State(Scope.Thread)
+    public static class Megapixels {
+        public double megapixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megapixels = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void publish() {
+            MegapixelsProfiler.add(megapixels);
+        }
+    }
+
+    /**
+     * @return the width of a 3:2 photo with the given number of megapixels.
+     */
+    public static int width(int megapixels) {
+        return (int) Math.round(Math.sqrt(megapixels * 1e6 * 1.5));
+    }
+
+    /**
+     * @return the height of a 3:2 photo with the given number of megapixels.
+     */
+    public static int height(int megapixels) {
+        return (int) Math.round(megapixels * 1e6 / width(megapixels));
+    }
+
+    /**
+     * Makes a photo-like image with smooth gradients, sharp-edged blocks and some noise,
+     * so that the edge detection and colour reduction have realistic work to do.
+     * The same size always gives the same pixels.
+     *
+     * @return RGB pixels, in row-major order.
+     */
+    public static int[] synthetic(int width, int height) {
+        final Random random = new Random(42);
+        final int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int block = ((x / 97) + (y / 61)) % 5 * 40;
+                final int red = Math.min(255, block + random.nextInt(16));
+                final int green = (x * 255 / Math.max(1, width - 1) + random.nextInt(8)) & 0xFF;
+                final int blue = (y * 255 / Math.max(1, height - 1)) & 0xFF;
+                pixels[y * width + x] = (red << 16) | (green << 8) | blue;
+            }
+        }
+        return pixels;
+    }
+}
@@ -0,0 +1,59 @@
+package com.celanim.cartoonify;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.DoubleAdder;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.infra.IterationParams;
+import org.openjdk.jmh.profile.InternalProfiler;
+import org.openjdk.jmh.results.AggregationPolicy;
+import org.openjdk.jmh.results.IterationResult;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.ScalarResult;
+
+/**
+ * Reports the number of megapixels processed per second by each benchmark, in MP/s,
+ * as the secondary result <code>megapixels.rate</code>.
+ * <p>
+ * The benchmarks count their megapixels in a <code>BenchImages.Megapixels</code> state,
+ * which adds its total here at the end of each iteration.  Run it with
+ * <code>-prof com.celanim.cartoonify.MegapixelsProfiler</code> (bench.sh always does).
+ */
+public class MegapixelsProfiler implements InternalProfiler {
+
+    private static final DoubleAdder MEGAPIXELS = new DoubleAdder();
+
+    private long start;
+
+    /**
+     * Adds the megapixels processed by one benchmark thread during the current iteration.
+     */
+    static void add(double megapixels) {
+        MEGAPIXELS.add(megapixels);
+    }
+
+    @Override
+    public String getDescription() {
+        return "Megapixels processed per second";
+    }
+
+    @Override
+    public void beforeIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams) {
+        MEGAPIXELS.reset();
+        start = System.nanoTime();
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes") // the JMH InternalProfiler interface declares a raw Result
+    public Collection<? extends Result> afterIteration(BenchmarkParams benchmarkParams, IterationParams iterationParams,
+                                                       IterationResult result) {
+        final double secs = (System.nanoTime() - start) / 1e9;
+        final double megapixels = MEGAPIXELS.sumThenReset();
+        if (megapixels == 0 || secs <= 0) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new ScalarResult("megapixels.rate", megapixels / secs, "MP/s",
+                AggregationPolicy.AVG));
+    }
+}
@@ -0,0 +1,117 @@
+package com.celanim.cartoonify;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks processing whole photos with each backend.
+ * <p>
+ * <code>process</code> measures just the processing, which is the part that
+ * <code>processPhoto</code> times.  <code>processPhoto</code> measures the whole thing,
+ * including decoding and encoding a PNG file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    @Param({"cpu", "parallel", "fused", "planar"})
+    public String backend;
+
+    private Cartoonify cart;
+
+    /**
+     * A separate processor for processPhoto, since that needs an empty stack of images.
+     */
+    private Cartoonify fileCart;
+
+    private CartoonBackend processor;
+
+    private double imageMegapixels;
+
+    private File dir;
+
+    private String photo;
+
+    private PrintStream stdout;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        final int width = BenchImages.width(megapixels);
+        final int height = BenchImages.height(megapixels);
+        imageMegapixels = width * (double) height / 1e6;
+        cart = new Cartoonify();
+        cart.setBackend(backend);
+        fileCart = new Cartoonify();
+        fileCart.setBackend(backend);
+        if ("parallel".equals(backend)) {
+            // as -b parallel does on the command line.
+            cart.setThreads(Runtime.getRuntime().availableProcessors());
+            fileCart.setThreads(cart.getThreads());
+        }
+        processor = CartoonBackends.find(backend);
+        final int[] pixels = BenchImages.synthetic(width, height);
+        dir = Files.createTempDirectory("cartoonify-bench").toFile();
+        photo = new File(dir, "photo.png").getPath();
+        Cartoonify.writeImage(pixels, width, height, photo);
+        cart.loadPixels(pixels, width, height);
+        // processPhoto prints a line for every photo, which would swamp the JMH output.
+        stdout = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(stdout);
+        cart.setThreads(1); // shuts down the thread pools
+        fileCart.setThreads(1);
+        cart.clear();
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Benchmark
+    public void process(BenchImages.Megapixels counter) {
+        processor.process(cart);
+        while (cart.numImages() > 1) {
+            cart.dropImage();
+        }
+        counter.megapixels += imageMegapixels;
+    }
+
+    @Benchmark
+    public long processPhoto(BenchImages.Megapixels counter) throws IOException {
+        counter.megapixels += imageMegapixels;
+        return fileCart.processPhoto(photo);
+    }
+}
@@ -0,0 +1,162 @@
+package com.celanim.cartoonify;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks each of the CPU image processing stages on its own.
+ * <p>
+ * Each stage pushes its result and the benchmark drops it straight away, back to the
+ * buffer pool, so the stack stays the same size and a steady state allocates no images.
+ * The <code>variant</code> chooses how the stages run: "cpu" is sequential, "parallel"
+ * uses one thread per processor, and "simd" uses the Vector API (if it is available).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark {
+
+    @Param({"1", "12", "50"})
+    public int megapixels;
+
+    @Param({"cpu", "parallel", "simd"})
+    public String variant;
+
+    private Cartoonify cart;
+
+    private double imageMegapixels;
+
+    private int edgeMask;
+
+    private EdgeMask edgeBits;
+
+    private int x;
+
+    private int y;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final int width = BenchImages.width(megapixels);
+        final int height = BenchImages.height(megapixels);
+        imageMegapixels = width * (double) height / 1e6;
+        cart = new Cartoonify();
+        if ("parallel".equals(variant)) {
+            cart.setThreads(Runtime.getRuntime().availableProcessors());
+        } else if ("simd".equals(variant)) {
+            cart.setSimd(true);
+        }
+        cart.loadPixels(BenchImages.synthetic(width, height), width, height);
+        // the same stack of images as processPhotoOnCPU makes, just before the final merge.
+        cart.gaussianBlur();
+        cart.sobelEdgeDetect();
+        edgeMask = cart.numImages() - 1;
+        edgeBits = EdgeMask.fromPixels(cart.currentImage(), width, height, cart.black);
+        cart.cloneImage(0);
+        cart.reduceColours();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cart.setThreads(1); // shuts down the thread pool
+        cart.clear();
+    }
+
+    @Benchmark
+    public void gaussianBlur(BenchImages.Megapixels counter) {
+        cart.gaussianBlur();
+        cart.dropImage();
+        counter.megapixels += imageMegapixels;
+    }
+
+    /**
+     * The stack blur, with a radius that is as wide as the Gaussian filter, and a much bigger one,
+     * which should take the same time.
+     */
+    @Benchmark
+    public void stackBlur(BenchImages.Megapixels counter) {
+        cart.stackBlur(2);
+        cart.dropImage();
+        counter.megapixels += imageMegapixels;
+    }
+
+    @Benchmark
+    public void stackBlurWide(BenchImages.Megapixels counter) {
+        cart.stackBlur(20);
+        cart.dropImage();
+        counter.megapixels += imageMegapixels;
+    }
+
+    @Benchmark
+    public void sobelEdgeDetect(BenchImages.Megapixels counter) {
+        cart.sobelEdgeDetect();
+        cart.dropImage();
+        counter.megapixels += imageMegapixels;
+    }
+
+    @Benchmark
+    public EdgeMask sobelEdgeMask(BenchImages.Megapixels counter) {
+        counter.megapixels += imageMegapixels;
+        return cart.sobelEdgeMask();
+    }
+
+    @Benchmark
+    public EdgeMask lumaEdgeMask(BenchImages.Megapixels counter) {
+        counter.megapixels += imageMegapixels;
+        cart.setLumaEdges(true);
+        try {
+            return cart.sobelEdgeMask();
+        } finally {
+            cart.setLumaEdges(false);
+        }
+    }
+
+    @Benchmark
+    public void reduceColours(BenchImages.Megapixels counter) {
+        cart.reduceColours();
+        cart.dropImage();
+        counter.megapixels += imageMegapixels;
+    }
+
+    @Benchmark
+    public void mergeMask(BenchImages.Megapixels counter) {
+        cart.mergeMask(edgeMask, cart.white, -1);
+        cart.dropImage();
+        counter.megapixels += imageMegapixels;
+    }
+
+    @Benchmark
+    public void mergeEdgeMask(BenchImages.Megapixels counter) {
+        cart.mergeMask(edgeBits, -1);
+        cart.dropImage();
+        counter.megapixels += imageMegapixels;
+    }
+
+    /**
+     * Applies the 5x5 Gaussian filter around one pixel, moving across the image each time.
+     */
+    @Benchmark
+    public int convolution(BenchImages.Megapixels counter) {
+        x = x + 1 < cart.width() ? x + 1 : 0;
+        if (x == 0) {
+            y = y + 1 < cart.height() ? y + 1 : 0;
+        }
+        counter.megapixels += 1e-6;
+        return cart.convolution(x, y, Cartoonify.GAUSSIAN_FILTER, Cartoonify.RED);
+    }
+}
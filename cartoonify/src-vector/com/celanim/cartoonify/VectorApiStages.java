@@ -0,0 +1,246 @@
+package com.celanim.cartoonify;
+
+import java.util.Arrays;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD versions of the CPU image processing stages, using the JDK Vector API.
+ * <p>
+ * The pixels stay packed as <code>0x00RRGGBB</code> ints, one pixel per vector lane,
+ * and each colour channel is extracted with lane-wise shifts and masks.  So each
+ * vector operation works on 16 pixels at a time with AVX-512, or 8 with AVX2.
+ * The convolutions vectorize the interior of each row, where every filter tap is
+ * inside the image; the border pixels and any leftover pixels at the end of the
+ * interior are done one at a time, exactly as the scalar stages do them.
+ * <p>
+ * Divisions are done by multiplying by a fixed-point reciprocal and shifting,
+ * which has been checked to give the same result as integer division for every
+ * possible input value.
+ */
+final class VectorApiStages implements SimdStages {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    /**
+     * (sum * BLUR_MULTIPLIER) &gt;&gt;&gt; BLUR_SHIFT == (int) (sum / GAUSSIAN_SUM), for every blur sum.
+     */
+    private static final int BLUR_MULTIPLIER = 52759;
+    private static final int BLUR_SHIFT = 23;
+
+    /**
+     * (sum * THIRD_MULTIPLIER) &gt;&gt;&gt; THIRD_SHIFT == sum / 3, for every sum of three colour values.
+     */
+    private static final int THIRD_MULTIPLIER = 21846;
+    private static final int THIRD_SHIFT = 16;
+
+    private static final int MASK = Cartoonify.COLOUR_MASK;
+
+    VectorApiStages() {
+        // check the fixed-point reciprocals, so that we never give different results to the scalar stages.
+        final int maxBlurSum = MASK * (int) Cartoonify.GAUSSIAN_SUM;
+        for (int sum = 0; sum <= maxBlurSum; sum++) {
+            if ((sum * BLUR_MULTIPLIER) >>> BLUR_SHIFT != (int) (sum / Cartoonify.GAUSSIAN_SUM)) {
+                throw new IllegalStateException("blur reciprocal is wrong for " + sum);
+            }
+        }
+        for (int sum = 0; sum <= 3 * MASK; sum++) {
+            if ((sum * THIRD_MULTIPLIER) >>> THIRD_SHIFT != sum / 3) {
+                throw new IllegalStateException("grayscale reciprocal is wrong for " + sum);
+            }
+        }
+    }
+
+    @Override
+    public void blurRows(int[] src, int[] dest, int width, int height, int yStart, int yEnd) {
+        final ConvolutionKernel kernel = Cartoonify.GAUSSIAN_KERNEL;
+        final int half = kernel.size() / 2;
+        final int interiorStart = Math.min(half, width);
+        final int interiorEnd = Math.max(interiorStart, width - half);
+        final int vectorEnd = interiorStart + SPECIES.loopBound(interiorEnd - interiorStart);
+        final int[] rowOffsets = new int[kernel.size()];
+        for (int y = yStart; y < yEnd; y++) {
+            kernel.rowOffsets(y, width, height, rowOffsets);
+            for (int x = interiorStart; x < vectorEnd; x += SPECIES.length()) {
+                IntVector red = IntVector.zero(SPECIES);
+                IntVector green = IntVector.zero(SPECIES);
+                IntVector blue = IntVector.zero(SPECIES);
+                for (int tap = 0; tap < kernel.taps(); tap++) {
+                    final IntVector rgb = IntVector.fromArray(SPECIES, src,
+                            rowOffsets[kernel.tapRow(tap)] + kernel.tapX(tap) + x);
+                    final int factor = kernel.tapFactor(tap);
+                    red = red.add(rgb.lanewise(VectorOperators.LSHR, 16).and(MASK).mul(factor));
+                    green = green.add(rgb.lanewise(VectorOperators.LSHR, 8).and(MASK).mul(factor));
+                    blue = blue.add(rgb.and(MASK).mul(factor));
+                }
+                red = red.mul(BLUR_MULTIPLIER).lanewise(VectorOperators.LSHR, BLUR_SHIFT);
+                green = green.mul(BLUR_MULTIPLIER).lanewise(VectorOperators.LSHR, BLUR_SHIFT);
+                blue = blue.mul(BLUR_MULTIPLIER).lanewise(VectorOperators.LSHR, BLUR_SHIFT);
+                red.lanewise(VectorOperators.LSHL, 16)
+                        .or(green.lanewise(VectorOperators.LSHL, 8))
+                        .or(blue)
+                        .intoArray(dest, y * width + x);
+            }
+            for (int x = 0; x < interiorStart; x++) {
+                dest[y * width + x] = blurPixel(kernel, src, width, height, x, y);
+            }
+            for (int x = vectorEnd; x < width; x++) {
+                dest[y * width + x] = blurPixel(kernel, src, width, height, x, y);
+            }
+        }
+    }
+
+    private static int blurPixel(ConvolutionKernel kernel, int[] src, int width, int height, int x, int y) {
+        final int red = clamp(kernel.convolve(src, width, height, x, y, Cartoonify.RED) / Cartoonify.GAUSSIAN_SUM);
+        final int green = clamp(kernel.convolve(src, width, height, x, y, Cartoonify.GREEN) / Cartoonify.GAUSSIAN_SUM);
+        final int blue = clamp(kernel.convolve(src, width, height, x, y, Cartoonify.BLUE) / Cartoonify.GAUSSIAN_SUM);
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * The same as <code>Cartoonify.clamp</code>.
+     */
+    private static int clamp(double value) {
+        final int result = (int) value;
+        return result <= 0 ? 0 : Math.min(result, MASK);
+    }
+
+    @Override
+    public void edgeRows(int[] src, int[] dest, int width, int height, int yStart, int yEnd,
+                         int edgeThreshold, int edgeColour, int otherColour) {
+        final ConvolutionKernel vertical = Cartoonify.SOBEL_VERTICAL_KERNEL;
+        final ConvolutionKernel horizontal = Cartoonify.SOBEL_HORIZONTAL_KERNEL;
+        final int half = vertical.size() / 2;
+        final int interiorStart = Math.min(half, width);
+        final int interiorEnd = Math.max(interiorStart, width - half);
+        final int vectorEnd = interiorStart + SPECIES.loopBound(interiorEnd - interiorStart);
+        final IntVector others = IntVector.broadcast(SPECIES, otherColour);
+        final int[] rowOffsets = new int[vertical.size()];
+        for (int y = yStart; y < yEnd; y++) {
+            vertical.rowOffsets(y, width, height, rowOffsets);
+            for (int x = interiorStart; x < vectorEnd; x += SPECIES.length()) {
+                final IntVector verticalGradient = gradient(vertical, src, rowOffsets, x);
+                final IntVector horizontalGradient = gradient(horizontal, src, rowOffsets, x);
+                final VectorMask<Integer> edges = verticalGradient.add(horizontalGradient)
+                        .compare(VectorOperators.GE, edgeThreshold);
+                others.blend(edgeColour, edges).intoArray(dest, y * width + x);
+            }
+            for (int x = 0; x < interiorStart; x++) {
+                dest[y * width + x] = edgePixel(src, width, height, x, y, edgeThreshold, edgeColour, otherColour);
+            }
+            for (int x = vectorEnd; x < width; x++) {
+                dest[y * width + x] = edgePixel(src, width, height, x, y, edgeThreshold, edgeColour, otherColour);
+            }
+        }
+    }
+
+    @Override
+    public void edgeMaskRows(int[] src, long[] words, int wordsPerRow, int width, int height, int yStart, int yEnd,
+                             int edgeThreshold) {
+        final ConvolutionKernel vertical = Cartoonify.SOBEL_VERTICAL_KERNEL;
+        final ConvolutionKernel horizontal = Cartoonify.SOBEL_HORIZONTAL_KERNEL;
+        final int half = vertical.size() / 2;
+        final int interiorStart = Math.min(half, width);
+        final int interiorEnd = Math.max(interiorStart, width - half);
+        final int vectorEnd = interiorStart + SPECIES.loopBound(interiorEnd - interiorStart);
+        final int lanes = SPECIES.length();
+        final int[] rowOffsets = new int[vertical.size()];
+        for (int y = yStart; y < yEnd; y++) {
+            vertical.rowOffsets(y, width, height, rowOffsets);
+            final int row = y * wordsPerRow;
+            Arrays.fill(words, row, row + wordsPerRow, 0L);
+            for (int x = interiorStart; x < vectorEnd; x += lanes) {
+                final IntVector verticalGradient = gradient(vertical, src, rowOffsets, x);
+                final IntVector horizontalGradient = gradient(horizontal, src, rowOffsets, x);
+                final long bits = verticalGradient.add(horizontalGradient)
+                        .compare(VectorOperators.GE, edgeThreshold).toLong();
+                if (bits != 0) {
+                    // the lanes may straddle two words.
+                    final int bit = x & 63;
+                    words[row + (x >>> 6)] |= bits << bit;
+                    if (bit + lanes > 64) {
+                        words[row + (x >>> 6) + 1] |= bits >>> (64 - bit);
+                    }
+                }
+            }
+            for (int x = 0; x < interiorStart; x++) {
+                if (edgePixel(src, width, height, x, y, edgeThreshold, 1, 0) != 0) {
+                    words[row + (x >>> 6)] |= 1L << x;
+                }
+            }
+            for (int x = vectorEnd; x < width; x++) {
+                if (edgePixel(src, width, height, x, y, edgeThreshold, 1, 0) != 0) {
+                    words[row + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the absolute convolution sums of the three colour channels.
+     */
+    private static IntVector gradient(ConvolutionKernel kernel, int[] src, int[] rowOffsets, int x) {
+        IntVector red = IntVector.zero(SPECIES);
+        IntVector green = IntVector.zero(SPECIES);
+        IntVector blue = IntVector.zero(SPECIES);
+        for (int tap = 0; tap < kernel.taps(); tap++) {
+            final IntVector rgb = IntVector.fromArray(SPECIES, src,
+                    rowOffsets[kernel.tapRow(tap)] + kernel.tapX(tap) + x);
+            final int factor = kernel.tapFactor(tap);
+            red = red.add(rgb.lanewise(VectorOperators.LSHR, 16).and(MASK).mul(factor));
+            green = green.add(rgb.lanewise(VectorOperators.LSHR, 8).and(MASK).mul(factor));
+            blue = blue.add(rgb.and(MASK).mul(factor));
+        }
+        return red.abs().add(green.abs()).add(blue.abs());
+    }
+
+    private static int edgePixel(int[] src, int width, int height, int x, int y,
+                                 int edgeThreshold, int edgeColour, int otherColour) {
+        int total = 0;
+        for (int colour = Cartoonify.BLUE; colour <= Cartoonify.RED; colour++) {
+            total += Math.abs(Cartoonify.SOBEL_VERTICAL_KERNEL.convolve(src, width, height, x, y, colour));
+            total += Math.abs(Cartoonify.SOBEL_HORIZONTAL_KERNEL.convolve(src, width, height, x, y, colour));
+        }
+        return total >= edgeThreshold ? edgeColour : otherColour;
+    }
+
+    @Override
+    public void grayscalePixels(int[] src, int[] dest, int from, int to) {
+        final int vectorEnd = from + SPECIES.loopBound(to - from);
+        int i = from;
+        for (; i < vectorEnd; i += SPECIES.length()) {
+            final IntVector rgb = IntVector.fromArray(SPECIES, src, i);
+            final IntVector average = rgb.lanewise(VectorOperators.LSHR, 16).and(MASK)
+                    .add(rgb.lanewise(VectorOperators.LSHR, 8).and(MASK))
+                    .add(rgb.and(MASK))
+                    .mul(THIRD_MULTIPLIER)
+                    .lanewise(VectorOperators.LSHR, THIRD_SHIFT);
+            average.lanewise(VectorOperators.LSHL, 16)
+                    .or(average.lanewise(VectorOperators.LSHL, 8))
+                    .or(average)
+                    .intoArray(dest, i);
+        }
+        for (; i < to; i++) {
+            final int rgb = src[i];
+            final int average = (((rgb >> 16) & MASK) + ((rgb >> 8) & MASK) + (rgb & MASK)) / 3;
+            dest[i] = (average << 16) | (average << 8) | average;
+        }
+    }
+
+    @Override
+    public void mergePixels(int[] mask, int maskColour, int[] photo, int[] dest, int from, int to) {
+        final int vectorEnd = from + SPECIES.loopBound(to - from);
+        int i = from;
+        for (; i < vectorEnd; i += SPECIES.length()) {
+            final IntVector maskPixels = IntVector.fromArray(SPECIES, mask, i);
+            final IntVector photoPixels = IntVector.fromArray(SPECIES, photo, i);
+            maskPixels.blend(photoPixels, maskPixels.compare(VectorOperators.EQ, maskColour)).intoArray(dest, i);
+        }
+        for (; i < to; i++) {
+            dest[i] = mask[i] == maskColour ? photo[i] : mask[i];
+        }
+    }
+}
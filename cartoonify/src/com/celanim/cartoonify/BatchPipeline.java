@@ -0,0 +1,317 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Processes a batch of photos as a pipeline of three stages: decode, compute and encode.
+ * <p>
+ * Each stage has its own pool of threads, and the stages are connected by bounded
+ * queues, so the decoding of the next photos and the encoding of the previous photos
+ * overlap with the processing of the current photos.  The bounded queues stop a fast
+ * stage from running too far ahead of a slow one and filling up memory with images.
+ * <p>
+ * Each compute thread has its own <code>Cartoonify</code> processor, copied from the
+ * settings of the one given to the constructor, so the output of each photo is
+ * identical to processing it with <code>Cartoonify.processPhoto</code>.  The cores are
+ * divided between the compute threads, so each one uses at most its share of them.
+ * All the stages share the buffer pool of those settings, so once the pipeline is full
+ * the decoded photos, intermediate images and results reuse the same pixel arrays.
+ * If the settings have a <code>ResultCache</code>, the decode stage copies the cached cartoons
+ * of unchanged photos straight to their output files, and they skip the other stages.
+ */
+public class BatchPipeline {
+
+    /**
+     * A photo as it flows through the pipeline.  Each stage fills in more of the fields.
+     */
+    private static final class Photo {
+        final String name;
+        String baseName;
+        String extn;
+        String cacheKey;
+        int width;
+        int height;
+        int[] pixels;
+        Map<String, int[]> results;
+
+        Photo(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * One step of the pipeline, applied to each photo.
+     */
+    private interface Step {
+        /**
+         * @return the photo to pass on to the next stage, or null to drop it.
+         */
+        Photo apply(Photo photo, Cartoonify worker) throws IOException;
+    }
+
+    /**
+     * Tells the threads of a stage that there are no more photos.
+     */
+    private static final Photo END = new Photo(null);
+
+    private final Cartoonify settings;
+
+    private final int decoders;
+
+    private final int processors;
+
+    private final int encoders;
+
+    private final int queueSize;
+
+    /**
+     * The total time spent processing photos, in milliseconds, summed over all compute threads.
+     */
+    private final AtomicLong processMillis = new AtomicLong();
+
+    /**
+     * The number of photos that have been processed and saved.
+     */
+    private final AtomicInteger saved = new AtomicInteger();
+
+    /**
+     * The number of those photos whose cartoons were copied from the result cache.
+     */
+    private final AtomicInteger cached = new AtomicInteger();
+
+    /**
+     * The first error that stopped a thread of the pipeline, or null.
+     */
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Creates a pipeline, with queues that hold two photos per consuming thread.
+     *
+     * @param settings   the edge threshold, number of colours, backend, etc. to use for every photo.
+     * @param decoders   the number of threads that read and decode photos.
+     * @param processors the number of threads that process photos.
+     * @param encoders   the number of threads that encode and write the results.
+     */
+    public BatchPipeline(Cartoonify settings, int decoders, int processors, int encoders) {
+        this(settings, decoders, processors, encoders, 2 * Math.max(processors, encoders));
+    }
+
+    /**
+     * Creates a pipeline.
+     *
+     * @param settings   the edge threshold, number of colours, backend, etc. to use for every photo.
+     * @param decoders   the number of threads that read and decode photos.
+     * @param processors the number of threads that process photos.
+     * @param encoders   the number of threads that encode and write the results.
+     * @param queueSize  the maximum number of photos waiting between two stages.
+     */
+    public BatchPipeline(Cartoonify settings, int decoders, int processors, int encoders, int queueSize) {
+        if (decoders < 1 || processors < 1 || encoders < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("each stage needs at least one thread and a queue of at least one photo, not "
+                    + decoders + "," + processors + "," + encoders + " and " + queueSize);
+        }
+        this.settings = settings;
+        this.decoders = decoders;
+        this.processors = processors;
+        this.encoders = encoders;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Processes all the given photos, and waits until all the results are saved.
+     * <p>
+     * Like <code>Cartoonify.processPhoto</code>, this prints a "Done" message with the processing
+     * time of each photo, but the photos may finish in a different order to the input.
+     * A photo that cannot be read, processed or saved is reported and skipped.
+     * But if a thread dies with an error (such as <code>OutOfMemoryError</code>), the other
+     * threads are interrupted, so that the whole batch stops instead of waiting forever.
+     *
+     * @param names the file names of the photos.
+     * @return the number of photos that were processed and saved.
+     * @throws InterruptedException if this thread is interrupted while waiting.
+     * @throws IllegalStateException if a thread of the pipeline died.  The cause is the error that killed it.
+     */
+    public int run(List<String> names) throws InterruptedException {
+        failure.set(null);
+        final BlockingQueue<Photo> toDecode = new ArrayBlockingQueue<>(names.size() + decoders);
+        final BlockingQueue<Photo> toProcess = new ArrayBlockingQueue<>(queueSize);
+        final BlockingQueue<Photo> toEncode = new ArrayBlockingQueue<>(queueSize);
+        for (String name : names) {
+            toDecode.add(new Photo(name));
+        }
+        for (int i = 0; i < decoders; i++) {
+            toDecode.add(END);
+        }
+        final List<Thread> threads = new ArrayList<>();
+        startStage("decode", decoders, toDecode, toProcess, "decoded", processors, this::decode, threads);
+        startStage("process", processors, toProcess, toEncode, "processed", encoders, this::process, threads);
+        startStage("encode", encoders, toEncode, null, null, 0, this::encode, threads);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final Throwable failed = failure.get();
+        if (failed != null) {
+            throw new IllegalStateException("batch stopped after " + saved.get() + " photos: " + failed, failed);
+        }
+        return saved.get();
+    }
+
+    /**
+     * @return the total time spent processing photos, in milliseconds, summed over all compute threads.
+     */
+    public long processMillis() {
+        return processMillis.get();
+    }
+
+    /**
+     * @return the number of saved photos whose cartoons were copied from the result cache, without processing them.
+     */
+    public int cached() {
+        return cached.get();
+    }
+
+    /**
+     * Starts the threads of one stage.
+     * <p>
+     * When the last thread of the stage finishes, it tells each thread of the next stage
+     * that there are no more photos, even if the stage failed.  The depth of the output queue
+     * is recorded in the metrics each time a photo is added to it.
+     */
+    private void startStage(String stage, int numThreads, BlockingQueue<Photo> in, BlockingQueue<Photo> out,
+                            String outName, int consumers, Step step, List<Thread> threads) {
+        final AtomicInteger running = new AtomicInteger(numThreads);
+        for (int i = 1; i <= numThreads; i++) {
+            final Cartoonify worker = settings.copySettings();
+            worker.setThreads(settings.threadsPerWorker(processors));
+            final Thread thread = new Thread(() -> {
+                try {
+                    for (Photo photo = in.take(); photo != END; photo = in.take()) {
+                        Photo next = null;
+                        try {
+                            next = step.apply(photo, worker);
+                        } catch (IOException | RuntimeException ex) {
+                            System.err.println("Skipping " + photo.name + ": " + ex);
+                        }
+                        if (next != null && out != null) {
+                            out.put(next);
+                            worker.getMetrics().recordQueueDepth(outName, out.size());
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException | Error ex) {
+                    fail(ex, threads);
+                } finally {
+                    worker.setThreads(1); // shuts down its thread pool
+                    if (running.decrementAndGet() == 0 && out != null) {
+                        end(out, consumers);
+                    }
+                }
+            }, stage + "-" + i);
+            synchronized (threads) {
+                threads.add(thread);
+                thread.start();
+                if (failure.get() != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells each thread of the next stage that there are no more photos.
+     */
+    private static void end(BlockingQueue<Photo> out, int consumers) {
+        try {
+            for (int c = 0; c < consumers; c++) {
+                out.put(END);
+            }
+        } catch (InterruptedException ex) {
+            // the pipeline has failed, and all its threads are stopping anyway.
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Records the error that killed a thread, and interrupts all the other threads, since
+     * a stage that is missing threads could leave the others waiting forever.
+     */
+    private void fail(Throwable ex, List<Thread> threads) {
+        System.err.println("Stopping the batch: " + Thread.currentThread().getName() + " failed with " + ex);
+        if (!failure.compareAndSet(null, ex) && failure.get() != ex) {
+            failure.get().addSuppressed(ex);
+        }
+        synchronized (threads) {
+            for (Thread thread : threads) {
+                if (thread != Thread.currentThread()) {
+                    thread.interrupt();
+                }
+            }
+        }
+    }
+
+    private Photo decode(Photo photo, Cartoonify worker) throws IOException {
+        final int dot = photo.name.lastIndexOf(".");
+        if (dot <= 0) {
+            System.err.println("Skipping unknown kind of file: " + photo.name);
+            return null;
+        }
+        photo.baseName = photo.name.substring(0, dot);
+        photo.extn = photo.name.substring(dot).toLowerCase();
+        photo.cacheKey = worker.resultCacheKey(photo.name, photo.extn);
+        final String newName = photo.baseName + "_cartoon" + photo.extn;
+        if (photo.cacheKey != null && worker.getResultCache().get(photo.cacheKey, Paths.get(newName))) {
+            System.out.println("Cached " + photo.name + " -> " + newName);
+            cached.incrementAndGet();
+            saved.incrementAndGet();
+            return null;
+        }
+        final CartoonMetrics.Timer timer = worker.getMetrics().start("decode");
+        final Frame image = Cartoonify.readFrame(photo.name, worker.getBufferPool()::borrow);
+        photo.width = image.width();
+        photo.height = image.height();
+        photo.pixels = image.pixels();
+        timer.stop(photo.width, photo.height);
+        return photo;
+    }
+
+    private Photo process(Photo photo, Cartoonify worker) {
+        final String newName = photo.baseName + "_cartoon" + photo.extn;
+        try {
+            worker.loadPixels(photo.pixels, photo.width, photo.height);
+            photo.pixels = null;
+            final long time0 = System.currentTimeMillis();
+            final CartoonMetrics.Timer timer = worker.getMetrics().start("process");
+            CartoonBackends.find(worker.getBackend()).process(worker);
+            timer.stop(photo.width, photo.height);
+            final long time1 = System.currentTimeMillis();
+            processMillis.addAndGet(time1 - time0);
+            System.out.println("Done " + photo.name + " -> " + newName + " in " + (time1 - time0) / 1e3 + " secs.");
+            photo.results = worker.popResults(photo.baseName, photo.extn);
+            return photo;
+        } finally {
+            worker.clear();
+        }
+    }
+
+    private Photo encode(Photo photo, Cartoonify worker) throws IOException {
+        for (Map.Entry<String, int[]> result : photo.results.entrySet()) {
+            final CartoonMetrics.Timer timer = worker.getMetrics().start("encode");
+            Cartoonify.writeImage(result.getValue(), photo.width, photo.height, result.getKey());
+            timer.stop(photo.width, photo.height);
+            worker.getBufferPool().release(result.getValue());
+        }
+        worker.cacheResult(photo.cacheKey, photo.baseName + "_cartoon" + photo.extn);
+        saved.incrementAndGet();
+        return null;
+    }
+}
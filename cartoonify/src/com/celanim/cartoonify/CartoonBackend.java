@@ -0,0 +1,43 @@
+package com.celanim.cartoonify;
+
+/**
+ * A way of computing the cartoon version of a photo, such as plain Java on the CPU, or OpenCL.
+ * <p>
+ * Backends are found with <code>java.util.ServiceLoader</code>, so a new backend can be added
+ * by implementing this interface and listing the class in
+ * <code>META-INF/services/com.celanim.cartoonify.CartoonBackend</code>.
+ * Each backend is created the first time its name is looked up, and its constructor must be
+ * cheap: any expensive setup (such as creating an OpenCL context) should be done lazily,
+ * the first time <code>process</code> is called.
+ */
+public interface CartoonBackend {
+
+    /**
+     * @return the name used to choose this backend, e.g. with the <code>-b</code> flag.
+     */
+    String name();
+
+    /**
+     * @return a one-line description, for the help message.
+     */
+    String description();
+
+    /**
+     * @return a version that must be changed whenever this backend's output changes,
+     *         so that results saved in a <code>ResultCache</code> by older versions are not used.
+     */
+    default String version() {
+        return "1";
+    }
+
+    /**
+     * Processes the photo on top of the stack of images of the given <code>Cartoonify</code>,
+     * using its current settings, and pushes the final cartoon image on top of the stack.
+     * <p>
+     * When <code>cartoon.isDebug()</code> is true, this must leave the stack of images as
+     * (from bottom to top): original, blurred, edges, original, quantized, final.
+     *
+     * @param cartoon the photo processor, with the original photo on top of its stack.
+     */
+    void process(Cartoonify cartoon);
+}
@@ -0,0 +1,63 @@
+package com.celanim.cartoonify;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Finds the available <code>CartoonBackend</code> implementations.
+ * <p>
+ * Each backend is instantiated at most once, and then shared by all <code>Cartoonify</code>
+ * objects, so that lazily initialized resources (such as an OpenCL context) are reused.
+ */
+public final class CartoonBackends {
+
+    /**
+     * The name of the default backend.
+     */
+    public static final String DEFAULT = "cpu";
+
+    private static Map<String, CartoonBackend> backends;
+
+    private CartoonBackends() {
+    }
+
+    private static synchronized Map<String, CartoonBackend> backends() {
+        if (backends == null) {
+            backends = new LinkedHashMap<>();
+            for (CartoonBackend backend : ServiceLoader.load(CartoonBackend.class)) {
+                backends.put(backend.name(), backend);
+            }
+        }
+        return backends;
+    }
+
+    /**
+     * @param name the name of a backend.
+     * @return the backend with that name.
+     * @throws IllegalArgumentException if there is no backend with that name.
+     */
+    public static CartoonBackend find(String name) {
+        final CartoonBackend backend = backends().get(name);
+        if (backend == null) {
+            throw new IllegalArgumentException("unknown backend " + name + ", must be one of " + names());
+        }
+        return backend;
+    }
+
+    /**
+     * @return all the available backends, in the order they are listed in the service files.
+     */
+    public static List<CartoonBackend> all() {
+        return new ArrayList<>(backends().values());
+    }
+
+    /**
+     * @return the names of all the available backends.
+     */
+    public static List<String> names() {
+        return new ArrayList<>(backends().keySet());
+    }
+}
@@ -0,0 +1,281 @@
+package com.celanim.cartoonify;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Records how long each image processing stage takes, how many pixels it processes and
+ * how much memory it allocates, plus the depths of the queues in batch mode.
+ * <p>
+ * Each stage's latencies are kept in nanoseconds, in a <code>Histogram</code>, so the
+ * percentiles are available as well as the totals.  Each stage also emits a JDK Flight
+ * Recorder event (com.celanim.cartoonify.Stage), and each queue depth sample emits a
+ * com.celanim.cartoonify.QueueDepth event, so a running batch can be profiled with
+ * <code>jcmd &lt;pid&gt; JFR.start</code>.  The events cost almost nothing unless a recording is running.
+ * <p>
+ * The allocated bytes are the bytes allocated by the thread that runs the stage, so they
+ * do not include the allocations of any other threads that help with a parallel stage.
+ * <p>
+ * All the methods are thread-safe, so one set of metrics can be shared by several processors.
+ */
+public final class CartoonMetrics {
+
+    /**
+     * The statistics of one image processing stage.
+     */
+    public static final class StageStats {
+        private final Histogram nanos = new Histogram();
+        private final LongAdder pixels = new LongAdder();
+        private final LongAdder allocatedBytes = new LongAdder();
+
+        /**
+         * @return the latency of each run of the stage, in nanoseconds.
+         */
+        public Histogram nanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the total number of pixels processed by the stage.
+         */
+        public long pixels() {
+            return pixels.sum();
+        }
+
+        /**
+         * @return the total number of bytes allocated by the stage, or 0 if this JVM cannot measure it.
+         */
+        public long allocatedBytes() {
+            return allocatedBytes.sum();
+        }
+    }
+
+    /**
+     * Times one run of a stage.  Use each timer just once, on one thread.
+     */
+    public final class Timer {
+        private final String stage;
+        private final StageEvent event = new StageEvent();
+        private final long startAllocated;
+        private final long startNanos;
+
+        private Timer(String stage) {
+            this.stage = stage;
+            event.begin();
+            startAllocated = allocatedBytes();
+            startNanos = System.nanoTime();
+        }
+
+        /**
+         * Records the end of this run of the stage.
+         *
+         * @param width  the width of the image processed.
+         * @param height the height of the image processed.
+         * @return the elapsed time, in nanoseconds.
+         */
+        public long stop(int width, int height) {
+            final long nanos = System.nanoTime() - startNanos;
+            final long allocated = startAllocated < 0 ? 0 : allocatedBytes() - startAllocated;
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = stage;
+                event.width = width;
+                event.height = height;
+                event.allocated = allocated;
+                event.commit();
+            }
+            record(stage, nanos, (long) width * height, allocated);
+            return nanos;
+        }
+    }
+
+    @Name("com.celanim.cartoonify.Stage")
+    @Label("Cartoonify Stage")
+    @Category("Cartoonify")
+    @Description("One image processing stage of one photo")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("com.celanim.cartoonify.QueueDepth")
+    @Label("Cartoonify Queue Depth")
+    @Category("Cartoonify")
+    @Description("The number of photos waiting in a batch pipeline queue")
+    static class QueueDepthEvent extends Event {
+        @Label("Queue")
+        String queue;
+
+        @Label("Depth")
+        int depth;
+    }
+
+    /**
+     * Measures the bytes allocated by each thread, if the JVM supports it, otherwise null.
+     */
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final Map<String, StageStats> stages = new LinkedHashMap<>();
+
+    private final Map<String, Histogram> queues = new LinkedHashMap<>();
+
+    /**
+     * Starts timing a run of a stage.
+     *
+     * @param stage the name of the stage, such as "blur".
+     * @return a timer, which must be stopped when the stage finishes.
+     */
+    public Timer start(String stage) {
+        return new Timer(stage);
+    }
+
+    /**
+     * Records one run of a stage.
+     *
+     * @param stage          the name of the stage.
+     * @param nanos          how long it took.
+     * @param pixels         how many pixels it processed.
+     * @param allocatedBytes how many bytes it allocated.
+     */
+    public void record(String stage, long nanos, long pixels, long allocatedBytes) {
+        final StageStats stats = stage(stage);
+        stats.nanos.record(nanos);
+        stats.pixels.add(pixels);
+        stats.allocatedBytes.add(allocatedBytes);
+    }
+
+    /**
+     * Records the number of photos that are waiting in a queue.
+     *
+     * @param queue the name of the queue.
+     * @param depth the number of photos in it.
+     */
+    public void recordQueueDepth(String queue, int depth) {
+        final Histogram histogram;
+        synchronized (queues) {
+            histogram = queues.computeIfAbsent(queue, k -> new Histogram());
+        }
+        histogram.record(depth);
+        final QueueDepthEvent event = new QueueDepthEvent();
+        if (event.shouldCommit()) {
+            event.queue = queue;
+            event.depth = depth;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return the statistics of the given stage, which are created if necessary.
+     */
+    public StageStats stage(String stage) {
+        synchronized (stages) {
+            return stages.computeIfAbsent(stage, k -> new StageStats());
+        }
+    }
+
+    /**
+     * @return a snapshot of the names of the stages that have been recorded, in the order they were first seen.
+     */
+    public List<String> stageNames() {
+        synchronized (stages) {
+            return new ArrayList<>(stages.keySet());
+        }
+    }
+
+    /**
+     * @return the depths of the given queue.
+     */
+    public Histogram queue(String queue) {
+        synchronized (queues) {
+            return queues.computeIfAbsent(queue, k -> new Histogram());
+        }
+    }
+
+    /**
+     * @return a snapshot of the names of the queues that have been recorded.
+     */
+    public List<String> queueNames() {
+        synchronized (queues) {
+            return new ArrayList<>(queues.keySet());
+        }
+    }
+
+    /**
+     * Forget all the recorded statistics.
+     */
+    public void reset() {
+        synchronized (stages) {
+            stages.clear();
+        }
+        synchronized (queues) {
+            queues.clear();
+        }
+    }
+
+    /**
+     * @return a table of the statistics of each stage and queue.
+     */
+    public String report() {
+        final StringBuilder result = new StringBuilder();
+        result.append(String.format("%-10s %7s %9s %9s %9s %9s %11s %9s %10s%n", "stage", "count",
+                "p50 ms", "p90 ms", "p99 ms", "max ms", "total secs", "MP/sec", "alloc MB"));
+        for (String name : stageNames()) {
+            final StageStats stats = stage(name);
+            final Histogram nanos = stats.nanos;
+            final double secs = nanos.total() / 1e9;
+            result.append(String.format("%-10s %7d %9.3f %9.3f %9.3f %9.3f %11.3f %9.1f %10.1f%n", name,
+                    nanos.count(), nanos.percentile(50) / 1e6, nanos.percentile(90) / 1e6,
+                    nanos.percentile(99) / 1e6, nanos.max() / 1e6, secs,
+                    secs == 0 ? 0.0 : stats.pixels() / 1e6 / secs, stats.allocatedBytes() / 1e6));
+        }
+        for (String name : queueNames()) {
+            final Histogram depths = queue(name);
+            result.append(String.format("queue %s: %d samples, mean depth %.2f, p99 %d, max %d%n", name,
+                    depths.count(), depths.mean(), depths.percentile(99), depths.max()));
+        }
+        return result.toString();
+    }
+
+    /**
+     * @return the bytes allocated so far by the current thread, or -1 if that cannot be measured.
+     */
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        try {
+            final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean) {
+                final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+                if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                    return threads;
+                }
+            }
+        } catch (LinkageError ex) {
+            // not a HotSpot-style JVM, so allocations are not measured.
+        }
+        return null;
+    }
+}
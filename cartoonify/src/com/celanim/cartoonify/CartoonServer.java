@@ -0,0 +1,371 @@
+package com.celanim.cartoonify;
+
+import java.awt.image.BufferedImage;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Turns photos into cartoons for other programs, over HTTP on the local machine,
+ * so that they do not pay for starting a JVM (or creating an OpenCL context) for every
+ * photo, and every photo is processed by code that the JIT compiler has already warmed up.
+ * <p>
+ * The endpoints are:
+ * <ul>
+ * <li><code>POST /cartoon?e=EdgeThreshold&amp;c=NumColours&amp;format=png</code> with an image
+ * (in any format that ImageIO supports) as the body.  The cartoon is streamed back as the response.
+ * The parameters are optional, and default to the settings given to the constructor.</li>
+ * <li><code>GET /stats</code> returns the request latency percentiles and the metrics of each stage, as text.</li>
+ * </ul>
+ * Each request is handled on its own virtual thread when the JVM supports them (Java 21 or later),
+ * otherwise on a pooled platform thread.  At most <code>workers</code> photos are decoded and
+ * processed at once, each by its own <code>Cartoonify</code>, so a burst of requests queues up
+ * instead of overloading the CPU (or GPU) or filling the heap with decoded images.  The cores
+ * are divided between the workers, so each one uses at most its share of them.  Only the
+ * encoding of the responses happens on all the request threads at once.
+ * <p>
+ * A body bigger than <code>maxBodyBytes</code> is rejected with status 413, a body that cannot be
+ * decoded with 400, and any other failure with 500, so a client always gets a response.
+ */
+public class CartoonServer {
+
+    /**
+     * The default maximum size of a request body, in bytes.
+     */
+    public static final long DEFAULT_MAX_BODY_BYTES = 64L << 20;
+
+    private final Cartoonify settings;
+
+    private final HttpServer server;
+
+    private final ExecutorService requestThreads;
+
+    private final long maxBodyBytes;
+
+    /**
+     * The idle processors.  A request takes one to process its photo, and puts it back afterwards.
+     */
+    private final BlockingQueue<Cartoonify> idle;
+
+    /**
+     * The time taken by each successful request, from receiving its headers to encoding the cartoon, in nanoseconds.
+     */
+    private final Histogram latency = new Histogram();
+
+    /**
+     * Creates a server that listens on the loopback address, and accepts bodies of up to
+     * <code>DEFAULT_MAX_BODY_BYTES</code>.  Call <code>start</code> to start it.
+     *
+     * @param settings the default edge threshold and number of colours, and the backend, threads and metrics to use.
+     * @param port     the port to listen on, or 0 to choose a free port.
+     * @param workers  the maximum number of photos to process at once.
+     * @throws IOException if the port cannot be opened.
+     */
+    public CartoonServer(Cartoonify settings, int port, int workers) throws IOException {
+        this(settings, port, workers, DEFAULT_MAX_BODY_BYTES);
+    }
+
+    /**
+     * Creates a server that listens on the loopback address.  Call <code>start</code> to start it.
+     *
+     * @param settings     the default edge threshold and number of colours, and the backend, threads and metrics to use.
+     * @param port         the port to listen on, or 0 to choose a free port.
+     * @param workers      the maximum number of photos to process at once.
+     * @param maxBodyBytes the maximum size of the image in a request.
+     * @throws IOException if the port cannot be opened.
+     */
+    public CartoonServer(Cartoonify settings, int port, int workers, long maxBodyBytes) throws IOException {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least one, not " + workers);
+        }
+        if (maxBodyBytes < 1) {
+            throw new IllegalArgumentException("the maximum body size must be at least one byte, not " + maxBodyBytes);
+        }
+        this.settings = settings;
+        this.maxBodyBytes = maxBodyBytes;
+        this.idle = new ArrayBlockingQueue<>(workers);
+        for (int i = 0; i < workers; i++) {
+            final Cartoonify worker = settings.copySettings();
+            worker.setDebug(false);
+            worker.setThreads(settings.threadsPerWorker(workers));
+            idle.add(worker);
+        }
+        this.requestThreads = requestExecutor();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(requestThreads);
+        server.createContext("/cartoon", this::cartoon);
+        server.createContext("/stats", this::stats);
+    }
+
+    /**
+     * Starts handling requests, in the background.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops handling requests, waiting up to the given time for the current requests to finish.
+     *
+     * @param delaySecs the maximum time to wait, in seconds.
+     */
+    public void stop(int delaySecs) {
+        server.stop(delaySecs);
+        requestThreads.shutdown();
+        try {
+            requestThreads.awaitTermination(delaySecs, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (Cartoonify worker : idle) {
+            worker.setThreads(1); // shuts down its thread pool
+        }
+    }
+
+    /**
+     * @return the port that the server is listening on.
+     */
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the time taken by each successful request, in nanoseconds.
+     */
+    public Histogram latency() {
+        return latency;
+    }
+
+    /**
+     * @return true if requests are handled on virtual threads.
+     */
+    public boolean usesVirtualThreads() {
+        return !(requestThreads instanceof java.util.concurrent.ThreadPoolExecutor);
+    }
+
+    private void cartoon(HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendText(exchange, 405, "use POST with an image as the body\n");
+                return;
+            }
+            final Map<String, String> params = query(exchange);
+            final int edgeThreshold = params.containsKey("e") ? Integer.parseInt(params.get("e")) : settings.getEdgeThreshold();
+            final int numColours = params.containsKey("c") ? Integer.parseInt(params.get("c")) : settings.getNumColours();
+            final String format = params.containsKey("format") ? params.get("format") : "png";
+            if (numColours < 2) {
+                throw new IllegalArgumentException("NumColours must be 2..256, not " + numColours);
+            }
+            if (!ImageIO.getImageWritersByFormatName(format).hasNext()) {
+                sendText(exchange, 400, "unknown image format " + format + "\n");
+                return;
+            }
+            final String length = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (length != null && Long.parseLong(length.trim()) > maxBodyBytes) {
+                sendText(exchange, 413, "the body is bigger than " + maxBodyBytes + " bytes\n");
+                return;
+            }
+            // decoding needs as much time and memory as processing, so each request waits
+            // for an idle processor before it reads its body, and keeps it until the cartoon is made.
+            final Cartoonify worker = idle.take();
+            final int width;
+            final int height;
+            final int[] cartoon;
+            try {
+                // a chunked body has no length, so it is also counted as it is read.
+                final LimitedInputStream body = new LimitedInputStream(exchange.getRequestBody(), maxBodyBytes);
+                BufferedImage image;
+                try (InputStream in = body) {
+                    image = ImageIO.read(in);
+                } catch (IOException ex) {
+                    image = null;
+                }
+                if (body.exceeded) {
+                    sendText(exchange, 413, "the body is bigger than " + maxBodyBytes + " bytes\n");
+                    return;
+                }
+                if (image == null) {
+                    sendText(exchange, 400, "the body is not an image that can be read\n");
+                    return;
+                }
+                width = image.getWidth();
+                height = image.getHeight();
+                cartoon = process(worker, image, edgeThreshold, numColours);
+            } finally {
+                idle.add(worker);
+            }
+            final BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            result.setRGB(0, 0, width, height, cartoon, 0, width);
+            settings.getBufferPool().release(cartoon);
+            exchange.getResponseHeaders().set("Content-Type", "image/" + format);
+            exchange.sendResponseHeaders(200, 0); // chunked, so the image is streamed as it is encoded.
+            try (OutputStream out = exchange.getResponseBody()) {
+                ImageIO.write(result, format, out);
+                // recorded before the response is closed, so the client cannot see the end of it first.
+                latency.record(System.nanoTime() - start);
+            }
+        } catch (IllegalArgumentException ex) {
+            sendError(exchange, 400, ex.getMessage() + "\n");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            sendError(exchange, 503, "the server is stopping\n");
+        } catch (RuntimeException ex) {
+            System.err.println("Failed to make a cartoon: " + ex);
+            sendError(exchange, 500, "failed to make the cartoon: " + ex + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Uses a processor taken from the idle ones to turn the image into a cartoon.
+     *
+     * @return the cartoon pixels, borrowed from the buffer pool.
+     */
+    private int[] process(Cartoonify worker, BufferedImage image, int edgeThreshold, int numColours) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int[] pixels = Cartoonify.rgbPixels(image, settings.getBufferPool().borrow(width * height));
+        try {
+            worker.setEdgeThreshold(edgeThreshold);
+            worker.setNumColours(numColours);
+            worker.loadPixels(pixels, width, height);
+            final CartoonMetrics.Timer timer = worker.getMetrics().start("process");
+            CartoonBackends.find(worker.getBackend()).process(worker);
+            timer.stop(width, height);
+            return worker.popImage();
+        } finally {
+            worker.clear();
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        try {
+            final String text = String.format("requests %d%nlatency ms p50 %.3f p90 %.3f p99 %.3f max %.3f%n%s",
+                    latency.count(), latency.percentile(50) / 1e6, latency.percentile(90) / 1e6,
+                    latency.percentile(99) / 1e6, latency.max() / 1e6, settings.getMetrics().report());
+            sendText(exchange, 200, text);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Sends an error response, unless the response has already started,
+     * in which case closing the exchange is all that can be done.
+     */
+    private static void sendError(HttpExchange exchange, int status, String text) throws IOException {
+        if (exchange.getResponseCode() < 0) {
+            sendText(exchange, status, text);
+        }
+    }
+
+    /**
+     * @return the parameters in the query string of the request.
+     */
+    private static Map<String, String> query(HttpExchange exchange) {
+        final Map<String, String> params = new HashMap<>();
+        final String query = exchange.getRequestURI().getQuery();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                final int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(param.substring(0, eq), param.substring(eq + 1));
+                }
+            }
+        }
+        return params;
+    }
+
+    /**
+     * A request body that fails as soon as more than the maximum number of bytes are read from it.
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+        /** True once the body turned out to be too big. */
+        boolean exceeded;
+
+        LimitedInputStream(InputStream in, long maxBytes) {
+            super(in);
+            this.remaining = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) throws IOException {
+            remaining -= n;
+            if (remaining < 0) {
+                exceeded = true;
+                throw new IOException("the body is too big");
+            }
+        }
+    }
+
+    /**
+     * @return an executor that runs each task on a new virtual thread if this JVM has them,
+     *         otherwise a pool of daemon platform threads.
+     */
+    private static ExecutorService requestExecutor() {
+        try {
+            // found by reflection, so this still compiles and runs on Java 8.
+            final Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return Executors.newCachedThreadPool(task -> {
+                final Thread thread = new Thread(task, "cartoon-request");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -1,12 +1,15 @@
 package com.celanim.cartoonify;
 
-import com.nativelibs4java.opencl.*;
-import org.bridj.Pointer;
-
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
 
 import javax.imageio.ImageIO;
 
@@ -62,6 +65,12 @@ public class Cartoonify {
      */
     public static final int BLUE = 0;
 
+    /**
+     * What <code>processPhoto</code> returns when the cartoon was copied from the result cache,
+     * so that the photo can be left out of the average processing time.
+     */
+    public static final long CACHED = -1L;
+
     /**
      * What level of colour change should be considered an edge.
      */
@@ -72,9 +81,98 @@ public class Cartoonify {
      */
     private int numColours = 3;
 
+    /**
+     * The radius of the stack blur, or 0 to blur with the 5x5 <code>GAUSSIAN_FILTER</code>.
+     */
+    private int blurRadius = 0;
+
+    /**
+     * True means detect edges in the luminance only, rather than in each colour channel.
+     */
+    private boolean lumaEdges = false;
+
+    /**
+     * How the blur and edge detection find the pixels beyond the edges of the image.
+     */
+    private EdgePolicy edgePolicy = EdgePolicy.CLAMP;
+
     private boolean debug = false;
 
-    private boolean useGPU = false;
+    /**
+     * The name of the backend that processes each photo.  See <code>CartoonBackends</code>.
+     */
+    private String backend = CartoonBackends.DEFAULT;
+
+    /**
+     * True means use the SIMD versions of the CPU stages, if they are available.
+     */
+    private boolean simd = false;
+
+    /**
+     * Number of threads used by the CPU image processing stages.
+     * 1 means that every stage runs sequentially on the calling thread.
+     */
+    private int threads = 1;
+
+    /**
+     * The thread pool for the CPU stages.  Created when first needed, if threads > 1.
+     */
+    private ForkJoinPool pool;
+
+    /**
+     * Where the pixel arrays for new images are borrowed from, and returned to when they are dropped.
+     */
+    private PixelBufferPool bufferPool = new PixelBufferPool();
+
+    /**
+     * Records the time, pixels and allocations of each processing stage.
+     */
+    private CartoonMetrics metrics = new CartoonMetrics();
+
+    /**
+     * True means print the metrics of all the stages at the end of main.
+     */
+    private boolean printMetrics = false;
+
+    /**
+     * The number of decode, process and encode threads for pipelined batch mode (see <code>BatchPipeline</code>),
+     * or null to process the photos one at a time.
+     */
+    private int[] batchThreads;
+
+    /**
+     * The number of rows in each strip for out-of-core processing (see <code>StripProcessor</code>),
+     * or 0 to load each whole photo into memory.
+     */
+    private int stripRows = 0;
+
+    /**
+     * The edge thresholds and numbers of colours to sweep through (see <code>ParameterSweep</code>),
+     * or null to use just the current settings.
+     */
+    private int[] sweepThresholds;
+    private int[] sweepColours;
+
+    /**
+     * The on-disk cache of cartoon results, or null to always process every photo.
+     */
+    private ResultCache resultCache;
+
+    /**
+     * Encodes and writes the results of <code>processPhoto</code> in the background,
+     * or null to save them on the calling thread.
+     */
+    private ImageEncoder encoder;
+
+    /**
+     * Processes the photos as the frames of a video (see <code>FrameSequence</code>), or null to process each one separately.
+     */
+    private FrameSequence frameSequence;
+
+    /**
+     * The port to serve cartoons on (see <code>CartoonServer</code>), or -1 to process the photos on the command line.
+     */
+    private int serverPort = -1;
 
     /**
      * The width of all the images.
@@ -96,84 +194,6 @@ public class Cartoonify {
      */
     private int currImage;
 
-    /**
-     * Choose the platform and the best GPU device
-     */
-    private CLContext context = JavaCL.createBestContext(CLPlatform.DeviceFeature.GPU);
-
-    /**
-     * OpenCL kernel to calculate Gaussian Blur and Sobel Edge Detect
-     */
-    private static final String source =
-            "int wrap(int pos, int size) {\n" +
-                    "    return select(0, select(pos, size - 1 ,pos >= size), pos > 0);\n" +
-                    "}\n" +
-                    "\n" +
-                    "int3 pixel (int p) {\n" +
-                    "    return (int3)((p>>16) & 0xFF, (p>>8) & 0xFF, p & 0xFF);\n" +
-                    "}\n" +
-                    "\n" +
-                    "__kernel void gaussianBlur\n" +
-                    "(__global int *a, __global int *b,int width, int height)\n" +
-                    "{\n" +
-                    "    int gid = get_global_id(0);\n" +
-                    "\n" +
-                    "    int yCentre = gid / width;\n" +
-                    "    int xCentre = gid % width;\n" +
-                    "\n" +
-                    "    int y0 = wrap(yCentre - 2, height);\n" +
-                    "    int y1 = wrap(yCentre - 1, height);\n" +
-                    "    int y2 = wrap(yCentre, height);\n" +
-                    "    int y3 = wrap(yCentre + 1, height);\n" +
-                    "    int y4 = wrap(yCentre + 2, height);\n" +
-                    "    int x0 = wrap(xCentre - 2, width);\n" +
-                    "    int x1 = wrap(xCentre - 1, width);\n" +
-                    "    int x2 = wrap(xCentre, width);\n" +
-                    "    int x3 = wrap(xCentre + 1, width);\n" +
-                    "    int x4 = wrap(xCentre + 2, width);\n" +
-                    "\n" +
-                    "    int3 sum =\n" +
-                    "    pixel(a[y0*width + x0]) * 2 + pixel(a[y0*width + x1]) * 4 + pixel(a[y0*width + x2]) * 5 + pixel(a[y0*width + x3]) * 4 + pixel(a[y0*width + x4]) * 2 +\n" +
-                    "    pixel(a[y1*width + x0]) * 4 + pixel(a[y1*width + x1]) * 9 + pixel(a[y1*width + x2]) *12 + pixel(a[y1*width + x3]) * 9 + pixel(a[y1*width + x4]) * 4 +\n" +
-                    "    pixel(a[y2*width + x0]) * 5 + pixel(a[y2*width + x1]) *12 + pixel(a[y2*width + x2]) *15 + pixel(a[y2*width + x3]) *12 + pixel(a[y2*width + x4]) * 5 +\n" +
-                    "    pixel(a[y3*width + x0]) * 4 + pixel(a[y3*width + x1]) * 9 + pixel(a[y3*width + x2]) *12 + pixel(a[y3*width + x3]) * 9 + pixel(a[y3*width + x4]) * 4 +\n" +
-                    "    pixel(a[y4*width + x0]) * 2 + pixel(a[y4*width + x1]) * 4 + pixel(a[y4*width + x2]) * 5 + pixel(a[y4*width + x3]) * 4 + pixel(a[y4*width + x4]) * 2;\n" +
-                    "\n" +
-                    "    sum = sum/159;\n" +
-                    "\n" +
-                    "    b[gid] = (sum.x<<16) + (sum.y<<8) + sum.z;\n" +
-                    "}\n" +
-                    "\n" +
-                    "__kernel void sobelEdgeDetect\n" +
-                    "(__global int *b, __global int *c,int width, int height, int edgeThreshold)\n" +
-                    "{\n" +
-                    "    int gid = get_global_id(0);\n" +
-                    "\n" +
-                    "    int yCentre = gid / width;\n" +
-                    "    int xCentre = gid % width;\n" +
-                    "\n" +
-                    "    int y0 = wrap(yCentre - 1, height);\n" +
-                    "    int y1 = wrap(yCentre, height);\n" +
-                    "    int y2 = wrap(yCentre + 1, height);\n" +
-                    "    int x0 = wrap(xCentre - 1, width);\n" +
-                    "    int x1 = wrap(xCentre, width);\n" +
-                    "    int x2 = wrap(xCentre + 1, width);\n" +
-                    "\n" +
-                    "    int3 sumV = 0\n" +
-                    "    - pixel(b[y0*width + x0]) + pixel(b[y0*width + x2])\n" +
-                    "    - pixel(b[y1*width + x0]) * 2 + pixel(b[y1*width + x2]) * 2\n" +
-                    "    - pixel(b[y2*width + x0]) + pixel(b[y2*width + x2]);\n" +
-                    "\n" +
-                    "    int3 sumH = 0\n" +
-                    "    + pixel(b[y0*width + x0]) + pixel(b[y0*width + x1]) * 2 + pixel(b[y0*width + x2])\n" +
-                    "    - pixel(b[y2*width + x0]) - pixel(b[y2*width + x1]) * 2 - pixel(b[y2*width + x2]);\n" +
-                    "\n" +
-                    "    int gV = abs(sumV.x) + abs(sumV.y) + abs(sumV.z);\n" +
-                    "    int gH = abs(sumH.x) + abs(sumH.y) + abs(sumH.z);\n" +
-                    "\n" +
-                    "    c[gid] = select(0xFFFFFF, 0,(gV+gH)>= edgeThreshold);\n" +
-                    "}";
-
     /**
      * Create a new photo-to-cartoon processor.
      * <p>
@@ -224,6 +244,81 @@ public class Cartoonify {
         }
     }
 
+    /**
+     * @return the radius of the stack blur, or 0 if the 5x5 Gaussian filter is used.
+     */
+    public int getBlurRadius() {
+        return blurRadius;
+    }
+
+    /**
+     * Set the radius of the blur that is done before edge detection.
+     * Larger radii give smoother cartoons with fewer, simpler edges,
+     * and take the same time as small radii.  See <code>stackBlur</code>.
+     * <p>
+     * The stack blur is only done by the separate CPU stages (<code>processPhotoOnCPU</code>),
+     * so the fused, planar and OpenCL backends use those stages when it is turned on
+     * (see <code>needsCpuStages</code>).
+     *
+     * @param blurRadius 0 to use the 5x5 Gaussian filter (the default), or 1 .. 200.
+     */
+    public void setBlurRadius(int blurRadius) {
+        if (blurRadius < 0 || blurRadius > StackBlur.MAX_RADIUS) {
+            throw new IllegalArgumentException("blur radius must be 0.." + StackBlur.MAX_RADIUS + ", not " + blurRadius);
+        }
+        this.blurRadius = blurRadius;
+    }
+
+    public boolean isLumaEdges() {
+        return lumaEdges;
+    }
+
+    /**
+     * Set this to true to detect edges in the luminance (brightness) of the blurred image only,
+     * rather than in each of its colour channels, which is about a third of the work.
+     * The gradients are scaled so that the same edge thresholds give similar edges.
+     * See <code>LumaSobel</code>.
+     * <p>
+     * Like the stack blur, this is only done by the separate CPU stages, so the fused, planar
+     * and OpenCL backends use those stages when it is turned on.
+     *
+     * @param lumaEdges
+     */
+    public void setLumaEdges(boolean lumaEdges) {
+        this.lumaEdges = lumaEdges;
+    }
+
+    /**
+     * @return how the blur and edge detection find the pixels beyond the edges of the image.
+     */
+    public EdgePolicy getEdgePolicy() {
+        return edgePolicy;
+    }
+
+    /**
+     * Set how the blur and edge detection (and <code>wrap</code>) find the pixels beyond the edges
+     * of the image.  The policy is only used near the borders, so it does not change the speed.
+     * <p>
+     * Only the separate CPU stages support policies other than CLAMP, so the fused, planar and
+     * OpenCL backends use those stages for them, and strips and frame sequences cannot use them.
+     *
+     * @param edgePolicy CLAMP (the default), REFLECT or WRAP.
+     */
+    public void setEdgePolicy(EdgePolicy edgePolicy) {
+        if (edgePolicy == null) {
+            throw new IllegalArgumentException("edge policy must not be null");
+        }
+        this.edgePolicy = edgePolicy;
+    }
+
+    /**
+     * @return true if the settings need stages that only <code>processPhotoOnCPU</code> has,
+     *         so the other ways of processing a photo must use it instead.
+     */
+    boolean needsCpuStages() {
+        return blurRadius > 0 || lumaEdges || edgePolicy != EdgePolicy.CLAMP;
+    }
+
     public boolean isDebug() {
         return debug;
     }
@@ -237,6 +332,248 @@ public class Cartoonify {
         this.debug = debug;
     }
 
+    /**
+     * @return the name of the backend that processes each photo.
+     */
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * Choose the backend that processes each photo, such as "cpu", "fused", "planar" or "opencl".
+     * The backend is not initialized until the first photo is processed.
+     *
+     * @param backend the name of one of the <code>CartoonBackends</code>.
+     * @throws IllegalArgumentException if there is no backend with that name.
+     */
+    public void setBackend(String backend) {
+        CartoonBackends.find(backend);
+        this.backend = backend;
+    }
+
+    public boolean isSimd() {
+        return simd;
+    }
+
+    /**
+     * Set this to true to run the blur, edge detection, colour reduction, grayscale and
+     * masking stages with SIMD instructions, via the JDK Vector API.
+     * If the Vector API is not available, a warning is printed and the normal
+     * scalar code is used.  Either way, the output is the same.
+     *
+     * @param simd
+     */
+    public void setSimd(boolean simd) {
+        this.simd = simd;
+    }
+
+    /**
+     * @return the SIMD stages, or null if they are turned off or not available.
+     */
+    private SimdStages simdStages() {
+        return simd ? SimdStages.Loader.INSTANCE : null;
+    }
+
+    /**
+     * @return the SIMD stages for the filters, or null if they are turned off or not available,
+     *         or the edge policy is not CLAMP, which is the only policy that they support.
+     */
+    private SimdStages filterSimdStages() {
+        return edgePolicy == EdgePolicy.CLAMP ? simdStages() : null;
+    }
+
+    /**
+     * @return the number of threads used by the CPU image processing stages.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Set the number of threads used by the CPU image processing stages.
+     * Each stage splits the image into bands of rows and processes them in parallel,
+     * so the output is identical to the sequential (1 thread) version.
+     *
+     * @param threads 1 or more.
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least one, not " + threads);
+        }
+        if (threads != this.threads && pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * Creates a new processor with the same settings as this one, and an empty stack of images.
+     * <p>
+     * A processor must only be used by one thread at a time, so code that processes
+     * several photos at once needs a separate processor for each of its threads.
+     * The new processor shares this one's buffer pool and metrics, which are thread-safe.
+     *
+     * @return a new processor.
+     */
+    public Cartoonify copySettings() {
+        Cartoonify copy = new Cartoonify();
+        copy.edgeThreshold = edgeThreshold;
+        copy.numColours = numColours;
+        copy.blurRadius = blurRadius;
+        copy.lumaEdges = lumaEdges;
+        copy.edgePolicy = edgePolicy;
+        copy.debug = debug;
+        copy.backend = backend;
+        copy.simd = simd;
+        copy.threads = threads;
+        copy.bufferPool = bufferPool;
+        copy.metrics = metrics;
+        copy.resultCache = resultCache;
+        return copy;
+    }
+
+    /**
+     * @param workers the number of processors that will run at once, each on its own thread.
+     * @return the number of threads each of those processors should use, so that together
+     *         they use no more than the available cores, and no more than this one's thread count.
+     */
+    int threadsPerWorker(int workers) {
+        return Math.min(threads, Math.max(1, Runtime.getRuntime().availableProcessors() / workers));
+    }
+
+    /**
+     * @return the pool that the pixel arrays of new images are borrowed from.
+     */
+    public PixelBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Set the pool that the pixel arrays of new images are borrowed from.
+     * Several processors can share one pool, to reuse each other's arrays.
+     *
+     * @param bufferPool a pool, which may have a maximum size of 0 to turn pooling off.
+     */
+    public void setBufferPool(PixelBufferPool bufferPool) {
+        if (bufferPool == null) {
+            throw new IllegalArgumentException("buffer pool must not be null");
+        }
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * @return the metrics that record the time, pixels and allocations of each processing stage.
+     */
+    public CartoonMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Set where the metrics of each processing stage are recorded.
+     * Several processors can share one set of metrics, to get the totals of a whole batch.
+     *
+     * @param metrics
+     */
+    public void setMetrics(CartoonMetrics metrics) {
+        if (metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null");
+        }
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return the on-disk cache of cartoon results, or null if results are not cached.
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the on-disk cache of cartoon results.  This is shared with copies made by <code>copySettings</code>.
+     *
+     * @param resultCache null means always process every photo.
+     */
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * @return the encoder that saves the results of <code>processPhoto</code>, or null if they are saved before it returns.
+     */
+    public ImageEncoder getEncoder() {
+        return encoder;
+    }
+
+    /**
+     * Sets the encoder that saves the results of <code>processPhoto</code> in the background.
+     * The encoder is not shared with copies made by <code>copySettings</code>, and
+     * the caller must close it to wait until all the results are saved.
+     *
+     * @param encoder null means save each result before <code>processPhoto</code> returns.
+     */
+    public void setEncoder(ImageEncoder encoder) {
+        this.encoder = encoder;
+    }
+
+    /**
+     * Calculates the key of a photo in the result cache.  The key covers every setting
+     * that affects the cartoon image: the edge threshold, number of colours, blur radius, edge mode,
+     * edge policy, backend and
+     * its version, and the output file type.
+     * <p>
+     * Results are not cached in debug mode, since the intermediate images are saved too.
+     *
+     * @param name path to the photo.
+     * @param extn the extension of the photo, including the dot.
+     * @return the key, or null if results are not being cached.
+     * @throws IOException if the photo cannot be read.
+     */
+    String resultCacheKey(String name, String extn) throws IOException {
+        if (resultCache == null || debug) {
+            return null;
+        }
+        final CartoonBackend impl = CartoonBackends.find(backend);
+        return resultCache.key(Paths.get(name), "edgeThreshold=" + edgeThreshold + " numColours=" + numColours
+                + " blurRadius=" + blurRadius + " lumaEdges=" + lumaEdges
+                + " edgePolicy=" + edgePolicy + " backend=" + impl.name() + ":" + impl.version() + " extn=" + extn);
+    }
+
+    /**
+     * Adds a saved cartoon to the result cache.
+     *
+     * @param key     the key from <code>resultCacheKey</code>, or null to do nothing.
+     * @param newName the saved cartoon.
+     * @throws IOException if the cartoon cannot be copied into the cache.
+     */
+    void cacheResult(String key, String newName) throws IOException {
+        if (key != null) {
+            resultCache.put(key, Paths.get(newName));
+        }
+    }
+
+    /**
+     * Applies the given processing to every row of the current images.
+     * <p>
+     * If more than one thread is being used, the rows are split into bands that are
+     * processed in parallel on a ForkJoinPool, otherwise they are all processed on
+     * the calling thread.  Either way, this method returns after all rows are done.
+     *
+     * @param rows processes a band of rows.  Must only write pixels within that band.
+     */
+    protected void forEachRowBand(RowBandTask.Rows rows) {
+        if (threads <= 1 || height <= 1) {
+            rows.process(0, height);
+        } else {
+            if (pool == null) {
+                pool = new ForkJoinPool(threads);
+            }
+            // a few bands per thread, so that the work is balanced even if some bands are slower.
+            final int bandHeight = (height + 4 * threads - 1) / (4 * threads);
+            pool.invoke(new RowBandTask(rows, 0, height, bandHeight));
+        }
+    }
+
     /**
      * @return the number of images currently on the stack of images.
      */
@@ -268,8 +605,21 @@ public class Cartoonify {
         pixels[currImage] = newPixels;
     }
 
+    /**
+     * Borrows an array for a new image from the buffer pool.
+     * Its contents are undefined, so every pixel must be written before it is pushed.
+     *
+     * @return an array of width * height pixels.
+     */
+    protected int[] newImage() {
+        return bufferPool.borrow(width * height);
+    }
+
     /**
      * Remove the current image off the stack.
+     * <p>
+     * The array now belongs to the caller, which may return it to the buffer pool
+     * when it has finished with it.
      *
      * @return all the pixels in that image.
      */
@@ -279,6 +629,13 @@ public class Cartoonify {
         return result;
     }
 
+    /**
+     * Remove the current image off the stack, and return its pixels to the buffer pool.
+     */
+    protected void dropImage() {
+        bufferPool.release(popImage());
+    }
+
     /**
      * Push a shallow copy of the given image onto the stack.
      * For speed, this copies the pointer to the image, but does not
@@ -291,17 +648,29 @@ public class Cartoonify {
      * @param which the number of the photo to duplicate. From <code>-numImages() .. numImages()-1</code>.
      */
     public void cloneImage(int which) {
+        final int stackPos = stackPosition(which);
+        final int[] copy = newImage();
+        System.arraycopy(pixels[stackPos], 0, copy, 0, width * height);
+        pushImage(copy);
+    }
+
+    /**
+     * @param which the number of a photo, as for <code>cloneImage</code>.
+     * @return the position of that photo in the stack.
+     */
+    private int stackPosition(int which) {
         final int stackPos = which >= 0 ? which : (currImage + which + 1);
         assert 0 <= stackPos && stackPos <= currImage;
-        pushImage(Arrays.copyOf(pixels[stackPos], width * height));
+        return stackPos;
     }
 
     /**
-     * Reset the stack of images so that it is empty.
+     * Reset the stack of images so that it is empty, returning all their pixels to the buffer pool.
      */
     public void clear() {
-        Arrays.fill(pixels, null);
-        currImage = -1;
+        while (currImage >= 0) {
+            dropImage();
+        }
     }
 
     /**
@@ -315,21 +684,105 @@ public class Cartoonify {
      * @throws IOException if the image cannot be read or is the wrong size.
      */
     public void loadPhoto(String filename) throws IOException {
+        final CartoonMetrics.Timer timer = metrics.start("decode");
+        final Frame photo = readFrame(filename, bufferPool::borrow);
+        if (numImages() > 0 && (width != photo.width() || height != photo.height())) {
+            bufferPool.release(photo.pixels());
+            throw new IOException("Incorrect image size: " + filename);
+        }
+        loadPixels(photo.pixels(), photo.width(), photo.height());
+        timer.stop(width, height);
+    }
+
+    /**
+     * Pushes a photo that has already been decoded onto the stack.
+     * <p>
+     * Like <code>loadPhoto</code>, if the stack of photos is empty, this also sets the width
+     * and height of images being processed, otherwise the new image must be the same size.
+     * The stack takes ownership of the array, so the caller should not modify it afterwards.
+     *
+     * @param rgbPixels the RGB pixels of the photo, in row-major order, with no alpha channel.
+     * @param width     the width of the photo.
+     * @param height    the height of the photo.
+     * @throws IllegalArgumentException if the photo is the wrong size.
+     */
+    public void loadPixels(int[] rgbPixels, int width, int height) {
+        if (rgbPixels.length != width * height) {
+            throw new IllegalArgumentException("expected " + width + "x" + height + " pixels, not " + rgbPixels.length);
+        }
+        if (numImages() == 0) {
+            this.width = width;
+            this.height = height;
+        } else if (this.width != width || this.height != height) {
+            throw new IllegalArgumentException("Incorrect image size: " + width + "x" + height);
+        }
+        pushImage(rgbPixels);
+    }
+
+    /**
+     * Pushes a copy of the given frame onto the stack, as for <code>loadPixels</code>.
+     *
+     * @param frame an immutable image.
+     * @throws IllegalArgumentException if the frame is the wrong size.
+     */
+    public void loadFrame(Frame frame) {
+        loadPixels(frame.toArray(), frame.width(), frame.height());
+    }
+
+    /**
+     * @return an immutable copy of the current image.
+     */
+    public Frame currentFrame() {
+        return new Frame(currentImage().clone(), width, height);
+    }
+
+    /**
+     * Reads and decodes an image file.
+     *
+     * @param filename the extension of this name (eg. .jpg) does not matter, since ImageIO detects the format.
+     * @return the decoded image.
+     * @throws IOException if the image cannot be read.
+     */
+    static BufferedImage readImage(String filename) throws IOException {
         BufferedImage image = ImageIO.read(new File(filename));
         if (image == null) {
             throw new RuntimeException("Invalid image file: " + filename);
         }
-        if (numImages() == 0) {
-            width = image.getWidth();
-            height = image.getHeight();
-        } else if (width != image.getWidth() || height != image.getHeight()) {
-            throw new IOException("Incorrect image size: " + filename);
+        return image;
+    }
+
+    /**
+     * Reads an image file as RGB pixels.
+     * <p>
+     * The raw formats (see <code>RawImageIO</code>) are unpacked straight into the pixel array,
+     * and all other formats are decoded by ImageIO.
+     *
+     * @param filename the extension of this name (eg. .ppm) chooses between the raw formats and ImageIO.
+     * @param buffers  given the number of pixels, returns an array of that length for them.
+     * @return a frame that wraps the array from buffers, so the caller may take over that array.
+     * @throws IOException if the image cannot be read.
+     */
+    static Frame readFrame(String filename, IntFunction<int[]> buffers) throws IOException {
+        if (RawImageIO.supports(filename)) {
+            return RawImageIO.read(filename, buffers);
         }
-        int[] newPixels = image.getRGB(0, 0, width, height, null, 0, width);
+        final BufferedImage image = readImage(filename);
+        final int[] pixels = rgbPixels(image, buffers.apply(image.getWidth() * image.getHeight()));
+        return new Frame(pixels, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * @param image a decoded image.
+     * @param dest  an array for the pixels, or null to allocate a new one.
+     * @return the RGB pixels of the image, in row-major order, with the alpha channel removed.
+     */
+    static int[] rgbPixels(BufferedImage image, int[] dest) {
+        final int w = image.getWidth();
+        int[] newPixels = image.getRGB(0, 0, w, image.getHeight(), dest, 0, w);
         for (int i = 0; i < newPixels.length; i++) {
             newPixels[i] &= 0x00FFFFFF; // remove any alpha channel, since we will use RGB only
         }
-        pushImage(newPixels);
+        return newPixels;
     }
 
     /**
@@ -341,9 +794,27 @@ public class Cartoonify {
      * @throws IOException
      */
     public void savePhoto(String newName) throws IOException {
+        writeImage(currentImage(), width, height, newName);
+    }
+
+    /**
+     * Encodes some RGB pixels and writes them to disk with the given filename.
+     *
+     * @param rgbPixels the pixels, in row-major order.
+     * @param width     the width of the image.
+     * @param height    the height of the image.
+     * @param newName   the extension of this name (eg. .jpg) determines the output file type.
+     *                  The raw formats (see <code>RawImageIO</code>) are written without ImageIO.
+     * @throws IOException
+     */
+    static void writeImage(int[] rgbPixels, int width, int height, String newName) throws IOException {
+        if (RawImageIO.supports(newName)) {
+            RawImageIO.write(rgbPixels, width, height, newName);
+            return;
+        }
         BufferedImage image = new BufferedImage(width, height,
                 BufferedImage.TYPE_INT_RGB);
-        image.setRGB(0, 0, width, height, currentImage(), 0, width);
+        image.setRGB(0, 0, width, height, rgbPixels, 0, width);
         final int dot = newName.lastIndexOf('.');
         final String extn = newName.substring(dot + 1);
         final File outFile = new File(newName);
@@ -368,17 +839,38 @@ public class Cartoonify {
      * Adds a new image that is a grayscale version of the current image.
      */
     public void grayscale() {
-        int[] oldPixels = currentImage();
-        int[] newPixels = new int[width * height];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = oldPixels[y * width + x];
-                int average = (red(rgb) + green(rgb) + blue(rgb)) / 3;
-                int newRGB = createPixel(average, average, average);
-                newPixels[y * width + x] = newRGB;
-            }
+        final SimdStages vector = simdStages();
+        if (vector == null) {
+            applyOperator("grayscale", PointOperator.grayscale());
+            return;
         }
+        final CartoonMetrics.Timer timer = metrics.start("grayscale");
+        final int[] oldPixels = currentImage();
+        final int[] newPixels = newImage();
+        forEachRowBand((yStart, yEnd) -> vector.grayscalePixels(oldPixels, newPixels, yStart * width, yEnd * width));
         pushImage(newPixels);
+        timer.stop(width, height);
+    }
+
+    /**
+     * Adds a new image that is the current image with the given colour operation applied to each pixel.
+     * <p>
+     * Operations can be combined with <code>PointOperator.then</code>, and are still done in one pass,
+     * for example <code>applyOperator(PointOperator.quantize(4).then(PointOperator.grayscale()))</code>.
+     *
+     * @param operator the operation to apply.
+     */
+    public void applyOperator(PointOperator operator) {
+        applyOperator("operator", operator);
+    }
+
+    private void applyOperator(String stage, PointOperator operator) {
+        final CartoonMetrics.Timer timer = metrics.start(stage);
+        final int[] oldPixels = currentImage();
+        final int[] newPixels = newImage();
+        forEachRowBand((yStart, yEnd) -> operator.apply(oldPixels, newPixels, yStart * width, yEnd * width));
+        pushImage(newPixels);
+        timer.stop(width, height);
     }
 
     public static final int[] GAUSSIAN_FILTER = {
@@ -394,23 +886,65 @@ public class Cartoonify {
      * Adds one new image that is a blurred version of the current image.
      */
     public void gaussianBlur() {
+        final CartoonMetrics.Timer timer = metrics.start("blur");
         long startBlur = System.currentTimeMillis();
-        int[] newPixels = new int[width * height];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int red = clamp(convolution(x, y, GAUSSIAN_FILTER, RED) / GAUSSIAN_SUM);
-                int green = clamp(convolution(x, y, GAUSSIAN_FILTER, GREEN) / GAUSSIAN_SUM);
-                int blue = clamp(convolution(x, y, GAUSSIAN_FILTER, BLUE) / GAUSSIAN_SUM);
-                newPixels[y * width + x] = createPixel(red, green, blue);
+        final int[] oldPixels = currentImage();
+        final int[] newPixels = newImage();
+        final SimdStages vector = filterSimdStages();
+        forEachRowBand((yStart, yEnd) -> {
+            if (vector != null) {
+                vector.blurRows(oldPixels, newPixels, width, height, yStart, yEnd);
+                return;
             }
-        }
+            final RowFilters filters = new RowFilters(width, height, edgePolicy);
+            for (int y = yStart; y < yEnd; y++) {
+                filters.blurRow(oldPixels, y, newPixels, y * width);
+            }
+        });
         pushImage(newPixels);
+        timer.stop(width, height);
         long endBlur = System.currentTimeMillis();
         if (debug) {
             System.out.println("  gaussian blurring took " + (endBlur - startBlur) / 1e3 + " secs.");
         }
     }
 
+    /**
+     * Adds one new image that is a blurred version of the current image,
+     * using the stack blur if a blur radius has been set, otherwise the Gaussian filter.
+     */
+    public void blur() {
+        if (blurRadius > 0) {
+            stackBlur(blurRadius);
+        } else {
+            gaussianBlur();
+        }
+    }
+
+    /**
+     * Adds one new image that is a blurred version of the current image, using a stack blur
+     * (see <code>StackBlur</code>).  This approximates a Gaussian blur, and takes the same time
+     * whatever the radius.  A radius of 2 gives nearly the same result as <code>gaussianBlur()</code>.
+     *
+     * @param radius 1 .. 200.
+     */
+    public void stackBlur(int radius) {
+        final CartoonMetrics.Timer timer = metrics.start("blur");
+        long startBlur = System.currentTimeMillis();
+        final StackBlur stack = new StackBlur(width, height, radius, edgePolicy);
+        final int[] oldPixels = currentImage();
+        final int[] rows = newImage();
+        final int[] newPixels = newImage();
+        forEachRowBand((yStart, yEnd) -> stack.horizontalRows(oldPixels, rows, yStart, yEnd));
+        forEachRowBand((yStart, yEnd) -> stack.verticalRows(rows, newPixels, yStart, yEnd));
+        bufferPool.release(rows);
+        pushImage(newPixels);
+        timer.stop(width, height);
+        long endBlur = System.currentTimeMillis();
+        if (debug) {
+            System.out.println("  stack blurring took    " + (endBlur - startBlur) / 1e3 + " secs.");
+        }
+    }
 
     public static final int[] SOBEL_VERTICAL_FILTER = {
             -1, 0, +1,
@@ -424,6 +958,23 @@ public class Cartoonify {
             -1, -2, -1
     };
 
+    /**
+     * The filters above, compiled ready for convolving whole rows.
+     */
+    static final ConvolutionKernel GAUSSIAN_KERNEL = new ConvolutionKernel(GAUSSIAN_FILTER);
+    static final ConvolutionKernel SOBEL_VERTICAL_KERNEL = new ConvolutionKernel(SOBEL_VERTICAL_FILTER);
+    static final ConvolutionKernel SOBEL_HORIZONTAL_KERNEL = new ConvolutionKernel(SOBEL_HORIZONTAL_FILTER);
+
+    /**
+     * @param pixels an image of the current size.
+     * @return the luma of each pixel, in an array borrowed from the buffer pool.
+     */
+    private int[] lumaImage(int[] pixels) {
+        final int[] luma = newImage();
+        forEachRowBand((yStart, yEnd) -> LumaSobel.lumaPixels(pixels, luma, yStart * width, yEnd * width));
+        return luma;
+    }
+
     /**
      * Detects edges in the current image and adds an image where black pixels
      * mark the edges and the other pixels are all white.
@@ -433,32 +984,134 @@ public class Cartoonify {
      * while large values (e.g. 1000) generate few edges.
      */
     public void sobelEdgeDetect() {
+        final CartoonMetrics.Timer timer = metrics.start("edges");
         long startEdges = System.currentTimeMillis();
-        int[] newPixels = new int[width * height];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int redVertical = convolution(x, y, SOBEL_VERTICAL_FILTER, RED);
-                int greenVertical = convolution(x, y, SOBEL_VERTICAL_FILTER, GREEN);
-                int blueVertical = convolution(x, y, SOBEL_VERTICAL_FILTER, BLUE);
-                int redHorizontal = convolution(x, y, SOBEL_HORIZONTAL_FILTER, RED);
-                int greenHorizontal = convolution(x, y, SOBEL_HORIZONTAL_FILTER, GREEN);
-                int blueHorizontal = convolution(x, y, SOBEL_HORIZONTAL_FILTER, BLUE);
-                int verticalGradient = Math.abs(redVertical) + Math.abs(greenVertical) + Math.abs(blueVertical);
-                int horizontalGradient = Math.abs(redHorizontal) + Math.abs(greenHorizontal) + Math.abs(blueHorizontal);
-                // we could take use sqrt(vertGrad^2 + horizGrad^2), but simple addition catches most edges.
-                int totalGradient = verticalGradient + horizontalGradient;
-                if (totalGradient >= edgeThreshold) {
-                    newPixels[y * width + x] = black; // we colour the edges black
-                } else {
-                    newPixels[y * width + x] = white;
+        final int[] oldPixels = currentImage();
+        final int[] newPixels = newImage();
+        final int[] luma = lumaEdges ? lumaImage(oldPixels) : null;
+        final SimdStages vector = filterSimdStages();
+        forEachRowBand((yStart, yEnd) -> {
+            if (luma != null) {
+                final LumaSobel sobel = new LumaSobel(width, height, edgePolicy);
+                for (int y = yStart; y < yEnd; y++) {
+                    sobel.edgeRow(luma, y, newPixels, y * width, edgeThreshold, black, white);
                 }
+                return;
             }
-        }
+            if (vector != null) {
+                vector.edgeRows(oldPixels, newPixels, width, height, yStart, yEnd, edgeThreshold, black, white);
+                return;
+            }
+            final RowFilters filters = new RowFilters(width, height, edgePolicy);
+            final int[] rowOffsets = new int[SOBEL_VERTICAL_KERNEL.size()];
+            for (int y = yStart; y < yEnd; y++) {
+                SOBEL_VERTICAL_KERNEL.rowOffsets(y, width, height, rowOffsets, edgePolicy);
+                filters.edgeRow(oldPixels, rowOffsets, newPixels, y * width, edgeThreshold, black, white);
+            }
+        });
+        bufferPool.release(luma);
         pushImage(newPixels);
+        timer.stop(width, height);
+        long endEdges = System.currentTimeMillis();
+        if (debug) {
+            System.out.println("  sobel edge detect took " + (endEdges - startEdges) / 1e3 + " secs.");
+        }
+    }
+
+    /**
+     * Detects edges in the current image, like <code>sobelEdgeDetect</code>, but returns
+     * them as a mask with one bit per pixel instead of pushing an edge image.
+     *
+     * @return a new mask, which is set where the pixels are edges.
+     */
+    public EdgeMask sobelEdgeMask() {
+        final CartoonMetrics.Timer timer = metrics.start("edges");
+        long startEdges = System.currentTimeMillis();
+        final int[] oldPixels = currentImage();
+        final EdgeMask mask = new EdgeMask(width, height);
+        final long[] words = mask.words();
+        final int wordsPerRow = mask.wordsPerRow();
+        final int[] luma = lumaEdges ? lumaImage(oldPixels) : null;
+        final SimdStages vector = filterSimdStages();
+        forEachRowBand((yStart, yEnd) -> {
+            if (luma != null) {
+                final LumaSobel sobel = new LumaSobel(width, height, edgePolicy);
+                for (int y = yStart; y < yEnd; y++) {
+                    sobel.edgeMaskRow(luma, y, words, y * wordsPerRow, edgeThreshold);
+                }
+                return;
+            }
+            if (vector != null) {
+                vector.edgeMaskRows(oldPixels, words, wordsPerRow, width, height, yStart, yEnd, edgeThreshold);
+                return;
+            }
+            final RowFilters filters = new RowFilters(width, height, edgePolicy);
+            final int[] rowOffsets = new int[SOBEL_VERTICAL_KERNEL.size()];
+            for (int y = yStart; y < yEnd; y++) {
+                SOBEL_VERTICAL_KERNEL.rowOffsets(y, width, height, rowOffsets, edgePolicy);
+                filters.edgeMaskRow(oldPixels, rowOffsets, words, y * wordsPerRow, edgeThreshold);
+            }
+        });
+        bufferPool.release(luma);
+        timer.stop(width, height);
         long endEdges = System.currentTimeMillis();
         if (debug) {
             System.out.println("  sobel edge detect took " + (endEdges - startEdges) / 1e3 + " secs.");
         }
+        return mask;
+    }
+
+    /**
+     * Adds a new "image" that holds the total Sobel gradient of each pixel of the current image,
+     * rather than a colour.  This is the value that <code>sobelEdgeDetect</code> compares with
+     * the edge threshold, so <code>thresholdEdges</code> can turn it into the same edge image
+     * for any threshold, without doing the edge detection again.
+     * <p>
+     * This always runs on the CPU without SIMD, even if <code>isSimd()</code> is true.
+     */
+    public void sobelGradient() {
+        final CartoonMetrics.Timer timer = metrics.start("gradient");
+        final int[] oldPixels = currentImage();
+        final int[] newPixels = newImage();
+        final int[] luma = lumaEdges ? lumaImage(oldPixels) : null;
+        forEachRowBand((yStart, yEnd) -> {
+            if (luma != null) {
+                final LumaSobel sobel = new LumaSobel(width, height, edgePolicy);
+                for (int y = yStart; y < yEnd; y++) {
+                    sobel.gradientRow(luma, y, newPixels, y * width);
+                }
+                return;
+            }
+            final RowFilters filters = new RowFilters(width, height, edgePolicy);
+            final int[] rowOffsets = new int[SOBEL_VERTICAL_KERNEL.size()];
+            for (int y = yStart; y < yEnd; y++) {
+                SOBEL_VERTICAL_KERNEL.rowOffsets(y, width, height, rowOffsets, edgePolicy);
+                filters.gradientRow(oldPixels, rowOffsets, newPixels, y * width);
+            }
+        });
+        bufferPool.release(luma);
+        pushImage(newPixels);
+        timer.stop(width, height);
+    }
+
+    /**
+     * Adds a new image where black pixels mark the edges and the other pixels are all white,
+     * using the gradients from <code>sobelGradient</code>.
+     *
+     * @param gradientImage the number/position of the gradients (as for cloneImage).
+     * @param edgeThreshold the total gradient at which a pixel counts as an edge.
+     */
+    public void thresholdEdges(int gradientImage, int edgeThreshold) {
+        final CartoonMetrics.Timer timer = metrics.start("threshold");
+        final int[] gradients = pixels[stackPosition(gradientImage)];
+        final int[] newPixels = newImage();
+        forEachRowBand((yStart, yEnd) -> {
+            for (int i = yStart * width; i < yEnd * width; i++) {
+                newPixels[i] = gradients[i] >= edgeThreshold ? black : white;
+            }
+        });
+        pushImage(newPixels);
+        timer.stop(width, height);
     }
 
     /**
@@ -469,19 +1122,8 @@ public class Cartoonify {
      */
     public void reduceColours() {
         long startQuantize = System.currentTimeMillis();
-        int[] oldPixels = currentImage();
-        int[] newPixels = new int[width * height];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int rgb = oldPixels[y * width + x];
-                int newRed = quantizeColour(red(rgb), numColours);
-                int newGreen = quantizeColour(green(rgb), numColours);
-                int newBlue = quantizeColour(blue(rgb), numColours);
-                int newRGB = createPixel(newRed, newGreen, newBlue);
-                newPixels[y * width + x] = newRGB;
-            }
-        }
-        pushImage(newPixels);
+        // a table lookup per channel is faster than the SIMD arithmetic, so this has no SIMD version.
+        applyOperator("colours", PointOperator.quantize(numColours));
         long endQuantize = System.currentTimeMillis();
         if (debug) {
             System.out.println("  colour reduction took  " + (endQuantize - startQuantize) / 1e3 + " secs.");
@@ -508,12 +1150,7 @@ public class Cartoonify {
      * @return a discrete colour value (0..COLOUR_MASK).
      */
     int quantizeColour(int colourValue, int numPerChannel) {
-        float colour = colourValue / (COLOUR_MASK + 1.0f) * numPerChannel;
-        int discrete = Math.round(colour - 0.5f);
-        assert 0 <= discrete && discrete < numPerChannel;
-        int newColour = discrete * COLOUR_MASK / (numPerChannel - 1);
-        assert 0 <= newColour && newColour <= COLOUR_MASK;
-        return newColour;
+        return FrameOps.quantizeColour(colourValue, numPerChannel);
     }
 
     /**
@@ -529,23 +1166,55 @@ public class Cartoonify {
      * @param otherImage the number/position of the underneath image.
      */
     public void mergeMask(int maskImage, int maskColour, int otherImage) {
+        final CartoonMetrics.Timer timer = metrics.start("merge");
         long startMasking = System.currentTimeMillis();
-        cloneImage(maskImage);
-        int[] maskPixels = popImage();
-        cloneImage(otherImage);
-        int[] photoPixels = popImage();
-        int[] newPixels = new int[width * height];
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                int index = y * width + x;
-                if (maskPixels[index] == maskColour) {
-                    newPixels[index] = photoPixels[index];
-                } else {
-                    newPixels[index] = maskPixels[index];
+        // the input images are only read, so there is no need to copy them.
+        final int[] maskPixels = pixels[stackPosition(maskImage)];
+        final int[] photoPixels = pixels[stackPosition(otherImage)];
+        final int[] newPixels = newImage();
+        final SimdStages vector = simdStages();
+        forEachRowBand((yStart, yEnd) -> {
+            if (vector != null) {
+                vector.mergePixels(maskPixels, maskColour, photoPixels, newPixels, yStart * width, yEnd * width);
+                return;
+            }
+            for (int y = yStart; y < yEnd; y++) {
+                for (int x = 0; x < width; x++) {
+                    int index = y * width + x;
+                    if (maskPixels[index] == maskColour) {
+                        newPixels[index] = photoPixels[index];
+                    } else {
+                        newPixels[index] = maskPixels[index];
+                    }
                 }
             }
+        });
+        pushImage(newPixels);
+        timer.stop(width, height);
+        long endMasking = System.currentTimeMillis();
+        if (debug) {
+            System.out.println("  masking edges took     " + (endMasking - startMasking) / 1e3 + " secs.");
+        }
+    }
+
+    /**
+     * Merges an edge mask on top of another image: the edge pixels are black,
+     * and the other pixels are the same as in the other image.
+     *
+     * @param mask       the edges, which must be the same size as the images.
+     * @param otherImage the number/position of the underneath image (as for cloneImage).
+     */
+    public void mergeMask(EdgeMask mask, int otherImage) {
+        if (mask.width() != width || mask.height() != height) {
+            throw new IllegalArgumentException("Incorrect mask size: " + mask.width() + "x" + mask.height());
         }
+        final CartoonMetrics.Timer timer = metrics.start("merge");
+        long startMasking = System.currentTimeMillis();
+        final int[] photoPixels = pixels[stackPosition(otherImage)];
+        final int[] newPixels = newImage();
+        forEachRowBand((yStart, yEnd) -> mask.mergeRows(photoPixels, black, newPixels, yStart, yEnd));
         pushImage(newPixels);
+        timer.stop(width, height);
         long endMasking = System.currentTimeMillis();
         if (debug) {
             System.out.println("  masking edges took     " + (endMasking - startMasking) / 1e3 + " secs.");
@@ -571,153 +1240,46 @@ public class Cartoonify {
      * @return the sum of multiplying the requested colour of each pixel by its filter factor.
      */
     int convolution(int xCentre, int yCentre, int[] filter, int colour) {
-        int sum = 0;
-        // find the width and height of the filter matrix, which must be square.
-        int filterSize = 1;
-        while (filterSize * filterSize < filter.length) {
-            filterSize++;
-        }
-        if (filterSize * filterSize != filter.length) {
-            throw new IllegalArgumentException("non-square filter: " + Arrays.toString(filter));
-        }
-        final int filterHalf = filterSize / 2;
-
-        /**
-         * Unroll the for-loops
-         */
-        if (filterSize == 3) {
-            int y0 = wrap(yCentre - 1, height);
-            int y1 = wrap(yCentre, height);
-            int y2 = wrap(yCentre + 1, height);
-            int x0 = wrap(xCentre - 1, width);
-            int x1 = wrap(xCentre, width);
-            int x2 = wrap(xCentre + 1, width);
-
-            int rgb = pixel(x0, y0);
-            sum += colourValue(rgb, colour) * filter[0];
-
-            rgb = pixel(x1, y0);
-            sum += colourValue(rgb, colour) * filter[1];
-
-            rgb = pixel(x2, y0);
-            sum += colourValue(rgb, colour) * filter[2];
-
-            rgb = pixel(x0, y1);
-            sum += colourValue(rgb, colour) * filter[3];
-
-            rgb = pixel(x1, y1);
-            sum += colourValue(rgb, colour) * filter[4];
-
-            rgb = pixel(x2, y1);
-            sum += colourValue(rgb, colour) * filter[5];
-
-            rgb = pixel(x0, y2);
-            sum += colourValue(rgb, colour) * filter[6];
-
-            rgb = pixel(x1, y2);
-            sum += colourValue(rgb, colour) * filter[7];
-
-            rgb = pixel(x2, y2);
-            sum += colourValue(rgb, colour) * filter[8];
-        } else if (filterSize == 5) {
-            int y0 = wrap(yCentre - 2, height);
-            int y1 = wrap(yCentre - 1, height);
-            int y2 = wrap(yCentre, height);
-            int y3 = wrap(yCentre + 1, height);
-            int y4 = wrap(yCentre + 2, height);
-            int x0 = wrap(xCentre - 2, width);
-            int x1 = wrap(xCentre - 1, width);
-            int x2 = wrap(xCentre, width);
-            int x3 = wrap(xCentre + 1, width);
-            int x4 = wrap(xCentre + 2, width);
-
-            int rgb = pixel(x0, y0);
-            sum += colourValue(rgb, colour) * filter[0];
-
-            rgb = pixel(x1, y0);
-            sum += colourValue(rgb, colour) * filter[1];
-
-            rgb = pixel(x2, y0);
-            sum += colourValue(rgb, colour) * filter[2];
-
-            rgb = pixel(x3, y0);
-            sum += colourValue(rgb, colour) * filter[3];
-
-            rgb = pixel(x4, y0);
-            sum += colourValue(rgb, colour) * filter[4];
-
-            rgb = pixel(x0, y1);
-            sum += colourValue(rgb, colour) * filter[5];
-
-            rgb = pixel(x1, y1);
-            sum += colourValue(rgb, colour) * filter[6];
-
-            rgb = pixel(x2, y1);
-            sum += colourValue(rgb, colour) * filter[7];
-
-            rgb = pixel(x3, y1);
-            sum += colourValue(rgb, colour) * filter[8];
-
-            rgb = pixel(x4, y1);
-            sum += colourValue(rgb, colour) * filter[9];
-
-            rgb = pixel(x0, y2);
-            sum += colourValue(rgb, colour) * filter[10];
-
-            rgb = pixel(x1, y2);
-            sum += colourValue(rgb, colour) * filter[11];
-
-            rgb = pixel(x2, y2);
-            sum += colourValue(rgb, colour) * filter[12];
-
-            rgb = pixel(x3, y2);
-            sum += colourValue(rgb, colour) * filter[13];
-
-            rgb = pixel(x4, y2);
-            sum += colourValue(rgb, colour) * filter[14];
-
-            rgb = pixel(x0, y3);
-            sum += colourValue(rgb, colour) * filter[15];
-
-            rgb = pixel(x1, y3);
-            sum += colourValue(rgb, colour) * filter[16];
-
-            rgb = pixel(x2, y3);
-            sum += colourValue(rgb, colour) * filter[17];
-
-            rgb = pixel(x3, y3);
-            sum += colourValue(rgb, colour) * filter[18];
-
-            rgb = pixel(x4, y3);
-            sum += colourValue(rgb, colour) * filter[19];
-
-            rgb = pixel(x0, y4);
-            sum += colourValue(rgb, colour) * filter[20];
+        return compiledKernel(filter).convolve(currentImage(), width, height, xCentre, yCentre, colour, edgePolicy);
+    }
 
-            rgb = pixel(x1, y4);
-            sum += colourValue(rgb, colour) * filter[21];
+    /**
+     * The most recently compiled kernel for any other filter, and a copy of that filter.
+     * Both are replaced together, so threads that call <code>convolution</code> at the same time
+     * always see a matching pair.
+     */
+    private static volatile CompiledFilter lastCompiled;
 
-            rgb = pixel(x2, y4);
-            sum += colourValue(rgb, colour) * filter[22];
+    private static final class CompiledFilter {
+        final int[] filter;
+        final ConvolutionKernel kernel;
 
-            rgb = pixel(x3, y4);
-            sum += colourValue(rgb, colour) * filter[23];
+        CompiledFilter(int[] filter) {
+            this.filter = filter.clone();
+            this.kernel = new ConvolutionKernel(filter);
+        }
+    }
 
-            rgb = pixel(x4, y4);
-            sum += colourValue(rgb, colour) * filter[24];
-        } else {
-            for (int filterY = 0; filterY < filterSize; filterY++) {
-                int y = wrap(yCentre + filterY - filterHalf, height);
-                for (int filterX = 0; filterX < filterSize; filterX++) {
-                    int x = wrap(xCentre + filterX - filterHalf, width);
-                    int rgb = pixel(x, y);
-                    int filterVal = filter[filterY * filterSize + filterX];
-                    sum += colourValue(rgb, colour) * filterVal;
-                }
-            }
+    /**
+     * @param filter a 2D square matrix, laid out in row-major order in a 1D array.
+     * @return the precompiled kernel for one of the standard filters, otherwise the kernel
+     *         compiled for this filter the last time it was used, unless another filter has been used since.
+     */
+    private static ConvolutionKernel compiledKernel(int[] filter) {
+        if (filter == GAUSSIAN_FILTER) {
+            return GAUSSIAN_KERNEL;
+        } else if (filter == SOBEL_VERTICAL_FILTER) {
+            return SOBEL_VERTICAL_KERNEL;
+        } else if (filter == SOBEL_HORIZONTAL_FILTER) {
+            return SOBEL_HORIZONTAL_KERNEL;
         }
-//         System.out.println("convolution(" + xCentre + ", " + yCentre + ") = " + sum);
-        return sum;
+        CompiledFilter compiled = lastCompiled;
+        // the contents are compared, in case the caller has changed the array since.
+        if (compiled == null || !Arrays.equals(compiled.filter, filter)) {
+            compiled = new CompiledFilter(filter);
+            lastCompiled = compiled;
+        }
+        return compiled.kernel;
     }
 
     /**
@@ -726,27 +1288,14 @@ public class Cartoonify {
      * Different strategies are possible for this, such as wrapping around,
      * clamping to 0 and size-1, or reflecting off the edge.
      * <p>
-     * The current implementation reflects off each edge.
+     * This uses the <code>getEdgePolicy()</code> strategy, which clamps by default.
      *
      * @param pos  an index that might be slightly outside the image boundaries.
      * @param size the width of the image (for x value) or the height (for y values).
      * @return the new index, which is in the range <code>0 .. size-1</code>.
      */
     public int wrap(int pos, int size) {
-        /*Original implementation*/
-//        if (pos < 0) {
-//            pos = -1 - pos;
-//        } else if (pos >= size) {
-//            pos = (size - 1) - (pos - size);
-//        }
-//        assert 0 <= pos;
-//        assert pos < size;
-//        return pos;
-
-        /**
-         * Alternative wrap method
-         */
-        return pos < 0 ? 0 : pos >= size ? size - 1 : pos;
+        return edgePolicy.index(pos, size);
     }
 
     /**
@@ -839,13 +1388,15 @@ public class Cartoonify {
      * Processes one input photo, applying all the desired transformations to it.
      * Saves the resulting photo in a new file of the same type.
      * E.g. if the input file is "foo.jpg" the output file will be "foo_cartoon.jpg".
+     * If there is an encoder (see <code>setEncoder</code>), the results are saved in the background,
+     * so they may not be written until the encoder is closed.
      *
      * @param name path to the photo, including a known extension (e.g. ".jpg").
-     * @return the number of milliseconds to process this photo (excluding loading/saving).
+     * @return the number of milliseconds to process this photo (excluding loading/saving),
+     *         or <code>CACHED</code> if its cartoon was copied from the result cache.
      * @throws IOException
      */
     protected long processPhoto(String name) throws IOException {
-        //no need to change the implementation of this method
         int dot = name.lastIndexOf(".");
         if (dot <= 0) {
             System.err.println("Skipping unknown kind of file: " + name);
@@ -853,111 +1404,116 @@ public class Cartoonify {
         }
         final String baseName = name.substring(0, dot);
         final String extn = name.substring(dot).toLowerCase();
-        loadPhoto(name);
+        if (sweepThresholds != null) {
+            return new ParameterSweep(this, sweepThresholds, sweepColours).process(name);
+        }
         final String newName = baseName + "_cartoon" + extn;
+        if (frameSequence != null) {
+            return processFrame(name, newName);
+        }
+        final String cacheKey = resultCacheKey(name, extn);
+        if (cacheKey != null && resultCache.get(cacheKey, Paths.get(newName))) {
+            System.out.println("Cached " + name + " -> " + newName);
+            return CACHED;
+        }
+        if (stripRows > 0) {
+            final long millis = processPhotoInStrips(name, newName);
+            cacheResult(cacheKey, newName);
+            return millis;
+        }
+        loadPhoto(name);
         //Please do NOT change the start of time measurement
         final long time0 = System.currentTimeMillis();
-        if (useGPU) {
-            processPhotoOpenCL();
-        } else {
-            processPhotoOnCPU();
-        }
+        final CartoonMetrics.Timer timer = metrics.start("process");
+        CartoonBackends.find(backend).process(this);
+        timer.stop(width, height);
         //Please do NOT change the end of time measurement
         long time1 = System.currentTimeMillis();
         //Please do NOT remove or change this output message
         System.out.println("Done " + name + " -> " + newName + " in " + (time1 - time0) / 1e3 + " secs.");
-        savePhoto(newName);
-        if (debug) {
-            // At this stage the stack of images is (from bottom to top):
-            //  original, blurred, edges, original, quantized, final
-            popImage();
-            savePhoto(baseName + "_colours" + extn);
-            popImage();
-            popImage();
-            savePhoto(baseName + "_edges" + extn);
-            popImage();
-            savePhoto(baseName + "_blurred" + extn);
-            popImage();
-            assert numImages() == 1;
-        }
+        final Map<String, int[]> results = popResults(baseName, extn);
         clear();
+        if (encoder != null) {
+            // the popped arrays are no longer on the stack, so nothing changes them while they are encoded.
+            for (Map.Entry<String, int[]> result : results.entrySet()) {
+                final boolean cartoon = result.getKey().equals(newName);
+                encoder.save(result.getKey(), result.getValue(), width, height,
+                        cartoon ? () -> cacheResult(cacheKey, newName) : null);
+            }
+            return time1 - time0;
+        }
+        for (Map.Entry<String, int[]> result : results.entrySet()) {
+            final CartoonMetrics.Timer encode = metrics.start("encode");
+            writeImage(result.getValue(), width, height, result.getKey());
+            encode.stop(width, height);
+            bufferPool.release(result.getValue());
+        }
+        cacheResult(cacheKey, newName);
         return time1 - time0;
     }
 
-
     /**
-     * Implement this method to process one input photo on GPU or GPU and CPU
+     * Processes one photo a strip at a time, so that it never needs to be all in memory.
+     * <p>
+     * Only the final image is saved, even if debugging is on.  Since the decoding and
+     * encoding of the strips is interleaved with their processing, the time includes them.
+     *
+     * @param name    path to the photo.
+     * @param newName path to save the result as.
+     * @return the number of milliseconds to read, process and save this photo.
+     * @throws IOException
      */
-    protected void processPhotoOpenCL() {
-        gaussianBlur_sobelEdgeDetect_OpenCL();
-        int edgeMask = numImages() - 1;
-        // now convert the original image into a few discrete colours
-        cloneImage(0);
-        reduceColours();
-        mergeMask(edgeMask, white, -1);
+    private long processPhotoInStrips(String name, String newName) throws IOException {
+        final long time0 = System.currentTimeMillis();
+        new StripProcessor(this, stripRows).process(name, newName);
+        final long time1 = System.currentTimeMillis();
+        System.out.println("Done " + name + " -> " + newName + " in " + (time1 - time0) / 1e3 + " secs.");
+        return time1 - time0;
     }
 
     /**
-     * GPU version:
-     *
-     *  Adds one new image that is a blurred version of the current image.
+     * Processes one frame of a sequence, recomputing only the parts that changed since the previous frame.
+     * <p>
+     * Only the final image is saved, even if debugging is on.
      *
-     *  Detects edges in the current image and adds an image where black pixels
-     *  mark the edges and the other pixels are all white.
+     * @param name    path to the frame.
+     * @param newName path to save the result as.
+     * @return the number of milliseconds to process this frame (excluding loading/saving).
+     * @throws IOException
      */
-    private void gaussianBlur_sobelEdgeDetect_OpenCL() {
-        long startBlur = System.currentTimeMillis();
-
-        final int length = width * height;
-        final int workgroupsize = 64; //the preferred group size multiple on my machine
-
-        //Create an OpenCL queue on the first device of this context.
-        CLQueue queue1 = context.createDefaultQueue();
-        CLQueue queue2 = context.createDefaultQueue();
-
-        // Allocate OpenCL-hosted memory
-        CLBuffer<Integer> memIn = context.createIntBuffer(CLMem.Usage.Input, length);
-        CLBuffer<Integer> memInOut = context.createIntBuffer(CLMem.Usage.InputOutput, length);
-        CLBuffer<Integer> memOut = context.createIntBuffer(CLMem.Usage.Output, length);
-
-
-        // Map input buffers to populate them with some data
-        Pointer<Integer> a = memIn.map(queue1, CLMem.MapFlags.Write);
-
-        //Fill the arrays with image
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                a.setIntAtIndex(y * width + x, pixel(x, y));
-            }
-        }
-
-        //Unmap input buffers
-        memIn.unmap(queue1, a);
-
-        CLProgram program = context.createProgram(source).build();
-        CLKernel blurKernel = program.createKernel("gaussianBlur", memIn, memInOut, width, height);
-        CLKernel edgeKernel = program.createKernel("sobelEdgeDetect", memInOut, memOut, width, height, edgeThreshold);
-
-        CLEvent blurEvent = blurKernel.enqueueNDRange(queue1, new int[]{length}, new int[]{workgroupsize});
-        CLEvent edgeEvent = edgeKernel.enqueueNDRange(queue2, new int[]{length}, new int[]{workgroupsize}, blurEvent);
-
-        //Execution begins when the user executes a synchronizing command,
-        queue2.flush();
-        queue1.flush();
-
-        // Wait for all operations to be performed
-        queue1.finish();
-        queue2.finish();
-
-        Pointer<Integer> output1 = memInOut.read(queue1);
-        Pointer<Integer> output2 = memOut.read(queue2);
+    private long processFrame(String name, String newName) throws IOException {
+        final long millis = frameSequence.processFile(name, newName);
+        System.out.format("Done %s -> %s in %.3f secs (recomputed %.1f%% of the frame).%n",
+                name, newName, millis / 1e3, 100 * frameSequence.lastDirtyFraction());
+        return millis;
+    }
 
-        pushImage(output1.getInts());
-        pushImage(output2.getInts());
-        long endBlur = System.currentTimeMillis();
+    /**
+     * Pops the images that should be saved after processing a photo off the stack.
+     * <p>
+     * This is the final cartoon image, plus the intermediate images if debugging is on.
+     * The popped arrays belong to the caller.  The original photo, and any other
+     * intermediate images, are left on the stack.
+     *
+     * @param baseName the name of the input photo, without its extension.
+     * @param extn     the extension of the input photo, including the dot.
+     * @return the file name that each image should be saved as, mapped to its pixels.
+     */
+    protected Map<String, int[]> popResults(String baseName, String extn) {
+        final Map<String, int[]> results = new LinkedHashMap<>();
         if (debug) {
-            System.out.println("  gaussian blurring and sobel Edge Detect took " + (endBlur - startBlur) / 1e3 + " secs.");
+            // At this stage the stack of images is (from bottom to top):
+            //  original, blurred, edges, original, quantized, final
+            results.put(baseName + "_cartoon" + extn, popImage());
+            results.put(baseName + "_colours" + extn, popImage());
+            dropImage();
+            results.put(baseName + "_edges" + extn, popImage());
+            results.put(baseName + "_blurred" + extn, popImage());
+            assert numImages() == 1;
+        } else {
+            results.put(baseName + "_cartoon" + extn, popImage());
         }
+        return results;
     }
 
 
@@ -965,17 +1521,125 @@ public class Cartoonify {
      * Process one input photo step-by-step on CPU
      */
     protected void processPhotoOnCPU() {
-        // no need to change the implementation of this method
         // This sequence of processing commands is done to every photo.
-        gaussianBlur();
-        sobelEdgeDetect();
-        int edgeMask = numImages() - 1;
+        blur();
+        // the edges are kept as a bit mask, and only turned into an image if it will be saved.
+        final EdgeMask edges = sobelEdgeMask();
+        if (debug) {
+            pushImage(edges.toPixels(newImage(), black, white));
+        }
         // now convert the original image into a few discrete colours
         cloneImage(0);
         reduceColours();
-        mergeMask(edgeMask, white, -1);
+        mergeMask(edges, -1);
+    }
+
+
+    /**
+     * Process one input photo on CPU, in one fused pass.
+     * <p>
+     * This pushes just one new image: the same result as <code>processPhotoOnCPU</code>.
+     * Each band of rows is processed from top to bottom by <code>FrameOps.cartoonRows</code>,
+     * keeping a rolling window of the three blurred rows that the edge detection needs, then
+     * the colour reduction and edge mask are applied to each output pixel as soon as its edge is known.
+     */
+    protected void processPhotoFused() {
+        final CartoonMetrics.Timer timer = metrics.start("fused");
+        final int[] original = currentImage();
+        final int[] newPixels = newImage();
+        forEachRowBand((yStart, yEnd) ->
+                FrameOps.cartoonRows(original, newPixels, width, height, yStart, yEnd, edgeThreshold, numColours));
+        pushImage(newPixels);
+        timer.stop(width, height);
     }
 
+    /**
+     * Process one input photo on CPU, using a separate plane for each colour channel.
+     * <p>
+     * This does the same stages as <code>processPhotoOnCPU</code>, and pushes the same
+     * final image.  The intermediate images are only converted back to packed pixels
+     * and pushed when debugging, so that they can be saved.
+     * The edges are kept as an 8-bit mask, where 0xFF means an edge and 0 means no edge,
+     * so that masking the edges is just a bitwise AND of each colour value.
+     */
+    protected void processPhotoPlanar() {
+        final CartoonMetrics.Timer timer = metrics.start("planar");
+        long startBlur = System.currentTimeMillis();
+        final PlanarImage original = PlanarImage.fromPacked(currentImage(), width, height);
+        final PlanarImage blurred = new PlanarImage(width, height);
+        forEachRowBand((yStart, yEnd) -> {
+            final int[] sums = new int[width];
+            final int[] rowOffsets = new int[GAUSSIAN_KERNEL.size()];
+            for (int colour = BLUE; colour <= RED; colour++) {
+                final byte[] src = original.plane(colour);
+                final byte[] dest = blurred.plane(colour);
+                for (int y = yStart; y < yEnd; y++) {
+                    GAUSSIAN_KERNEL.convolvePlaneRow(src, GAUSSIAN_KERNEL.rowOffsets(y, width, height, rowOffsets),
+                            width, sums);
+                    for (int x = 0; x < width; x++) {
+                        dest[y * width + x] = (byte) clamp(sums[x] / GAUSSIAN_SUM);
+                    }
+                }
+            }
+        });
+        long startEdges = System.currentTimeMillis();
+        final byte[] edges = new byte[width * height];
+        forEachRowBand((yStart, yEnd) -> {
+            final int[] vertical = new int[width];
+            final int[] horizontal = new int[width];
+            final int[] gradient = new int[width];
+            final int[] rowOffsets = new int[SOBEL_VERTICAL_KERNEL.size()];
+            for (int y = yStart; y < yEnd; y++) {
+                SOBEL_VERTICAL_KERNEL.rowOffsets(y, width, height, rowOffsets);
+                Arrays.fill(gradient, 0);
+                for (int colour = BLUE; colour <= RED; colour++) {
+                    SOBEL_VERTICAL_KERNEL.convolvePlaneRow(blurred.plane(colour), rowOffsets, width, vertical);
+                    SOBEL_HORIZONTAL_KERNEL.convolvePlaneRow(blurred.plane(colour), rowOffsets, width, horizontal);
+                    for (int x = 0; x < width; x++) {
+                        gradient[x] += Math.abs(vertical[x]) + Math.abs(horizontal[x]);
+                    }
+                }
+                for (int x = 0; x < width; x++) {
+                    edges[y * width + x] = gradient[x] >= edgeThreshold ? (byte) 0xFF : 0;
+                }
+            }
+        });
+        long startQuantize = System.currentTimeMillis();
+        final byte[] table = new byte[COLOUR_MASK + 1];
+        for (int value = 0; value <= COLOUR_MASK; value++) {
+            table[value] = (byte) quantizeColour(value, numColours);
+        }
+        final PlanarImage quantized = new PlanarImage(width, height);
+        final PlanarImage merged = new PlanarImage(width, height);
+        forEachRowBand((yStart, yEnd) -> {
+            for (int colour = BLUE; colour <= RED; colour++) {
+                final byte[] src = original.plane(colour);
+                final byte[] reduced = quantized.plane(colour);
+                final byte[] dest = merged.plane(colour);
+                for (int i = yStart * width; i < yEnd * width; i++) {
+                    reduced[i] = table[src[i] & 0xFF];
+                    dest[i] = (byte) (reduced[i] & ~edges[i]); // edges are black
+                }
+            }
+        });
+        timer.stop(width, height);
+        long endMasking = System.currentTimeMillis();
+        if (debug) {
+            System.out.println("  planar gaussian blurring took " + (startEdges - startBlur) / 1e3 + " secs.");
+            System.out.println("  planar sobel edge detect took " + (startQuantize - startEdges) / 1e3 + " secs.");
+            System.out.println("  planar colours and masking took " + (endMasking - startQuantize) / 1e3 + " secs.");
+            // push the same intermediate images as processPhotoOnCPU, so they can be saved.
+            pushImage(blurred.toPacked(newImage()));
+            final int[] edgePixels = newImage();
+            for (int i = 0; i < edgePixels.length; i++) {
+                edgePixels[i] = edges[i] == 0 ? white : black;
+            }
+            pushImage(edgePixels);
+            cloneImage(0);
+            pushImage(quantized.toPacked(newImage()));
+        }
+        pushImage(merged.toPacked(newImage()));
+    }
 
     /**
      * Uses the given command line arguments to set Cartoonify options.
@@ -987,35 +1651,160 @@ public class Cartoonify {
     protected int setFlags(String[] args, int firstArg) {
         int currArg = firstArg;
         if ("-g".equals(args[currArg])) {
-            useGPU = true;
+            setBackend("opencl");
             currArg += 1;
         }
         if ("-d".equals(args[currArg])) {
             setDebug(true);
             currArg += 1;
         }
+        if ("-f".equals(args[currArg])) {
+            setBackend("fused");
+            currArg += 1;
+        }
+        if ("-s".equals(args[currArg])) {
+            setBackend("planar");
+            currArg += 1;
+        }
+        if ("-v".equals(args[currArg])) {
+            setSimd(true);
+            currArg += 1;
+        }
+        if ("-b".equals(args[currArg])) {
+            setBackend(args[currArg + 1]);
+            System.out.println("Using the " + getBackend() + " backend.");
+            currArg += 2;
+        }
         if ("-e".equals(args[currArg])) {
             setEdgeThreshold(Integer.parseInt(args[currArg + 1]));
             System.out.println("Using edge threshold " + getEdgeThreshold());
             currArg += 2;
         }
+        if ("-y".equals(args[currArg])) {
+            setLumaEdges(true);
+            System.out.println("Detecting edges in the luminance only.");
+            currArg += 1;
+        }
+        if ("-x".equals(args[currArg])) {
+            setEdgePolicy(EdgePolicy.valueOf(args[currArg + 1].toUpperCase()));
+            System.out.println("Using the " + getEdgePolicy() + " edge policy.");
+            currArg += 2;
+        }
         if ("-c".equals(args[currArg])) {
             setNumColours(Integer.parseInt(args[currArg + 1]));
             System.out.println("Using " + getNumColours() + " discrete colours per channel.");
             currArg += 2;
         }
+        if ("-r".equals(args[currArg])) {
+            setBlurRadius(Integer.parseInt(args[currArg + 1]));
+            System.out.println("Using a stack blur of radius " + getBlurRadius() + ".");
+            currArg += 2;
+        }
+        if ("-p".equals(args[currArg])) {
+            setThreads(Integer.parseInt(args[currArg + 1]));
+            System.out.println("Using " + getThreads() + " threads on the CPU.");
+            currArg += 2;
+        } else if ("parallel".equals(backend)) {
+            // resolved once here, so every photo reuses the same thread pool.
+            setThreads(Runtime.getRuntime().availableProcessors());
+        }
+        if ("-j".equals(args[currArg])) {
+            String[] stages = args[currArg + 1].split(",");
+            if (stages.length != 3) {
+                throw new IllegalArgumentException("-j needs three thread counts, Decode,Process,Encode, not " + args[currArg + 1]);
+            }
+            batchThreads = new int[3];
+            for (int i = 0; i < 3; i++) {
+                batchThreads[i] = Integer.parseInt(stages[i].trim());
+            }
+            System.out.println("Pipelining photos with " + batchThreads[0] + " decode, "
+                    + batchThreads[1] + " process and " + batchThreads[2] + " encode threads.");
+            currArg += 2;
+        }
+        if ("-m".equals(args[currArg])) {
+            printMetrics = true;
+            currArg += 1;
+        }
+        if ("-t".equals(args[currArg])) {
+            stripRows = Integer.parseInt(args[currArg + 1]);
+            if (stripRows < 1) {
+                throw new IllegalArgumentException("strips must have at least one row, not " + stripRows);
+            }
+            System.out.println("Processing each photo in strips of " + stripRows + " rows.");
+            currArg += 2;
+        }
+        if ("-w".equals(args[currArg])) {
+            sweepThresholds = parseInts(args[currArg + 1]);
+            sweepColours = parseInts(args[currArg + 2]);
+            System.out.println("Sweeping edge thresholds " + Arrays.toString(sweepThresholds)
+                    + " and colours " + Arrays.toString(sweepColours) + ".");
+            currArg += 3;
+        }
+        if ("-k".equals(args[currArg])) {
+            final long maxMB = Long.parseLong(args[currArg + 2]);
+            try {
+                setResultCache(new ResultCache(Paths.get(args[currArg + 1]), maxMB * 1024 * 1024));
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("cannot open result cache " + args[currArg + 1], ex);
+            }
+            System.out.println("Caching results in " + args[currArg + 1] + " (up to " + maxMB + " MB).");
+            currArg += 3;
+        }
+        if ("-q".equals(args[currArg])) {
+            final int tileSize = Integer.parseInt(args[currArg + 1]);
+            frameSequence = new FrameSequence(this, tileSize);
+            System.out.println("Processing the photos as a sequence of frames, in tiles of " + tileSize + " pixels.");
+            currArg += 2;
+        }
+        if ("-l".equals(args[currArg])) {
+            serverPort = Integer.parseInt(args[currArg + 1]);
+            currArg += 2;
+        }
         return currArg;
     }
 
+    /**
+     * @param list comma-separated integers, such as "64,128,256".
+     * @return the integers.
+     */
+    private static int[] parseInts(String list) {
+        final String[] values = list.split(",");
+        final int[] result = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = Integer.parseInt(values[i].trim());
+        }
+        return result;
+    }
+
     /**
      * Prints a help/usage message to standard output.
      */
     public void help() {
-        System.out.println("Arguments: [-g] [-d] [-e EdgeThreshold] [-c NumColours] photo1.jpg photo2.jpg ...");
-        System.out.println("  -g use the GPU, to speed up photo processing.");
+        System.out.println("Arguments: [-g] [-d] [-f] [-s] [-v] [-b Backend] [-e EdgeThreshold] [-y] [-x EdgePolicy] [-c NumColours] [-r BlurRadius] [-p NumThreads] [-j D,P,E] [-m] [-t StripRows] [-w E1,E2,.. C1,C2,..] [-k CacheDir MaxMB] [-q TileSize] [-l Port] photo1.jpg photo2.jpg ...");
+        System.out.println("  -g use the GPU, to speed up photo processing (the same as -b opencl).");
         System.out.println("  -d means turn on debugging, which saves intermediate photos.");
+        System.out.println("  -f fuses all the CPU processing stages into one pass (the same as -b fused).");
+        System.out.println("  -s stores each colour channel separately on the CPU (the same as -b planar).");
+        System.out.println("  -v uses SIMD instructions (JDK Vector API) for the CPU stages, if available.");
+        System.out.println("  -b Backend chooses how each photo is processed.  The available backends are:");
+        for (CartoonBackend each : CartoonBackends.all()) {
+            System.out.println("       " + each.name() + ": " + each.description());
+        }
         System.out.println("  -e EdgeThreshold values can range from 0 (everything is an edge) up to about 1000 or more.");
+        System.out.println("  -y detects edges in the luminance only, instead of in each colour channel (about 3 times faster).");
+        System.out.println("  -x EdgePolicy is how pixels beyond the edges are found: clamp (the default), reflect or wrap.");
         System.out.println("  -c NumColours is the number of discrete values within each colour channel (2..256).");
+        System.out.println("  -r BlurRadius uses a stack blur of that radius (1..200) instead of the 5x5 Gaussian blur.");
+        System.out.println("  -p NumThreads splits each CPU processing stage into bands of rows, processed in parallel.");
+        System.out.println("  -j D,P,E pipelines the photos, with D threads decoding, P processing and E encoding them.");
+        System.out.println("  -m prints the time, megapixels/sec and allocations of each stage, and batch queue depths.");
+        System.out.println("  -t StripRows reads, processes and writes huge photos in strips, to save memory (fastest from .ppm, .pam or .rgb, to .png).");
+        System.out.println("  -w E1,E2,.. C1,C2,.. saves a cartoon for every edge threshold and number of colours,");
+        System.out.println("       as photo_cartoon_eE_cC.jpg, blurring and edge detecting each photo just once.");
+        System.out.println("  -k CacheDir MaxMB reuses the cartoons of unchanged photos from a cache of up to MaxMB.");
+        System.out.println("  -q TileSize treats the photos as video frames, in order, only recomputing the tiles that changed.");
+        System.out.println("  -l Port serves cartoons over HTTP on localhost: POST an image to /cartoon?e=128&c=3, GET /stats.");
+        System.out.println("  Photos in .ppm, .pam and .rgb (raw, named like photo_640x480.rgb) files are read and written without a codec.");
     }
 
     /**
@@ -1025,21 +1814,67 @@ public class Cartoonify {
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
-        //no need to change the implementation of the main method
         Cartoonify cartoon = new Cartoonify();
         if (args.length == 0) {
             cartoon.help();
             System.exit(1);
         }
         int arg = cartoon.setFlags(args, 0);
+        if (cartoon.serverPort >= 0) {
+            final int workers = Math.max(1, Runtime.getRuntime().availableProcessors() / cartoon.getThreads());
+            final CartoonServer server = new CartoonServer(cartoon, cartoon.serverPort, workers);
+            server.start();
+            System.out.println("Serving cartoons on http://localhost:" + server.port() + "/cartoon with "
+                    + workers + " workers" + (server.usesVirtualThreads() ? " and virtual threads." : "."));
+            return;
+        }
         long time = 0;
         int done = 0;
-        for (; arg < args.length; arg++) {
-            time += cartoon.processPhoto(args[arg]);
-            done++;
+        if (cartoon.batchThreads != null) {
+            final int[] stages = cartoon.batchThreads;
+            final BatchPipeline batch = new BatchPipeline(cartoon, stages[0], stages[1], stages[2]);
+            final long start = System.currentTimeMillis();
+            try {
+                done = batch.run(Arrays.asList(args).subList(arg, args.length));
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("batch interrupted");
+            }
+            final double secs = (System.currentTimeMillis() - start) / 1e3;
+            System.out.format("Pipelined %d photos in %.3f secs (%.2f photos/sec).%n", done, secs, done / secs);
+            time = batch.processMillis();
+            done -= batch.cached();
+        } else {
+            // the results are saved in the background, while the next photos are processed.
+            final int encoders = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+            try (ImageEncoder encoder = new ImageEncoder(cartoon.getBufferPool(), cartoon.getMetrics(), encoders)) {
+                cartoon.setEncoder(encoder);
+                for (; arg < args.length; arg++) {
+                    final long millis = cartoon.processPhoto(args[arg]);
+                    if (millis != CACHED) {
+                        time += millis;
+                        done++;
+                    }
+                }
+            } finally {
+                cartoon.setEncoder(null);
+            }
+        }
+        if (cartoon.isDebug()) {
+            System.out.println("  " + cartoon.getBufferPool());
+        }
+        if (cartoon.frameSequence != null) {
+            System.out.format("  recomputed %.1f%% of the tiles of %d frames.%n",
+                    100 * cartoon.frameSequence.dirtyFraction(), cartoon.frameSequence.frames());
+            cartoon.frameSequence.close();
+        }
+        if (cartoon.resultCache != null) {
+            System.out.println("  " + cartoon.resultCache);
+        }
+        if (cartoon.printMetrics) {
+            System.out.print(cartoon.getMetrics().report());
         }
         //Please do NOT remove or change this output message
-        System.out.format("Average processing time is %.3f for %d photos.", time / done / 1e3, done);
+        System.out.format("Average processing time is %.3f for %d photos.", time / Math.max(done, 1) / 1e3, done);
     }
 
 }
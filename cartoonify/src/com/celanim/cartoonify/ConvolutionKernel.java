@@ -0,0 +1,307 @@
+package com.celanim.cartoonify;
+
+import java.util.Arrays;
+
+/**
+ * A square convolution filter, compiled once so that it can be applied to whole rows of pixels.
+ * <p>
+ * The filter is stored as a list of its non-zero taps (filter row, x offset and factor),
+ * so zero factors (like the middle column of the Sobel filters) cost nothing.
+ * Each row is convolved in two parts: the interior pixels, where every tap is inside
+ * the image, use direct index arithmetic with no bounds checks or branches; and the
+ * few pixels near the left and right borders use a separate path that finds each tap
+ * with an <code>EdgePolicy</code> (clamping, unless another policy is given).
+ * The rows above and below are supplied by the caller as offsets, so the edge policy at the
+ * top and bottom of the image is applied once per row rather than once per tap.
+ * All three colour channels of packed RGB pixels are convolved in the same pass,
+ * or a single plane of a <code>PlanarImage</code> can be convolved on its own.
+ */
+public final class ConvolutionKernel {
+
+    /**
+     * The convolution sums for each colour channel of one row of pixels.
+     */
+    public static final class RowSums {
+        public final int[] red;
+        public final int[] green;
+        public final int[] blue;
+
+        /**
+         * @param width the number of pixels in each row.
+         */
+        public RowSums(int width) {
+            red = new int[width];
+            green = new int[width];
+            blue = new int[width];
+        }
+    }
+
+    private final int size;
+    private final int half;
+    private final int[] filter;
+
+    /** The filter row of each non-zero tap. */
+    private final int[] tapRow;
+
+    /** The x offset (relative to the centre pixel) of each non-zero tap. */
+    private final int[] tapX;
+
+    /** The filter factor of each non-zero tap. */
+    private final int[] tapFactor;
+
+    /**
+     * Compiles the given filter.
+     *
+     * @param filter a 2D square matrix, laid out in row-major order in a 1D array.
+     * @throws IllegalArgumentException if the filter is not square.
+     */
+    public ConvolutionKernel(int[] filter) {
+        int filterSize = 1;
+        while (filterSize * filterSize < filter.length) {
+            filterSize++;
+        }
+        if (filterSize * filterSize != filter.length) {
+            throw new IllegalArgumentException("non-square filter: " + Arrays.toString(filter));
+        }
+        size = filterSize;
+        half = filterSize / 2;
+        this.filter = filter.clone();
+        int taps = 0;
+        for (int factor : filter) {
+            if (factor != 0) {
+                taps++;
+            }
+        }
+        tapRow = new int[taps];
+        tapX = new int[taps];
+        tapFactor = new int[taps];
+        int tap = 0;
+        for (int i = 0; i < filter.length; i++) {
+            if (filter[i] != 0) {
+                tapRow[tap] = i / size;
+                tapX[tap] = i % size - half;
+                tapFactor[tap] = filter[i];
+                tap++;
+            }
+        }
+    }
+
+    /**
+     * @return the width and height of the filter matrix.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return a copy of the filter matrix that this kernel was compiled from.
+     */
+    public int[] filter() {
+        return filter.clone();
+    }
+
+    /**
+     * @return the number of non-zero factors in the filter.
+     */
+    int taps() {
+        return tapFactor.length;
+    }
+
+    /**
+     * @return the filter row (0 .. size()-1) of the given non-zero tap.
+     */
+    int tapRow(int tap) {
+        return tapRow[tap];
+    }
+
+    /**
+     * @return the x offset, relative to the centre pixel, of the given non-zero tap.
+     */
+    int tapX(int tap) {
+        return tapX[tap];
+    }
+
+    /**
+     * @return the filter factor of the given non-zero tap.
+     */
+    int tapFactor(int tap) {
+        return tapFactor[tap];
+    }
+
+    /**
+     * Calculates the offsets of the rows that this filter needs around row <code>y</code>
+     * of a whole image, clamping them to the top and bottom rows of the image.
+     *
+     * @param y          the centre row.
+     * @param width      the width of the image.
+     * @param height     the height of the image.
+     * @param rowOffsets receives <code>size()</code> offsets, one for each filter row.
+     * @return rowOffsets
+     */
+    public int[] rowOffsets(int y, int width, int height, int[] rowOffsets) {
+        return rowOffsets(y, width, height, rowOffsets, EdgePolicy.CLAMP);
+    }
+
+    /**
+     * Calculates the offsets of the rows that this filter needs around row <code>y</code>
+     * of a whole image, finding the rows beyond the top and bottom with the given policy.
+     *
+     * @param y          the centre row.
+     * @param width      the width of the image.
+     * @param height     the height of the image.
+     * @param rowOffsets receives <code>size()</code> offsets, one for each filter row.
+     * @param edges      how to find the rows that are outside the image.
+     * @return rowOffsets
+     */
+    public int[] rowOffsets(int y, int width, int height, int[] rowOffsets, EdgePolicy edges) {
+        for (int filterY = 0; filterY < size; filterY++) {
+            rowOffsets[filterY] = edges.index(y + filterY - half, height) * width;
+        }
+        return rowOffsets;
+    }
+
+    /**
+     * Convolves one row of pixels, for all three colour channels.
+     *
+     * @param src        the RGB pixels.
+     * @param rowOffsets the offset in <code>src</code> of each row that the filter covers.
+     * @param width      the number of pixels in each row.
+     * @param sums       receives the convolution sum of each channel of each pixel in the row.
+     */
+    public void convolveRow(int[] src, int[] rowOffsets, int width, RowSums sums) {
+        convolveRow(src, rowOffsets, width, sums, EdgePolicy.CLAMP);
+    }
+
+    /**
+     * Convolves one row of pixels, for all three colour channels.
+     *
+     * @param src        the RGB pixels.
+     * @param rowOffsets the offset in <code>src</code> of each row that the filter covers.
+     * @param width      the number of pixels in each row.
+     * @param sums       receives the convolution sum of each channel of each pixel in the row.
+     * @param edges      how to find the pixels beyond the left and right ends of the row.
+     */
+    public void convolveRow(int[] src, int[] rowOffsets, int width, RowSums sums, EdgePolicy edges) {
+        final int[] red = sums.red;
+        final int[] green = sums.green;
+        final int[] blue = sums.blue;
+        final int interiorStart = Math.min(half, width);
+        final int interiorEnd = Math.max(interiorStart, width - half);
+        Arrays.fill(red, 0, width, 0);
+        Arrays.fill(green, 0, width, 0);
+        Arrays.fill(blue, 0, width, 0);
+        // interior: every tap is inside the row, so no clamping is needed.
+        for (int tap = 0; tap < tapFactor.length; tap++) {
+            final int base = rowOffsets[tapRow[tap]] + tapX[tap];
+            final int factor = tapFactor[tap];
+            for (int x = interiorStart; x < interiorEnd; x++) {
+                final int rgb = src[base + x];
+                red[x] += ((rgb >> 16) & 0xFF) * factor;
+                green[x] += ((rgb >> 8) & 0xFF) * factor;
+                blue[x] += (rgb & 0xFF) * factor;
+            }
+        }
+        // borders: find each tap that is outside the row with the edge policy.
+        for (int x = 0; x < interiorStart; x++) {
+            convolveBorder(src, rowOffsets, width, x, sums, edges);
+        }
+        for (int x = interiorEnd; x < width; x++) {
+            convolveBorder(src, rowOffsets, width, x, sums, edges);
+        }
+    }
+
+    private void convolveBorder(int[] src, int[] rowOffsets, int width, int x, RowSums sums, EdgePolicy edges) {
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        for (int tap = 0; tap < tapFactor.length; tap++) {
+            final int rgb = src[rowOffsets[tapRow[tap]] + edges.index(x + tapX[tap], width)];
+            red += ((rgb >> 16) & 0xFF) * tapFactor[tap];
+            green += ((rgb >> 8) & 0xFF) * tapFactor[tap];
+            blue += (rgb & 0xFF) * tapFactor[tap];
+        }
+        sums.red[x] = red;
+        sums.green[x] = green;
+        sums.blue[x] = blue;
+    }
+
+    /**
+     * Convolves one row of a single colour plane, with one unsigned byte per pixel.
+     *
+     * @param plane      the colour values, 0 .. COLOUR_MASK.
+     * @param rowOffsets the offset in <code>plane</code> of each row that the filter covers.
+     * @param width      the number of pixels in each row.
+     * @param sums       receives the convolution sum of each pixel in the row.
+     */
+    public void convolvePlaneRow(byte[] plane, int[] rowOffsets, int width, int[] sums) {
+        final int interiorStart = Math.min(half, width);
+        final int interiorEnd = Math.max(interiorStart, width - half);
+        Arrays.fill(sums, 0, width, 0);
+        for (int tap = 0; tap < tapFactor.length; tap++) {
+            final int base = rowOffsets[tapRow[tap]] + tapX[tap];
+            final int factor = tapFactor[tap];
+            for (int x = interiorStart; x < interiorEnd; x++) {
+                sums[x] += (plane[base + x] & 0xFF) * factor;
+            }
+        }
+        for (int x = 0; x < interiorStart; x++) {
+            sums[x] = convolvePlaneBorder(plane, rowOffsets, width, x);
+        }
+        for (int x = interiorEnd; x < width; x++) {
+            sums[x] = convolvePlaneBorder(plane, rowOffsets, width, x);
+        }
+    }
+
+    private int convolvePlaneBorder(byte[] plane, int[] rowOffsets, int width, int x) {
+        int sum = 0;
+        for (int tap = 0; tap < tapFactor.length; tap++) {
+            sum += (plane[rowOffsets[tapRow[tap]] + clampIndex(x + tapX[tap], width)] & 0xFF) * tapFactor[tap];
+        }
+        return sum;
+    }
+
+    /**
+     * Convolves just one pixel of a whole image.
+     *
+     * @param src     the RGB pixels of the image.
+     * @param width   the width of the image.
+     * @param height  the height of the image.
+     * @param xCentre may be outside the image, in which case it is clamped.
+     * @param yCentre may be outside the image, in which case it is clamped.
+     * @param colour  which colour channel (RED, GREEN or BLUE) to apply the filter to.
+     * @return the sum of multiplying the requested colour of each pixel by its filter factor.
+     */
+    public int convolve(int[] src, int width, int height, int xCentre, int yCentre, int colour) {
+        return convolve(src, width, height, xCentre, yCentre, colour, EdgePolicy.CLAMP);
+    }
+
+    /**
+     * Convolves just one pixel of a whole image.
+     *
+     * @param src     the RGB pixels of the image.
+     * @param width   the width of the image.
+     * @param height  the height of the image.
+     * @param xCentre may be outside the image, in which case it is found with the edge policy.
+     * @param yCentre may be outside the image, in which case it is found with the edge policy.
+     * @param colour  which colour channel (RED, GREEN or BLUE) to apply the filter to.
+     * @param edges   how to find the pixels that are outside the image.
+     * @return the sum of multiplying the requested colour of each pixel by its filter factor.
+     */
+    public int convolve(int[] src, int width, int height, int xCentre, int yCentre, int colour, EdgePolicy edges) {
+        final int shift = colour * Cartoonify.COLOUR_BITS;
+        int sum = 0;
+        for (int tap = 0; tap < tapFactor.length; tap++) {
+            final int y = edges.index(yCentre + tapRow[tap] - half, height);
+            final int x = edges.index(xCentre + tapX[tap], width);
+            sum += ((src[y * width + x] >> shift) & Cartoonify.COLOUR_MASK) * tapFactor[tap];
+        }
+        return sum;
+    }
+
+    /**
+     * Restricts an index to be within 0 .. size-1, by clamping it to the nearest edge.
+     */
+    static int clampIndex(int pos, int size) {
+        return pos < 0 ? 0 : pos >= size ? size - 1 : pos;
+    }
+}
@@ -0,0 +1,173 @@
+package com.celanim.cartoonify;
+
+import java.util.Arrays;
+
+/**
+ * A black and white edge image, stored as one bit per pixel.
+ * <p>
+ * An edge image made of <code>black</code> and <code>white</code> int pixels uses 32 bits
+ * to store each yes/no answer, so it takes 32 times more memory (and memory bandwidth) than
+ * it needs.  This stores each row as an array of 64-bit words, with bit <code>x % 64</code>
+ * of word <code>x / 64</code> set if pixel x is an edge.  Each row starts on a new word, so
+ * that bands of rows can be written in parallel, and merging can skip whole words of 64
+ * pixels that are all edges or all not edges.
+ */
+public final class EdgeMask {
+
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    private final long[] words;
+
+    /**
+     * Creates a mask with no edges.
+     *
+     * @param width  the width of the image.
+     * @param height the height of the image.
+     */
+    public EdgeMask(int width, int height) {
+        if (width < 0 || height < 0) {
+            throw new IllegalArgumentException("bad mask size " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.words = new long[wordsPerRow * height];
+    }
+
+    /**
+     * Creates a mask from an edge image.
+     *
+     * @param pixels     the edge image, in row-major order.
+     * @param width      the width of the image.
+     * @param height     the height of the image.
+     * @param edgeColour the colour of the edge pixels.  All other colours are not edges.
+     * @return a new mask.
+     */
+    public static EdgeMask fromPixels(int[] pixels, int width, int height, int edgeColour) {
+        if (pixels.length != width * height) {
+            throw new IllegalArgumentException("expected " + width + "x" + height + " pixels, not " + pixels.length);
+        }
+        final EdgeMask mask = new EdgeMask(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (pixels[y * width + x] == edgeColour) {
+                    mask.words[y * mask.wordsPerRow + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+        return mask;
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * @param x must be in the range <code>0 .. width-1</code>.
+     * @param y must be in the range <code>0 .. height-1</code>.
+     * @return true if that pixel is an edge.
+     */
+    public boolean isEdge(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IndexOutOfBoundsException("(" + x + "," + y + ") is outside " + width + "x" + height);
+        }
+        return (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+    }
+
+    /**
+     * @return the number of edge pixels.
+     */
+    public int edgeCount() {
+        int count = 0;
+        for (long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Converts this mask back to an edge image, such as for saving it.
+     *
+     * @param dest        where to put the pixels, or null to allocate a new array.
+     * @param edgeColour  the colour for edge pixels.
+     * @param otherColour the colour for all the other pixels.
+     * @return the edge image, in row-major order.
+     */
+    public int[] toPixels(int[] dest, int edgeColour, int otherColour) {
+        final int[] pixels = dest != null ? dest : new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final boolean edge = (words[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+                pixels[y * width + x] = edge ? edgeColour : otherColour;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Chooses <code>edgeColour</code> for the edge pixels, and the photo pixel for all the others,
+     * for the rows <code>yStart .. yEnd-1</code>.  Whole words that have no edges are copied from
+     * the photo and whole words that are all edges are filled, without looking at each bit.
+     *
+     * @param photo      the pixels underneath the edges.
+     * @param edgeColour the colour of the edges.
+     * @param dest       where to put the merged pixels.
+     */
+    void mergeRows(int[] photo, int edgeColour, int[] dest, int yStart, int yEnd) {
+        for (int y = yStart; y < yEnd; y++) {
+            final int row = y * width;
+            for (int w = 0; w < wordsPerRow; w++) {
+                final long word = words[y * wordsPerRow + w];
+                final int start = row + (w << 6);
+                final int end = row + Math.min(width, (w + 1) << 6);
+                if (word == 0) {
+                    System.arraycopy(photo, start, dest, start, end - start);
+                } else if (word == -1L) {
+                    Arrays.fill(dest, start, end, edgeColour);
+                } else {
+                    for (int i = start; i < end; i++) {
+                        dest[i] = (word & (1L << (i - start))) != 0 ? edgeColour : photo[i];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the words of all the rows, which the edge detection writes directly.
+     */
+    long[] words() {
+        return words;
+    }
+
+    /**
+     * @return the number of words in each row.
+     */
+    int wordsPerRow() {
+        return wordsPerRow;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof EdgeMask)) {
+            return false;
+        }
+        final EdgeMask other = (EdgeMask) obj;
+        return width == other.width && height == other.height && Arrays.equals(words, other.words);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * width + height) + Arrays.hashCode(words);
+    }
+
+    @Override
+    public String toString() {
+        return "EdgeMask(" + width + "x" + height + ", " + edgeCount() + " edges)";
+    }
+}
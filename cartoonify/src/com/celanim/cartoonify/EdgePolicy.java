@@ -0,0 +1,53 @@
+package com.celanim.cartoonify;
+
+/**
+ * How the filters find pixels that are beyond the edges of the image.
+ * <p>
+ * The filters only use this for the few pixels near the borders of the image.
+ * The interior pixels, where every tap of a filter is inside the image, are always
+ * read directly, so the choice of policy makes no difference to their speed.
+ */
+public enum EdgePolicy {
+
+    /**
+     * Use the nearest edge pixel, so the edge pixels are repeated.  This is the default.
+     */
+    CLAMP {
+        @Override
+        public int index(int pos, int size) {
+            return pos < 0 ? 0 : pos >= size ? size - 1 : pos;
+        }
+    },
+
+    /**
+     * Reflect off the edge, with the mirror at the very edge, so the edge pixels appear twice:
+     * -1 is 0, -2 is 1, size is size-1, and so on.
+     */
+    REFLECT {
+        @Override
+        public int index(int pos, int size) {
+            if (pos >= 0 && pos < size) {
+                return pos;
+            }
+            final int period = Math.floorMod(pos, 2 * size);
+            return period < size ? period : 2 * size - 1 - period;
+        }
+    },
+
+    /**
+     * Wrap around to the other side of the image, as if it were tiled.
+     */
+    WRAP {
+        @Override
+        public int index(int pos, int size) {
+            return pos >= 0 && pos < size ? pos : Math.floorMod(pos, size);
+        }
+    };
+
+    /**
+     * @param pos  an index that may be outside the image, even by more than the size.
+     * @param size the width of the image (for x values) or the height (for y values).
+     * @return the index of the pixel to use, in the range <code>0 .. size-1</code>.
+     */
+    public abstract int index(int pos, int size);
+}
@@ -0,0 +1,123 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An immutable RGB image.
+ * <p>
+ * Unlike the stack of images inside <code>Cartoonify</code>, a frame carries its own
+ * width and height and can never change, so frames of different sizes can be shared
+ * freely between threads.  The image processing functions in <code>FrameOps</code>
+ * take frames and return new frames.
+ */
+public final class Frame {
+
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+
+    /**
+     * Wraps the given pixels without copying them.
+     * The caller must not change the pixels afterwards.
+     */
+    Frame(int[] pixels, int width, int height) {
+        if (width < 0 || height < 0 || pixels.length != width * height) {
+            throw new IllegalArgumentException("expected " + width + "x" + height + " pixels, not " + pixels.length);
+        }
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * Creates a frame from a copy of the given pixels.
+     *
+     * @param pixels packed RGB pixels, in row-major order.  Any alpha bits are removed.
+     * @param width  the width of the image.
+     * @param height the height of the image.
+     * @return a new frame.
+     * @throws IllegalArgumentException if there are not exactly width * height pixels.
+     */
+    public static Frame of(int[] pixels, int width, int height) {
+        final int[] copy = Arrays.copyOf(pixels, pixels.length);
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] &= 0x00FFFFFF;
+        }
+        return new Frame(copy, width, height);
+    }
+
+    /**
+     * Reads and decodes a photo.
+     *
+     * @param filename the photo file, in any format that ImageIO supports, or one of the raw formats of <code>RawImageIO</code>.
+     * @return a new frame.
+     * @throws IOException if the photo cannot be read.
+     */
+    public static Frame read(String filename) throws IOException {
+        return Cartoonify.readFrame(filename, int[]::new);
+    }
+
+    /**
+     * Encodes this frame and writes it to disk.
+     *
+     * @param newName the extension of this name (eg. .jpg) determines the output file type.
+     * @throws IOException
+     */
+    public void write(String newName) throws IOException {
+        Cartoonify.writeImage(pixels, width, height, newName);
+    }
+
+    public int width() {
+        return width;
+    }
+
+    public int height() {
+        return height;
+    }
+
+    /**
+     * @param x must be in the range <code>0 .. width-1</code>.
+     * @param y must be in the range <code>0 .. height-1</code>.
+     * @return the requested pixel, in RGB format.
+     */
+    public int pixel(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height) {
+            throw new IndexOutOfBoundsException("(" + x + "," + y + ") is outside " + width + "x" + height);
+        }
+        return pixels[y * width + x];
+    }
+
+    /**
+     * @return a copy of all the pixels, in row-major order.
+     */
+    public int[] toArray() {
+        return pixels.clone();
+    }
+
+    /**
+     * @return the pixels themselves, which must not be changed.
+     */
+    int[] pixels() {
+        return pixels;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Frame)) {
+            return false;
+        }
+        final Frame other = (Frame) obj;
+        return width == other.width && height == other.height && Arrays.equals(pixels, other.pixels);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * width + height) + Arrays.hashCode(pixels);
+    }
+
+    @Override
+    public String toString() {
+        return "Frame(" + width + "x" + height + ")";
+    }
+}
@@ -0,0 +1,189 @@
+package com.celanim.cartoonify;
+
+/**
+ * The cartoon image processing operations, as pure functions on immutable <code>Frame</code>s.
+ * <p>
+ * These functions keep no state between calls and never change their input frames,
+ * so any number of threads can call them at the same time, on photos of any size,
+ * without needing a <code>Cartoonify</code> object per thread.  They give exactly the
+ * same pixels as the corresponding <code>Cartoonify</code> methods, which share the
+ * row-level code in this class and <code>RowFilters</code>.
+ */
+public final class FrameOps {
+
+    /**
+     * The colour of edges in the images made by <code>sobelEdgeDetect</code>.
+     */
+    public static final int BLACK = 0x000000;
+
+    /**
+     * The colour of non-edges in the images made by <code>sobelEdgeDetect</code>.
+     */
+    public static final int WHITE = 0xFFFFFF;
+
+    private FrameOps() {
+    }
+
+    /**
+     * @return a blurred version of the photo, using the 5x5 <code>Cartoonify.GAUSSIAN_FILTER</code>.
+     */
+    public static Frame gaussianBlur(Frame photo) {
+        final int width = photo.width();
+        final int height = photo.height();
+        final int[] src = photo.pixels();
+        final int[] dest = new int[width * height];
+        final RowFilters filters = new RowFilters(width, height);
+        for (int y = 0; y < height; y++) {
+            filters.blurRow(src, y, dest, y * width);
+        }
+        return new Frame(dest, width, height);
+    }
+
+    /**
+     * Detects edges in the photo.
+     *
+     * @param photo         the photo, which is usually blurred first.
+     * @param edgeThreshold what level of colour change should be considered an edge.
+     * @return an image where BLACK pixels mark the edges and the other pixels are all WHITE.
+     */
+    public static Frame sobelEdgeDetect(Frame photo, int edgeThreshold) {
+        final int width = photo.width();
+        final int height = photo.height();
+        final int[] src = photo.pixels();
+        final int[] dest = new int[width * height];
+        final RowFilters filters = new RowFilters(width, height);
+        final int[] rowOffsets = new int[Cartoonify.SOBEL_VERTICAL_KERNEL.size()];
+        for (int y = 0; y < height; y++) {
+            Cartoonify.SOBEL_VERTICAL_KERNEL.rowOffsets(y, width, height, rowOffsets);
+            filters.edgeRow(src, rowOffsets, dest, y * width, edgeThreshold, BLACK, WHITE);
+        }
+        return new Frame(dest, width, height);
+    }
+
+    /**
+     * @param photo      the photo.
+     * @param numColours the number of values in each colour channel after quantization (2..256).
+     * @return the photo with fewer colours.
+     */
+    public static Frame reduceColours(Frame photo, int numColours) {
+        checkNumColours(numColours);
+        final int[] src = photo.pixels();
+        final int[] dest = new int[src.length];
+        PointOperator.quantize(numColours).apply(src, dest, 0, src.length);
+        return new Frame(dest, photo.width(), photo.height());
+    }
+
+    /**
+     * Merges a mask image on top of another image.
+     *
+     * @param mask       the mask.
+     * @param maskColour an exact pixel colour.  Where the mask is this colour, the photo will be chosen.
+     * @param photo      the underneath image, which must be the same size as the mask.
+     * @return the merged image.
+     */
+    public static Frame mergeMask(Frame mask, int maskColour, Frame photo) {
+        if (mask.width() != photo.width() || mask.height() != photo.height()) {
+            throw new IllegalArgumentException("cannot merge a " + mask + " mask with a " + photo + " photo");
+        }
+        final int[] maskPixels = mask.pixels();
+        final int[] photoPixels = photo.pixels();
+        final int[] dest = new int[maskPixels.length];
+        for (int i = 0; i < dest.length; i++) {
+            dest[i] = maskPixels[i] == maskColour ? photoPixels[i] : maskPixels[i];
+        }
+        return new Frame(dest, photo.width(), photo.height());
+    }
+
+    /**
+     * @return a grayscale version of the photo.
+     */
+    public static Frame grayscale(Frame photo) {
+        final int[] src = photo.pixels();
+        final int[] dest = new int[src.length];
+        PointOperator.grayscale().apply(src, dest, 0, src.length);
+        return new Frame(dest, photo.width(), photo.height());
+    }
+
+    /**
+     * Turns a photo into a cartoon: the same result as <code>Cartoonify.processPhotoOnCPU</code>.
+     * <p>
+     * This is done in one fused pass (like <code>Cartoonify.processPhotoFused</code>),
+     * so no intermediate images are allocated.
+     *
+     * @param photo         the photo.
+     * @param edgeThreshold what level of colour change should be considered an edge.
+     * @param numColours    the number of values in each colour channel after quantization (2..256).
+     * @return the cartoon.
+     */
+    public static Frame cartoonify(Frame photo, int edgeThreshold, int numColours) {
+        checkNumColours(numColours);
+        final int width = photo.width();
+        final int height = photo.height();
+        final int[] dest = new int[width * height];
+        cartoonRows(photo.pixels(), dest, width, height, 0, height, edgeThreshold, numColours);
+        return new Frame(dest, width, height);
+    }
+
+    /**
+     * Blurs, detects edges, reduces colours and merges the edges, for a band of rows of a whole image.
+     * <p>
+     * The band is processed from top to bottom, keeping a rolling window of the three
+     * blurred rows that the edge detection needs, then the colour reduction and edge mask
+     * are applied to each output pixel as soon as its edge is known.
+     *
+     * @param src  the pixels of the whole photo.
+     * @param dest where to put the cartoon pixels.  Only the rows in the band are written.
+     */
+    static void cartoonRows(int[] src, int[] dest, int width, int height, int yStart, int yEnd,
+                            int edgeThreshold, int numColours) {
+        final RowFilters filters = new RowFilters(width, height);
+        final PointOperator reduce = PointOperator.quantize(numColours);
+        // a rolling window of three blurred rows, above, current and below.
+        final int[] blurred = new int[3 * width];
+        final int[] window = new int[3];
+        final int[] edges = new int[width];
+        int above = 0;
+        int row = width;
+        int below = 2 * width;
+        filters.blurRow(src, ConvolutionKernel.clampIndex(yStart - 1, height), blurred, above);
+        filters.blurRow(src, yStart, blurred, row);
+        for (int y = yStart; y < yEnd; y++) {
+            filters.blurRow(src, ConvolutionKernel.clampIndex(y + 1, height), blurred, below);
+            window[0] = above;
+            window[1] = row;
+            window[2] = below;
+            filters.edgeRow(blurred, window, edges, 0, edgeThreshold, BLACK, WHITE);
+            for (int x = 0; x < width; x++) {
+                final int index = y * width + x;
+                if (edges[x] == WHITE) {
+                    dest[index] = reduce.apply(src[index]);
+                } else {
+                    dest[index] = edges[x];
+                }
+            }
+            // slide the window down one row, reusing the oldest row for the next one.
+            final int oldest = above;
+            above = row;
+            row = below;
+            below = oldest;
+        }
+    }
+
+    /**
+     * The same as <code>Cartoonify.quantizeColour</code>.
+     */
+    static int quantizeColour(int colourValue, int numPerChannel) {
+        float colour = colourValue / (Cartoonify.COLOUR_MASK + 1.0f) * numPerChannel;
+        int discrete = Math.round(colour - 0.5f);
+        assert 0 <= discrete && discrete < numPerChannel;
+        int newColour = discrete * Cartoonify.COLOUR_MASK / (numPerChannel - 1);
+        assert 0 <= newColour && newColour <= Cartoonify.COLOUR_MASK;
+        return newColour;
+    }
+
+    private static void checkNumColours(int numColours) {
+        if (numColours < 2 || numColours > 256) {
+            throw new IllegalArgumentException("NumColours must be 2..256, not " + numColours);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Turns a sequence of frames (such as the numbered frames of a video) into cartoons,
+ * reusing the cartoon of the previous frame wherever the frame has not changed.
+ * <p>
+ * Each frame is split into square tiles and compared with the previous frame.  Every cartoon
+ * pixel depends only on the input pixels within <code>StripProcessor.HALO</code> pixels of it
+ * (the blur radius plus one, with a stack blur), so only the tiles within that distance of a
+ * changed pixel need to be recomputed; the rest
+ * of the previous cartoon is still correct.  Each run of neighbouring dirty tiles in a row
+ * of tiles is blurred, edge detected, colour reduced and merged in one fused pass, over a
+ * window that includes a halo around the tiles, so the result is exactly the same as
+ * processing the whole frame.  With a static camera, the time per frame is roughly
+ * proportional to the fraction of the frame that changed.
+ * <p>
+ * The previous frame and cartoon are kept between frames, so the frames must all be processed
+ * by the same <code>FrameSequence</code>, in order.  It must only be used by one thread at a time,
+ * and should be closed afterwards, to shut down its threads.
+ */
+public class FrameSequence implements AutoCloseable {
+
+    /**
+     * The default width and height of the tiles, in pixels.
+     */
+    public static final int DEFAULT_TILE_SIZE = 64;
+
+    private final int edgeThreshold;
+
+    private final int numColours;
+
+    private final int threads;
+
+    private final int tileSize;
+
+    private final int halo;
+
+    /**
+     * Used to make a processor for each window when the settings need stages that the fused pass does not have.
+     */
+    private final Cartoonify settings;
+
+    private ForkJoinPool pool;
+
+    private int width;
+
+    private int height;
+
+    private int tilesX;
+
+    private int tilesY;
+
+    /**
+     * The previous frame, its cartoon, and the array that the next frame is decoded into.
+     */
+    private int[] previous;
+    private int[] cartoon;
+    private int[] spare;
+
+    /**
+     * Which tiles of the cartoon must be recomputed for the current frame, in row-major order.
+     */
+    private boolean[] dirty;
+
+    /**
+     * The input and output windows of each row of tiles, kept from frame to frame.
+     * Each pair is only used by the thread processing that row of tiles, and grows to
+     * the largest window that row has needed.
+     */
+    private int[][] windowSrc;
+    private int[][] windowDest;
+
+    private int dirtyTiles;
+
+    private long framesDone;
+
+    private long tilesDone;
+
+    private long tilesRecomputed;
+
+    /**
+     * @param settings the edge threshold, number of colours and threads to use.
+     * @param tileSize the width and height of the tiles that are compared and recomputed.
+     */
+    public FrameSequence(Cartoonify settings, int tileSize) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("tiles must be at least one pixel, not " + tileSize);
+        }
+        if (settings.getNumColours() < 2) {
+            throw new IllegalArgumentException("NumColours must be 2..256, not " + settings.getNumColours());
+        }
+        if (settings.getEdgePolicy() != EdgePolicy.CLAMP) {
+            // the other policies need pixels from the far side of the frame, outside the window.
+            throw new IllegalArgumentException("frame sequences only support the CLAMP edge policy, not "
+                    + settings.getEdgePolicy());
+        }
+        this.edgeThreshold = settings.getEdgeThreshold();
+        this.numColours = settings.getNumColours();
+        this.threads = settings.getThreads();
+        this.tileSize = tileSize;
+        this.halo = StripProcessor.halo(settings);
+        this.settings = settings.copySettings();
+        this.settings.setDebug(false);
+        this.settings.setThreads(1);
+    }
+
+    /**
+     * Reads the next frame of the sequence, and saves its cartoon.
+     *
+     * @param name    the frame.
+     * @param newName the output file.  The extension of this name (eg. .png) determines the output file type.
+     * @return the number of milliseconds to process the frame (excluding loading/saving).
+     * @throws IOException if the frame cannot be read or the cartoon cannot be written.
+     */
+    public long processFile(String name, String newName) throws IOException {
+        final Frame image = Cartoonify.readFrame(name, n -> spare != null && spare.length == n ? spare : new int[n]);
+        final int w = image.width();
+        final int h = image.height();
+        final int[] frame = image.pixels();
+        final long time0 = System.currentTimeMillis();
+        process(frame, w, h);
+        final long time1 = System.currentTimeMillis();
+        spare = frame;
+        Cartoonify.writeImage(cartoon, width, height, newName);
+        return time1 - time0;
+    }
+
+    /**
+     * Turns the next frame of the sequence into a cartoon.
+     * <p>
+     * The first frame, and any frame that is a different size to the previous one,
+     * is processed in full.
+     *
+     * @param frame  the RGB pixels of the frame, in row-major order, with no alpha channel.
+     * @param width  the width of the frame.
+     * @param height the height of the frame.
+     * @return the cartoon.  This array is reused for the next frame, so copy it to keep it.
+     */
+    public int[] process(int[] frame, int width, int height) {
+        if (frame.length != width * height) {
+            throw new IllegalArgumentException("expected " + width + "x" + height + " pixels, not " + frame.length);
+        }
+        final boolean sameSize = cartoon != null && width == this.width && height == this.height;
+        if (!sameSize) {
+            this.width = width;
+            this.height = height;
+            tilesX = (width + tileSize - 1) / tileSize;
+            tilesY = (height + tileSize - 1) / tileSize;
+            dirty = new boolean[tilesX * tilesY];
+            windowSrc = new int[tilesY][];
+            windowDest = new int[tilesY][];
+            previous = new int[width * height];
+            cartoon = new int[width * height];
+            spare = null;
+        }
+        Arrays.fill(dirty, !sameSize);
+        if (sameSize) {
+            forEachTileRow(ty -> markChanges(frame, ty));
+        }
+        dirtyTiles = 0;
+        for (boolean tile : dirty) {
+            dirtyTiles += tile ? 1 : 0;
+        }
+        if (dirtyTiles > 0) {
+            forEachTileRow(ty -> recomputeTiles(frame, ty));
+            System.arraycopy(frame, 0, previous, 0, frame.length);
+        }
+        framesDone++;
+        tilesDone += dirty.length;
+        tilesRecomputed += dirtyTiles;
+        return cartoon;
+    }
+
+    /**
+     * @return the fraction of the tiles of the last frame that were recomputed, from 0.0 to 1.0.
+     */
+    public double lastDirtyFraction() {
+        return dirty == null || dirty.length == 0 ? 0.0 : dirtyTiles / (double) dirty.length;
+    }
+
+    /**
+     * @return the fraction of all the tiles of all the frames so far that were recomputed.
+     */
+    public double dirtyFraction() {
+        return tilesDone == 0 ? 0.0 : tilesRecomputed / (double) tilesDone;
+    }
+
+    /**
+     * @return the number of frames processed so far.
+     */
+    public long frames() {
+        return framesDone;
+    }
+
+    /**
+     * Shuts down the threads used to process the frames.
+     */
+    @Override
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Compares one row of tiles with the previous frame, and marks every tile
+     * that is within halo pixels of a changed pixel as dirty.
+     */
+    private void markChanges(int[] frame, int ty) {
+        final int yStart = ty * tileSize;
+        final int yEnd = Math.min(height, yStart + tileSize);
+        for (int tx = 0; tx < tilesX; tx++) {
+            final int xStart = tx * tileSize;
+            final int xEnd = Math.min(width, xStart + tileSize);
+            int minX = xEnd;
+            int maxX = -1;
+            int minY = yEnd;
+            int maxY = -1;
+            for (int y = yStart; y < yEnd; y++) {
+                final int row = y * width;
+                for (int x = xStart; x < xEnd; x++) {
+                    if (frame[row + x] != previous[row + x]) {
+                        minX = Math.min(minX, x);
+                        maxX = Math.max(maxX, x);
+                        minY = Math.min(minY, y);
+                        maxY = y;
+                    }
+                }
+            }
+            if (maxX >= 0) {
+                // different threads may mark the same neighbouring tile, but they all write true.
+                final int tx0 = Math.max(0, minX - halo) / tileSize;
+                final int tx1 = Math.min(width - 1, maxX + halo) / tileSize;
+                final int ty0 = Math.max(0, minY - halo) / tileSize;
+                final int ty1 = Math.min(height - 1, maxY + halo) / tileSize;
+                for (int j = ty0; j <= ty1; j++) {
+                    for (int i = tx0; i <= tx1; i++) {
+                        dirty[j * tilesX + i] = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Recomputes the cartoon of each run of dirty tiles in one row of tiles.
+     */
+    private void recomputeTiles(int[] frame, int ty) {
+        final int yStart = ty * tileSize;
+        final int yEnd = Math.min(height, yStart + tileSize);
+        final int top = Math.max(0, yStart - halo);
+        final int bottom = Math.min(height, yEnd + halo);
+        for (int tx = 0; tx < tilesX; tx++) {
+            if (!dirty[ty * tilesX + tx]) {
+                continue;
+            }
+            int txEnd = tx + 1;
+            while (txEnd < tilesX && dirty[ty * tilesX + txEnd]) {
+                txEnd++;
+            }
+            final int xStart = tx * tileSize;
+            final int xEnd = Math.min(width, txEnd * tileSize);
+            final int left = Math.max(0, xStart - halo);
+            final int right = Math.min(width, xEnd + halo);
+            final int w = right - left;
+            final int h = bottom - top;
+            // As in StripProcessor, the window is only clamped where it meets the edges of
+            // the whole frame, so all but its halo pixels come out exactly right.
+            final boolean cpuStages = settings.needsCpuStages();
+            final int[] src = cpuStages ? settings.getBufferPool().borrow(w * h) : window(windowSrc, ty, w * h);
+            for (int y = top; y < bottom; y++) {
+                System.arraycopy(frame, y * width + left, src, (y - top) * w, w);
+            }
+            final int[] dest;
+            if (cpuStages) {
+                // each thread needs its own processor, and its stages run on this thread.
+                // Its images come from the buffer pool, so they are reused from window to window too.
+                final Cartoonify worker = settings.copySettings();
+                worker.loadPixels(src, w, h);
+                worker.processPhotoOnCPU();
+                dest = worker.popImage();
+                worker.clear();
+            } else {
+                dest = window(windowDest, ty, w * h);
+                FrameOps.cartoonRows(src, dest, w, h, yStart - top, yEnd - top, edgeThreshold, numColours);
+            }
+            for (int y = yStart; y < yEnd; y++) {
+                System.arraycopy(dest, (y - top) * w + (xStart - left), cartoon, y * width + xStart, xEnd - xStart);
+            }
+            if (cpuStages) {
+                settings.getBufferPool().release(dest);
+            }
+            tx = txEnd;
+        }
+    }
+
+    /**
+     * @return the window array of the given row of tiles, made bigger first if it has fewer than size pixels.
+     */
+    private static int[] window(int[][] windows, int ty, int size) {
+        if (windows[ty] == null || windows[ty].length < size) {
+            windows[ty] = new int[size];
+        }
+        return windows[ty];
+    }
+
+    /**
+     * Applies the given processing to every row of tiles, in parallel if there are several threads.
+     */
+    private void forEachTileRow(TileRow task) {
+        if (threads <= 1 || tilesY <= 1) {
+            for (int ty = 0; ty < tilesY; ty++) {
+                task.process(ty);
+            }
+        } else {
+            if (pool == null) {
+                pool = new ForkJoinPool(threads);
+            }
+            pool.invoke(new RowBandTask((start, end) -> {
+                for (int ty = start; ty < end; ty++) {
+                    task.process(ty);
+                }
+            }, 0, tilesY, 1));
+        }
+    }
+
+    private interface TileRow {
+        void process(int ty);
+    }
+}
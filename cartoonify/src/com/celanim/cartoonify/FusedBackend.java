@@ -0,0 +1,28 @@
+package com.celanim.cartoonify;
+
+/**
+ * Processes photos on the CPU in one fused pass, without the intermediate images.
+ * When debugging, the separate stages are used instead, so that the intermediate images can be saved,
+ * and also when a stack blur or luminance edges are chosen, since the fused pass does not have them.
+ */
+public class FusedBackend implements CartoonBackend {
+
+    @Override
+    public String name() {
+        return "fused";
+    }
+
+    @Override
+    public String description() {
+        return "Java on the CPU, all stages fused into one pass (separate stages when debugging)";
+    }
+
+    @Override
+    public void process(Cartoonify cartoon) {
+        if (cartoon.isDebug() || cartoon.needsCpuStages()) {
+            cartoon.processPhotoOnCPU();
+        } else {
+            cartoon.processPhotoFused();
+        }
+    }
+}
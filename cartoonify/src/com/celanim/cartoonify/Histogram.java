@@ -0,0 +1,133 @@
+package com.celanim.cartoonify;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A thread-safe histogram of non-negative long values, such as latencies in nanoseconds.
+ * <p>
+ * Like an HdrHistogram, the buckets are log-linear: each power of two is split into
+ * <code>SUB_BUCKETS</code> equal buckets, so every recorded value is kept to within
+ * 1% of its true value, from 1 up to <code>MAX_VALUE</code>, in a fixed amount of memory.
+ * Recording a value is just a few bit operations and one atomic increment.
+ */
+public final class Histogram {
+
+    /**
+     * The number of bits of precision kept for each value.
+     */
+    private static final int PRECISION_BITS = 7;
+
+    /**
+     * The number of buckets in each power of two.
+     */
+    public static final int SUB_BUCKETS = 1 << PRECISION_BITS;
+
+    /**
+     * Larger values are recorded as this value.  In nanoseconds, this is about 4.9 hours.
+     */
+    public static final long MAX_VALUE = (1L << 44) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucket(MAX_VALUE) + 1);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong total = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value 0 or more.  Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        final long v = value < 0 ? 0 : value > MAX_VALUE ? MAX_VALUE : value;
+        counts.incrementAndGet(bucket(v));
+        count.incrementAndGet();
+        total.addAndGet(v);
+        long oldMax = max.get();
+        while (v > oldMax && !max.compareAndSet(oldMax, v)) {
+            oldMax = max.get();
+        }
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * @return the sum of all the values recorded.
+     */
+    public long total() {
+        return total.get();
+    }
+
+    /**
+     * @return the largest value recorded, exactly.
+     */
+    public long max() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if there are none.
+     */
+    public double mean() {
+        final long n = count.get();
+        return n == 0 ? 0.0 : total.get() / (double) n;
+    }
+
+    /**
+     * @param percentile 0 .. 100.
+     * @return the highest value that is equivalent (within the histogram's precision) to the value
+     *         at that percentile, but never more than max().  0 if no values have been recorded.
+     */
+    public long percentile(double percentile) {
+        final long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestEquivalentValue(i), max());
+            }
+        }
+        return max();
+    }
+
+    /**
+     * Forget all the recorded values.
+     * Values that are recorded while this is running may or may not be forgotten.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * @param value 0 .. MAX_VALUE.
+     * @return the bucket for that value.  Values below 2 * SUB_BUCKETS have a bucket each.
+     */
+    static int bucket(long value) {
+        final int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - PRECISION_BITS);
+        return (shift << PRECISION_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return the largest value that goes in the given bucket.
+     */
+    static long highestEquivalentValue(int bucket) {
+        final int shift = Math.max(0, (bucket >> PRECISION_BITS) - 1);
+        final long lowest = (long) (bucket - (shift << PRECISION_BITS)) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,236 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encodes and writes images on background threads, so that the next photo can be
+ * processed while the results of the previous photos are being saved.
+ * <p>
+ * Images wait in a bounded queue.  When it is full, <code>save</code> waits for space,
+ * so a slow disk or encoder holds back the processing rather than filling up memory with images.
+ * Each saved pixel array belongs to the encoder until it has been written: the caller
+ * must not change it, and the encoder returns it to the buffer pool afterwards.
+ * <p>
+ * If an image cannot be saved, the error is reported by the next call to <code>save</code>
+ * or <code>close</code>, and the images after it are still saved.  But an <code>Error</code>
+ * (such as <code>OutOfMemoryError</code>) stops the thread that saw it, and once no
+ * encoder threads are left, <code>save</code> and <code>close</code> fail instead of waiting.
+ */
+public class ImageEncoder implements AutoCloseable {
+
+    /**
+     * Something to do after an image has been written, such as caching it.
+     */
+    public interface Saved {
+        void saved() throws IOException;
+    }
+
+    /**
+     * An image waiting to be encoded.
+     */
+    private static final class Job {
+        final String name;
+        final int[] pixels;
+        final int width;
+        final int height;
+        final Saved saved;
+
+        Job(String name, int[] pixels, int width, int height, Saved saved) {
+            this.name = name;
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+            this.saved = saved;
+        }
+    }
+
+    /**
+     * Tells an encoder thread that there are no more images.
+     */
+    private static final Job END = new Job(null, null, 0, 0, null);
+
+    private final PixelBufferPool bufferPool;
+
+    private final CartoonMetrics metrics;
+
+    private final BlockingQueue<Job> queue;
+
+    private final List<Thread> threads = new ArrayList<>();
+
+    /**
+     * The number of encoder threads that are still taking images from the queue.
+     */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * The first error from the encoder threads, which has not been reported yet.
+     */
+    private IOException failure;
+
+    private boolean closed = false;
+
+    /**
+     * Creates an encoder whose queue holds up to four images per thread.
+     *
+     * @param bufferPool where to return the pixel arrays once they are saved.
+     * @param metrics    where to record the encoding times and queue depths.
+     * @param numThreads the number of threads that encode and write images.
+     */
+    public ImageEncoder(PixelBufferPool bufferPool, CartoonMetrics metrics, int numThreads) {
+        this(bufferPool, metrics, numThreads, 4 * numThreads);
+    }
+
+    /**
+     * Creates an encoder and starts its threads.
+     *
+     * @param bufferPool where to return the pixel arrays once they are saved.
+     * @param metrics    where to record the encoding times and queue depths.
+     * @param numThreads the number of threads that encode and write images.
+     * @param queueSize  the maximum number of images waiting to be encoded.
+     */
+    public ImageEncoder(PixelBufferPool bufferPool, CartoonMetrics metrics, int numThreads, int queueSize) {
+        if (numThreads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("an encoder needs at least one thread and a queue of at least one image, not "
+                    + numThreads + " and " + queueSize);
+        }
+        this.bufferPool = bufferPool;
+        this.metrics = metrics;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        running.set(numThreads);
+        for (int i = 1; i <= numThreads; i++) {
+            final Thread thread = new Thread(this::encodeAll, "encode-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    /**
+     * Queues an image to be encoded and written, waiting for space in the queue if it is full.
+     *
+     * @param newName the extension of this name (eg. .jpg) determines the output file type.
+     * @param pixels  the RGB pixels, which now belong to the encoder.
+     * @param width   the width of the image.
+     * @param height  the height of the image.
+     * @param saved   what to do after the image is written, or null.
+     * @throws IOException if an earlier image could not be saved, all the encoder threads have stopped,
+     *                     or this thread is interrupted.
+     */
+    public void save(String newName, int[] pixels, int width, int height, Saved saved) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("encoder is closed");
+        }
+        checkFailure();
+        try {
+            if (!offer(new Job(newName, pixels, width, height, saved))) {
+                checkFailure();
+                throw new IOException("cannot save " + newName + ": all the encoder threads have stopped");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to save " + newName);
+        }
+        metrics.recordQueueDepth("encode", queue.size());
+    }
+
+    /**
+     * Waits until all the queued images are saved, then stops the encoder threads.
+     *
+     * @throws IOException if any image could not be saved, or this thread is interrupted.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            try {
+                for (int i = 0; i < threads.size() && offer(END); i++) {
+                    // each running thread takes one END
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for images to be saved");
+            }
+            // if threads stopped early, any images still queued will never be saved.
+            int unsaved = 0;
+            for (Job job = queue.poll(); job != null; job = queue.poll()) {
+                if (job != END) {
+                    bufferPool.release(job.pixels);
+                    unsaved++;
+                }
+            }
+            checkFailure();
+            if (unsaved > 0) {
+                throw new IOException(unsaved + " images were not saved: all the encoder threads have stopped");
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Adds a job to the queue, waiting for space while any encoder thread is still running.
+     *
+     * @return false if all the encoder threads have stopped, so the job was not queued.
+     */
+    private boolean offer(Job job) throws InterruptedException {
+        while (running.get() > 0) {
+            if (queue.offer(job, 100, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void checkFailure() throws IOException {
+        final IOException ex = failure;
+        failure = null;
+        if (ex != null) {
+            throw ex;
+        }
+    }
+
+    private synchronized void fail(IOException ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+    }
+
+    private void encodeAll() {
+        try {
+            for (Job job = queue.take(); job != END; job = queue.take()) {
+                try {
+                    final CartoonMetrics.Timer timer = metrics.start("encode");
+                    Cartoonify.writeImage(job.pixels, job.width, job.height, job.name);
+                    timer.stop(job.width, job.height);
+                    if (job.saved != null) {
+                        job.saved.saved();
+                    }
+                } catch (IOException ex) {
+                    fail(ex);
+                } catch (RuntimeException ex) {
+                    fail(new IOException("cannot save " + job.name, ex));
+                } catch (Throwable ex) {
+                    // an Error leaves this thread in an unknown state, so it stops.
+                    fail(new IOException("cannot save " + job.name + ", and " + Thread.currentThread().getName()
+                            + " has stopped", ex));
+                    return;
+                } finally {
+                    bufferPool.release(job.pixels);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.celanim.cartoonify;
+
+/**
+ * Sobel edge detection on the luminance (brightness) of the pixels, instead of on
+ * each of the red, green and blue channels.
+ * <p>
+ * The image is converted to 8-bit luma once, and then the two 3x3 Sobel filters are applied
+ * to that one channel, which is about a third of the arithmetic of filtering all three
+ * channels.  Most edges in photos are changes of brightness, so this finds nearly the same edges,
+ * but it misses edges between different colours of the same brightness.
+ * <p>
+ * So that the same edge thresholds can be used, the gradients are multiplied by 3: an edge
+ * between two grays gives the same gradient as it does with all three channels.
+ * <p>
+ * Each band of rows uses its own instance, for its scratch buffers.
+ * An instance must only be used by one thread at a time.
+ */
+final class LumaSobel {
+
+    /**
+     * The weights of red, green and blue in the luma (from ITU-R BT.601), out of 256.
+     */
+    private static final int RED_WEIGHT = 77;
+    private static final int GREEN_WEIGHT = 150;
+    private static final int BLUE_WEIGHT = 29;
+
+    private final int width;
+    private final int height;
+    private final EdgePolicy edges;
+
+    /**
+     * For each column, the vertical smoothing (above + 2 * middle + below)
+     * and the vertical difference (above - below) of the luma.
+     */
+    private final int[] smooth;
+    private final int[] diff;
+
+    private final int[] gradients;
+
+    /**
+     * @param width  the width of the images that will be filtered.
+     * @param height the height of the images that will be filtered.
+     */
+    LumaSobel(int width, int height) {
+        this(width, height, EdgePolicy.CLAMP);
+    }
+
+    /**
+     * @param width  the width of the images that will be filtered.
+     * @param height the height of the images that will be filtered.
+     * @param edges  how to find the pixels beyond the edges of the images.
+     */
+    LumaSobel(int width, int height, EdgePolicy edges) {
+        this.width = width;
+        this.height = height;
+        this.edges = edges;
+        this.smooth = new int[width];
+        this.diff = new int[width];
+        this.gradients = new int[width];
+    }
+
+    /**
+     * Converts the pixels <code>from .. to-1</code> to luma values, 0 .. 255.
+     */
+    static void lumaPixels(int[] src, int[] luma, int from, int to) {
+        for (int i = from; i < to; i++) {
+            final int rgb = src[i];
+            luma[i] = (RED_WEIGHT * ((rgb >> 16) & 0xFF) + GREEN_WEIGHT * ((rgb >> 8) & 0xFF)
+                    + BLUE_WEIGHT * (rgb & 0xFF) + 128) >> 8;
+        }
+    }
+
+    /**
+     * Calculates the total Sobel gradient of each pixel along one row of a luma image,
+     * scaled to be comparable with the gradients of <code>RowFilters.gradientRow</code>.
+     * As with the other stages, the pixels beyond the edges of the image are found with the edge policy.
+     *
+     * @param luma      the luma of the whole image, from <code>lumaPixels</code>.
+     * @param y         the row.
+     * @param gradients where to put the gradients.
+     * @param offset    the position in <code>gradients</code> of the first gradient.
+     */
+    void gradientRow(int[] luma, int y, int[] gradients, int offset) {
+        final int above = edges.index(y - 1, height) * width;
+        final int middle = y * width;
+        final int below = edges.index(y + 1, height) * width;
+        for (int x = 0; x < width; x++) {
+            smooth[x] = luma[above + x] + 2 * luma[middle + x] + luma[below + x];
+            diff[x] = luma[above + x] - luma[below + x];
+        }
+        // interior: both neighbours are inside the row.
+        for (int x = 1; x < width - 1; x++) {
+            final int vertical = smooth[x + 1] - smooth[x - 1];
+            final int horizontal = diff[x - 1] + 2 * diff[x] + diff[x + 1];
+            gradients[offset + x] = 3 * (Math.abs(vertical) + Math.abs(horizontal));
+        }
+        gradients[offset] = borderGradient(0);
+        if (width > 1) {
+            gradients[offset + width - 1] = borderGradient(width - 1);
+        }
+    }
+
+    private int borderGradient(int x) {
+        final int left = edges.index(x - 1, width);
+        final int right = edges.index(x + 1, width);
+        final int vertical = smooth[right] - smooth[left];
+        final int horizontal = diff[left] + 2 * diff[x] + diff[right];
+        return 3 * (Math.abs(vertical) + Math.abs(horizontal));
+    }
+
+    /**
+     * Detects the edges along one row of a luma image, like <code>RowFilters.edgeRow</code>.
+     *
+     * @param luma          the luma of the whole image, from <code>lumaPixels</code>.
+     * @param y             the row.
+     * @param dest          where to put the edge pixels.
+     * @param offset        the position in <code>dest</code> of the first edge pixel.
+     * @param edgeThreshold the total gradient at which a pixel counts as an edge.
+     * @param edgeColour    the colour for edge pixels.
+     * @param otherColour   the colour for all the other pixels.
+     */
+    void edgeRow(int[] luma, int y, int[] dest, int offset, int edgeThreshold, int edgeColour, int otherColour) {
+        gradientRow(luma, y, gradients, 0);
+        for (int x = 0; x < width; x++) {
+            dest[offset + x] = gradients[x] >= edgeThreshold ? edgeColour : otherColour;
+        }
+    }
+
+    /**
+     * Detects the edges along one row of a luma image, setting one bit per edge pixel,
+     * like <code>RowFilters.edgeMaskRow</code>.
+     *
+     * @param luma          the luma of the whole image, from <code>lumaPixels</code>.
+     * @param y             the row.
+     * @param words         where to put the edge bits.  The row's words are overwritten.
+     * @param wordOffset    the position in <code>words</code> of the first word of the row.
+     * @param edgeThreshold the total gradient at which a pixel counts as an edge.
+     */
+    void edgeMaskRow(int[] luma, int y, long[] words, int wordOffset, int edgeThreshold) {
+        gradientRow(luma, y, gradients, 0);
+        long word = 0;
+        for (int x = 0; x < width; x++) {
+            if (gradients[x] >= edgeThreshold) {
+                word |= 1L << x;
+            }
+            if ((x & 63) == 63) {
+                words[wordOffset + (x >>> 6)] = word;
+                word = 0;
+            }
+        }
+        if ((width & 63) != 0) {
+            words[wordOffset + (width >>> 6)] = word;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.celanim.cartoonify;
+
+import com.nativelibs4java.opencl.*;
+import org.bridj.Pointer;
+
+/**
+ * Processes photos on the GPU with OpenCL: the blur and edge detection run as two
+ * OpenCL kernels, then the colours are reduced and merged on the CPU.
+ * <p>
+ * Nothing native is touched until the first photo is processed, so the other backends
+ * (and the unit tests) work on machines that have no OpenCL driver.  The context,
+ * queues and compiled program are then created once and reused for every photo.
+ */
+public class OpenCLBackend implements CartoonBackend {
+
+    /**
+     * OpenCL kernel to calculate Gaussian Blur and Sobel Edge Detect
+     */
+    private static final String SOURCE =
+            "int wrap(int pos, int size) {\n" +
+                    "    return select(0, select(pos, size - 1 ,pos >= size), pos > 0);\n" +
+                    "}\n" +
+                    "\n" +
+                    "int3 pixel (int p) {\n" +
+                    "    return (int3)((p>>16) & 0xFF, (p>>8) & 0xFF, p & 0xFF);\n" +
+                    "}\n" +
+                    "\n" +
+                    "__kernel void gaussianBlur\n" +
+                    "(__global int *a, __global int *b,int width, int height)\n" +
+                    "{\n" +
+                    "    int gid = get_global_id(0);\n" +
+                    "\n" +
+                    "    int yCentre = gid / width;\n" +
+                    "    int xCentre = gid % width;\n" +
+                    "\n" +
+                    "    int y0 = wrap(yCentre - 2, height);\n" +
+                    "    int y1 = wrap(yCentre - 1, height);\n" +
+                    "    int y2 = wrap(yCentre, height);\n" +
+                    "    int y3 = wrap(yCentre + 1, height);\n" +
+                    "    int y4 = wrap(yCentre + 2, height);\n" +
+                    "    int x0 = wrap(xCentre - 2, width);\n" +
+                    "    int x1 = wrap(xCentre - 1, width);\n" +
+                    "    int x2 = wrap(xCentre, width);\n" +
+                    "    int x3 = wrap(xCentre + 1, width);\n" +
+                    "    int x4 = wrap(xCentre + 2, width);\n" +
+                    "\n" +
+                    "    int3 sum =\n" +
+                    "    pixel(a[y0*width + x0]) * 2 + pixel(a[y0*width + x1]) * 4 + pixel(a[y0*width + x2]) * 5 + pixel(a[y0*width + x3]) * 4 + pixel(a[y0*width + x4]) * 2 +\n" +
+                    "    pixel(a[y1*width + x0]) * 4 + pixel(a[y1*width + x1]) * 9 + pixel(a[y1*width + x2]) *12 + pixel(a[y1*width + x3]) * 9 + pixel(a[y1*width + x4]) * 4 +\n" +
+                    "    pixel(a[y2*width + x0]) * 5 + pixel(a[y2*width + x1]) *12 + pixel(a[y2*width + x2]) *15 + pixel(a[y2*width + x3]) *12 + pixel(a[y2*width + x4]) * 5 +\n" +
+                    "    pixel(a[y3*width + x0]) * 4 + pixel(a[y3*width + x1]) * 9 + pixel(a[y3*width + x2]) *12 + pixel(a[y3*width + x3]) * 9 + pixel(a[y3*width + x4]) * 4 +\n" +
+                    "    pixel(a[y4*width + x0]) * 2 + pixel(a[y4*width + x1]) * 4 + pixel(a[y4*width + x2]) * 5 + pixel(a[y4*width + x3]) * 4 + pixel(a[y4*width + x4]) * 2;\n" +
+                    "\n" +
+                    "    sum = sum/159;\n" +
+                    "\n" +
+                    "    b[gid] = (sum.x<<16) + (sum.y<<8) + sum.z;\n" +
+                    "}\n" +
+                    "\n" +
+                    "__kernel void sobelEdgeDetect\n" +
+                    "(__global int *b, __global int *c,int width, int height, int edgeThreshold)\n" +
+                    "{\n" +
+                    "    int gid = get_global_id(0);\n" +
+                    "\n" +
+                    "    int yCentre = gid / width;\n" +
+                    "    int xCentre = gid % width;\n" +
+                    "\n" +
+                    "    int y0 = wrap(yCentre - 1, height);\n" +
+                    "    int y1 = wrap(yCentre, height);\n" +
+                    "    int y2 = wrap(yCentre + 1, height);\n" +
+                    "    int x0 = wrap(xCentre - 1, width);\n" +
+                    "    int x1 = wrap(xCentre, width);\n" +
+                    "    int x2 = wrap(xCentre + 1, width);\n" +
+                    "\n" +
+                    "    int3 sumV = 0\n" +
+                    "    - pixel(b[y0*width + x0]) + pixel(b[y0*width + x2])\n" +
+                    "    - pixel(b[y1*width + x0]) * 2 + pixel(b[y1*width + x2]) * 2\n" +
+                    "    - pixel(b[y2*width + x0]) + pixel(b[y2*width + x2]);\n" +
+                    "\n" +
+                    "    int3 sumH = 0\n" +
+                    "    + pixel(b[y0*width + x0]) + pixel(b[y0*width + x1]) * 2 + pixel(b[y0*width + x2])\n" +
+                    "    - pixel(b[y2*width + x0]) - pixel(b[y2*width + x1]) * 2 - pixel(b[y2*width + x2]);\n" +
+                    "\n" +
+                    "    int gV = abs(sumV.x) + abs(sumV.y) + abs(sumV.z);\n" +
+                    "    int gH = abs(sumH.x) + abs(sumH.y) + abs(sumH.z);\n" +
+                    "\n" +
+                    "    c[gid] = select(0xFFFFFF, 0,(gV+gH)>= edgeThreshold);\n" +
+                    "}";
+
+    /**
+     * The preferred group size multiple on my machine.
+     */
+    private static final int WORKGROUP_SIZE = 64;
+
+    private CLContext context;
+    private CLQueue queue1;
+    private CLQueue queue2;
+    private CLProgram program;
+
+    @Override
+    public String name() {
+        return "opencl";
+    }
+
+    @Override
+    public String description() {
+        return "OpenCL on the best GPU for blurring and edge detection, then the CPU";
+    }
+
+    @Override
+    public void process(Cartoonify cartoon) {
+        if (cartoon.needsCpuStages()) {
+            // the kernels only have the Gaussian blur and RGB edges, so use the CPU stages instead.
+            cartoon.processPhotoOnCPU();
+            return;
+        }
+        gaussianBlur_sobelEdgeDetect_OpenCL(cartoon);
+        int edgeMask = cartoon.numImages() - 1;
+        // now convert the original image into a few discrete colours
+        cartoon.cloneImage(0);
+        cartoon.reduceColours();
+        cartoon.mergeMask(edgeMask, cartoon.white, -1);
+    }
+
+    /**
+     * Choose the platform and the best GPU device, and build the program, the first time this is called.
+     *
+     * @throws IllegalStateException if OpenCL is not available on this machine.
+     */
+    private synchronized void initOpenCL() {
+        if (context != null) {
+            return;
+        }
+        try {
+            context = JavaCL.createBestContext(CLPlatform.DeviceFeature.GPU);
+        } catch (LinkageError | CLException ex) {
+            throw new IllegalStateException("OpenCL is not available: " + ex, ex);
+        }
+        queue1 = context.createDefaultQueue();
+        queue2 = context.createDefaultQueue();
+        program = context.createProgram(SOURCE).build();
+    }
+
+    /**
+     * GPU version:
+     *
+     *  Adds one new image that is a blurred version of the current image.
+     *
+     *  Detects edges in the current image and adds an image where black pixels
+     *  mark the edges and the other pixels are all white.
+     */
+    private synchronized void gaussianBlur_sobelEdgeDetect_OpenCL(Cartoonify cartoon) {
+        long startBlur = System.currentTimeMillis();
+        final CartoonMetrics.Timer timer = cartoon.getMetrics().start("opencl");
+        initOpenCL();
+
+        final int width = cartoon.width();
+        final int height = cartoon.height();
+        final int length = width * height;
+
+        // Allocate OpenCL-hosted memory
+        CLBuffer<Integer> memIn = context.createIntBuffer(CLMem.Usage.Input, length);
+        CLBuffer<Integer> memInOut = context.createIntBuffer(CLMem.Usage.InputOutput, length);
+        CLBuffer<Integer> memOut = context.createIntBuffer(CLMem.Usage.Output, length);
+
+
+        // Map input buffers to populate them with some data
+        Pointer<Integer> a = memIn.map(queue1, CLMem.MapFlags.Write);
+
+        //Fill the arrays with image
+        a.setInts(cartoon.currentImage());
+
+        //Unmap input buffers
+        memIn.unmap(queue1, a);
+
+        CLKernel blurKernel = program.createKernel("gaussianBlur", memIn, memInOut, width, height);
+        CLKernel edgeKernel = program.createKernel("sobelEdgeDetect", memInOut, memOut, width, height,
+                cartoon.getEdgeThreshold());
+
+        CLEvent blurEvent = blurKernel.enqueueNDRange(queue1, new int[]{length}, new int[]{WORKGROUP_SIZE});
+        CLEvent edgeEvent = edgeKernel.enqueueNDRange(queue2, new int[]{length}, new int[]{WORKGROUP_SIZE}, blurEvent);
+
+        //Execution begins when the user executes a synchronizing command,
+        queue2.flush();
+        queue1.flush();
+
+        // Wait for all operations to be performed
+        queue1.finish();
+        queue2.finish();
+
+        Pointer<Integer> output1 = memInOut.read(queue1);
+        Pointer<Integer> output2 = memOut.read(queue2);
+
+        cartoon.pushImage(output1.getInts());
+        cartoon.pushImage(output2.getInts());
+        memIn.release();
+        memInOut.release();
+        memOut.release();
+        timer.stop(width, height);
+        long endBlur = System.currentTimeMillis();
+        if (cartoon.isDebug()) {
+            System.out.println("  gaussian blurring and sobel Edge Detect took " + (endBlur - startBlur) / 1e3 + " secs.");
+        }
+    }
+}
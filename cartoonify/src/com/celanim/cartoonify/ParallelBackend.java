@@ -0,0 +1,25 @@
+package com.celanim.cartoonify;
+
+/**
+ * Processes photos on the CPU, one stage at a time, with each stage split across all the cores.
+ * <p>
+ * This uses the thread count and thread pool of the processor.  On the command line,
+ * <code>-b parallel</code> gives it one thread per available processor, unless <code>-p</code> is given.
+ */
+public class ParallelBackend implements CartoonBackend {
+
+    @Override
+    public String name() {
+        return "parallel";
+    }
+
+    @Override
+    public String description() {
+        return "Java on all CPU cores, each stage split into bands of rows";
+    }
+
+    @Override
+    public void process(Cartoonify cartoon) {
+        cartoon.processPhotoOnCPU();
+    }
+}
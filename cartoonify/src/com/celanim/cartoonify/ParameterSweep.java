@@ -0,0 +1,121 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+
+/**
+ * Turns each photo into a cartoon for every combination of several edge thresholds
+ * and several numbers of colours, to help choose the best settings.
+ * <p>
+ * The expensive stages are done just once per photo: decoding, blurring and the Sobel
+ * gradients of the blurred image, plus one colour reduction per number of colours.
+ * Each variant then only needs the gradients to be thresholded (once per threshold)
+ * and merged with the reduced colours, so an N by M sweep costs little more than one
+ * normal run plus the encoding of its N*M outputs.  Each variant is exactly the same
+ * as running Cartoonify with that <code>-e</code> and <code>-c</code>.
+ * <p>
+ * The output for threshold E and C colours of "foo.jpg" is saved as "foo_cartoon_eE_cC.jpg".
+ */
+public class ParameterSweep {
+
+    private final Cartoonify settings;
+
+    private final int[] thresholds;
+
+    private final int[] colours;
+
+    /**
+     * @param settings   the threads, SIMD and buffer pool to use.  Its own threshold and colours are ignored.
+     * @param thresholds the edge thresholds to try, each 0 or more.
+     * @param colours    the numbers of colours per channel to try, each 2 .. 256.
+     */
+    public ParameterSweep(Cartoonify settings, int[] thresholds, int[] colours) {
+        if (thresholds.length == 0 || colours.length == 0) {
+            throw new IllegalArgumentException("a sweep needs at least one threshold and one number of colours");
+        }
+        for (int threshold : thresholds) {
+            if (threshold < 0) {
+                throw new IllegalArgumentException("edge threshold must be at least zero, not " + threshold);
+            }
+        }
+        for (int numColours : colours) {
+            if (numColours < 2 || numColours > 256) {
+                throw new IllegalArgumentException("NumColours must be 2..256, not " + numColours);
+            }
+        }
+        this.settings = settings;
+        this.thresholds = thresholds.clone();
+        this.colours = colours.clone();
+    }
+
+    /**
+     * @param baseName      the name of the input photo, without its extension.
+     * @param edgeThreshold the edge threshold of the variant.
+     * @param numColours    the number of colours of the variant.
+     * @param extn          the extension of the input photo, including the dot.
+     * @return the file name that the variant is saved as.
+     */
+    public static String variantName(String baseName, int edgeThreshold, int numColours, String extn) {
+        return baseName + "_cartoon_e" + edgeThreshold + "_c" + numColours + extn;
+    }
+
+    /**
+     * Reads a photo, and saves all the variants of its cartoon.
+     *
+     * @param name path to the photo, including a known extension (e.g. ".jpg").
+     * @return the number of milliseconds to process all the variants (excluding loading/saving).
+     * @throws IOException if the photo cannot be read or a variant cannot be saved.
+     */
+    public long process(String name) throws IOException {
+        final int dot = name.lastIndexOf('.');
+        final String baseName = name.substring(0, dot);
+        final String extn = name.substring(dot).toLowerCase();
+        final Cartoonify worker = settings.copySettings();
+        try {
+            worker.loadPhoto(name);
+            final long time0 = System.currentTimeMillis();
+            // reduce the colours first, while the original is the current image.
+            final int[][] reduced = new int[colours.length][];
+            for (int c = 0; c < colours.length; c++) {
+                worker.setNumColours(colours[c]);
+                worker.reduceColours();
+                reduced[c] = worker.popImage();
+            }
+            worker.blur();
+            worker.sobelGradient();
+            // stack: original, blurred, gradients, reduced[0], reduced[1], ...
+            final int gradients = worker.numImages() - 1;
+            final int firstReduced = worker.numImages();
+            for (int[] image : reduced) {
+                worker.pushImage(image);
+            }
+            // only the processing is timed, not the encoding of each variant.
+            long computeMillis = System.currentTimeMillis() - time0;
+            for (int threshold : thresholds) {
+                final long time1 = System.currentTimeMillis();
+                worker.thresholdEdges(gradients, threshold);
+                final int edgeMask = worker.numImages() - 1;
+                computeMillis += System.currentTimeMillis() - time1;
+                for (int c = 0; c < colours.length; c++) {
+                    final long time2 = System.currentTimeMillis();
+                    worker.mergeMask(edgeMask, worker.white, firstReduced + c);
+                    final int[] cartoon = worker.popImage();
+                    final long time3 = System.currentTimeMillis();
+                    computeMillis += time3 - time2;
+                    final CartoonMetrics.Timer encode = worker.getMetrics().start("encode");
+                    Cartoonify.writeImage(cartoon, worker.width(), worker.height(),
+                            variantName(baseName, threshold, colours[c], extn));
+                    encode.stop(worker.width(), worker.height());
+                    worker.getBufferPool().release(cartoon);
+                }
+                worker.dropImage();
+            }
+            System.out.println("Done " + name + " -> " + thresholds.length * colours.length + " variants in "
+                    + computeMillis / 1e3 + " secs.");
+            return computeMillis;
+        } finally {
+            worker.clear();
+            // the worker's thread pool is only for this photo, so shut it down.
+            worker.setThreads(1);
+        }
+    }
+}
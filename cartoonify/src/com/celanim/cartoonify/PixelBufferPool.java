@@ -0,0 +1,169 @@
+package com.celanim.cartoonify;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of pixel arrays, so that processing a batch of photos can reuse the same
+ * few large arrays instead of allocating new ones for every image of every photo.
+ * <p>
+ * Arrays are pooled by their length, since photos of the same size need arrays of
+ * the same length.  The pool keeps at most <code>maxRetainedBytes</code> of free arrays;
+ * arrays that are released after that is reached are left for the garbage collector.
+ * The hit and miss counts show how well the pool is working: once a batch of same-sized
+ * photos is running steadily, almost every borrow should be a hit.
+ * <p>
+ * All the methods are synchronized, so one pool can be shared by several threads.
+ */
+public final class PixelBufferPool {
+
+    /**
+     * The default maximum number of bytes of free arrays to keep: enough for all the
+     * images of one 12 megapixel photo, with debugging on.
+     */
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 6L * 4 * 12_000_000;
+
+    private final Map<Integer, ArrayDeque<int[]>> free = new HashMap<>();
+
+    private long maxRetainedBytes;
+
+    private long retainedBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long dropped;
+
+    /**
+     * Create a pool that keeps up to DEFAULT_MAX_RETAINED_BYTES of free arrays.
+     */
+    public PixelBufferPool() {
+        this(DEFAULT_MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * @param maxRetainedBytes the maximum number of bytes of free arrays to keep.  0 means do no pooling.
+     */
+    public PixelBufferPool(long maxRetainedBytes) {
+        setMaxRetainedBytes(maxRetainedBytes);
+    }
+
+    /**
+     * Set the maximum number of bytes of free arrays to keep.
+     * If the pool is already bigger than this, arrays are discarded until it is not.
+     *
+     * @param maxRetainedBytes 0 or more.
+     */
+    public synchronized void setMaxRetainedBytes(long maxRetainedBytes) {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException("max retained bytes must be at least zero, not " + maxRetainedBytes);
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+        while (retainedBytes > maxRetainedBytes) {
+            final ArrayDeque<int[]> arrays = free.values().iterator().next();
+            retainedBytes -= bytes(arrays.pop().length);
+            dropped++;
+            if (arrays.isEmpty()) {
+                free.values().remove(arrays);
+            }
+        }
+    }
+
+    public synchronized long getMaxRetainedBytes() {
+        return maxRetainedBytes;
+    }
+
+    /**
+     * Borrows an array from the pool, or allocates a new one if there is no free array of that length.
+     * <p>
+     * The contents of the array are undefined, so the caller must overwrite every element.
+     *
+     * @param length the number of pixels needed.
+     * @return an array of exactly that length, which now belongs to the caller.
+     */
+    public int[] borrow(int length) {
+        synchronized (this) {
+            final ArrayDeque<int[]> arrays = free.get(length);
+            if (arrays != null) {
+                final int[] result = arrays.pop();
+                if (arrays.isEmpty()) {
+                    free.remove(length);
+                }
+                retainedBytes -= bytes(length);
+                hits++;
+                return result;
+            }
+            misses++;
+        }
+        // allocate outside the lock, since a big allocation may wait for the garbage collector.
+        return new int[length];
+    }
+
+    /**
+     * Returns an array to the pool, so it can be borrowed again.
+     * <p>
+     * The caller must not use the array afterwards, and must not release the same array twice.
+     *
+     * @param array an array from <code>borrow</code>, or any other pixel array.  Null is ignored.
+     */
+    public synchronized void release(int[] array) {
+        if (array == null) {
+            return;
+        }
+        final long bytes = bytes(array.length);
+        if (retainedBytes + bytes > maxRetainedBytes) {
+            dropped++;
+            return;
+        }
+        free.computeIfAbsent(array.length, k -> new ArrayDeque<>()).push(array);
+        retainedBytes += bytes;
+    }
+
+    /**
+     * Discards all the free arrays.  The counters are not reset.
+     */
+    public synchronized void trim() {
+        free.clear();
+        retainedBytes = 0;
+    }
+
+    /**
+     * @return the number of bytes in the free arrays that the pool is keeping.
+     */
+    public synchronized long retainedBytes() {
+        return retainedBytes;
+    }
+
+    /**
+     * @return how many borrows were given an array from the pool.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return how many borrows had to allocate a new array.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return how many released arrays were not kept, because the pool was full.
+     */
+    public synchronized long dropped() {
+        return dropped;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PixelBufferPool(hits=" + hits + ", misses=" + misses + ", dropped=" + dropped
+                + ", retained=" + retainedBytes + " of " + maxRetainedBytes + " bytes)";
+    }
+
+    private static long bytes(int length) {
+        return 4L * length;
+    }
+}
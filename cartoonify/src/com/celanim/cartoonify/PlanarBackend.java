@@ -0,0 +1,28 @@
+package com.celanim.cartoonify;
+
+/**
+ * Processes photos on the CPU with a separate plane for each colour channel.
+ * If a stack blur or luminance edges are chosen, the separate CPU stages are used instead,
+ * since the planar stages do not have them.
+ */
+public class PlanarBackend implements CartoonBackend {
+
+    @Override
+    public String name() {
+        return "planar";
+    }
+
+    @Override
+    public String description() {
+        return "Java on the CPU, with each colour channel stored separately (structure of arrays)";
+    }
+
+    @Override
+    public void process(Cartoonify cartoon) {
+        if (cartoon.needsCpuStages()) {
+            cartoon.processPhotoOnCPU();
+        } else {
+            cartoon.processPhotoPlanar();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.celanim.cartoonify;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * A colour operation that changes each pixel on its own, without looking at its neighbours,
+ * such as colour quantization or grayscale.
+ * <p>
+ * Rather than doing the arithmetic for every pixel, each operator is compiled into lookup tables
+ * of 256 entries per colour channel.  There are two kinds:
+ * <ul>
+ * <li>per-channel operators (such as <code>quantize</code>) map each channel value through
+ * its own table, so a pixel costs three table lookups;</li>
+ * <li>channel-sum operators (such as <code>grayscale</code>) map each channel through a table,
+ * add up the three results, and look up the sum in a final table of whole pixels,
+ * so a pixel costs four lookups.</li>
+ * </ul>
+ * Operators compose with <code>then</code>, and the result is compiled into one operator of
+ * one of these kinds, so a chain of operations still costs at most four lookups per pixel.
+ * For example, <code>quantize(3).then(grayscale())</code> looks up the quantized value of
+ * each channel, and then the gray pixel for their sum.  (A single table indexed by the
+ * whole 24-bit pixel would need 64 MB, which is much slower than these small tables
+ * because they stay in the L1 cache.)
+ * <p>
+ * Operators are immutable, so they can be shared between threads.  The quantize operators
+ * are cached, so their tables are only calculated once for each number of colours.
+ */
+public abstract class PointOperator {
+
+    private static final int CHANNEL_VALUES = Cartoonify.COLOUR_MASK + 1;
+
+    private static final PointOperator IDENTITY = perChannel(value -> value);
+
+    private static final PointOperator GRAYSCALE = new ChannelSum(identityTable(), identityTable(), identityTable(),
+            sum -> {
+                final int average = sum / 3;
+                return (average << 16) | (average << 8) | average;
+            });
+
+    private static final PointOperator[] QUANTIZE = new PointOperator[CHANNEL_VALUES + 1];
+
+    /**
+     * Only the two nested implementations extend this class, since <code>then</code> relies on knowing them both.
+     */
+    private PointOperator() {
+    }
+
+    /**
+     * @return the operator that leaves every pixel unchanged.
+     */
+    public static PointOperator identity() {
+        return IDENTITY;
+    }
+
+    /**
+     * @param numColours the number of values in each colour channel after quantization (1..256).
+     * @return an operator that quantizes each colour channel, exactly like <code>Cartoonify.quantizeColour</code>.
+     * @throws ArithmeticException if numColours is 1, just like <code>Cartoonify.quantizeColour</code>.
+     */
+    public static PointOperator quantize(int numColours) {
+        if (numColours < 1 || numColours > CHANNEL_VALUES) {
+            throw new IllegalArgumentException("NumColours must be 1..256, not " + numColours);
+        }
+        synchronized (QUANTIZE) {
+            if (QUANTIZE[numColours] == null) {
+                QUANTIZE[numColours] = perChannel(value -> FrameOps.quantizeColour(value, numColours));
+            }
+            return QUANTIZE[numColours];
+        }
+    }
+
+    /**
+     * @return an operator that replaces each pixel by the average of its three colour values,
+     *         exactly like <code>Cartoonify.grayscale</code>.
+     */
+    public static PointOperator grayscale() {
+        return GRAYSCALE;
+    }
+
+    /**
+     * @param function a function from a colour value (0..255) to a new colour value (0..255).
+     * @return an operator that applies the function to each colour channel.
+     */
+    public static PointOperator perChannel(IntUnaryOperator function) {
+        final int[] table = new int[CHANNEL_VALUES];
+        for (int value = 0; value < CHANNEL_VALUES; value++) {
+            table[value] = checkColour(function.applyAsInt(value));
+        }
+        return new PerChannel(table, table, table);
+    }
+
+    /**
+     * @param rgb an RGB pixel.
+     * @return the new RGB pixel.
+     */
+    public abstract int apply(int rgb);
+
+    /**
+     * Applies this operator to the pixels <code>from .. to-1</code>.
+     *
+     * @param src  the input pixels.
+     * @param dest where to put the output pixels.  This may be the same array as src.
+     */
+    public abstract void apply(int[] src, int[] dest, int from, int to);
+
+    /**
+     * @param next the operator to apply to the result of this one.
+     * @return one operator that does this one and then the next one.
+     */
+    public abstract PointOperator then(PointOperator next);
+
+    private static int[] identityTable() {
+        final int[] table = new int[CHANNEL_VALUES];
+        for (int value = 0; value < CHANNEL_VALUES; value++) {
+            table[value] = value;
+        }
+        return table;
+    }
+
+    private static int checkColour(int value) {
+        if (value < 0 || value > Cartoonify.COLOUR_MASK) {
+            throw new IllegalArgumentException("colour values must be 0..255, not " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Maps each colour channel through its own table.
+     */
+    private static final class PerChannel extends PointOperator {
+        private final int[] red;
+        private final int[] green;
+        private final int[] blue;
+
+        PerChannel(int[] red, int[] green, int[] blue) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+        }
+
+        @Override
+        public int apply(int rgb) {
+            return (red[(rgb >> 16) & 0xFF] << 16) | (green[(rgb >> 8) & 0xFF] << 8) | blue[rgb & 0xFF];
+        }
+
+        @Override
+        public void apply(int[] src, int[] dest, int from, int to) {
+            final int[] r = red;
+            final int[] g = green;
+            final int[] b = blue;
+            for (int i = from; i < to; i++) {
+                final int rgb = src[i];
+                dest[i] = (r[(rgb >> 16) & 0xFF] << 16) | (g[(rgb >> 8) & 0xFF] << 8) | b[rgb & 0xFF];
+            }
+        }
+
+        @Override
+        public PointOperator then(PointOperator next) {
+            if (next instanceof PerChannel) {
+                final PerChannel after = (PerChannel) next;
+                return new PerChannel(compose(red, after.red), compose(green, after.green), compose(blue, after.blue));
+            } else {
+                final ChannelSum after = (ChannelSum) next;
+                return new ChannelSum(compose(red, after.red), compose(green, after.green), compose(blue, after.blue),
+                        after.sums);
+            }
+        }
+
+        private static int[] compose(int[] first, int[] second) {
+            final int[] table = new int[CHANNEL_VALUES];
+            for (int value = 0; value < CHANNEL_VALUES; value++) {
+                table[value] = second[first[value]];
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Maps each colour channel through its own table, adds up the results,
+     * and then looks up the whole output pixel for that sum.
+     */
+    private static final class ChannelSum extends PointOperator {
+        private final int[] red;
+        private final int[] green;
+        private final int[] blue;
+        private final int[] sums;
+
+        ChannelSum(int[] red, int[] green, int[] blue, IntUnaryOperator pixelForSum) {
+            this(red, green, blue, sumTable(max(red) + max(green) + max(blue), pixelForSum));
+        }
+
+        ChannelSum(int[] red, int[] green, int[] blue, int[] sums) {
+            this.red = red;
+            this.green = green;
+            this.blue = blue;
+            this.sums = sums;
+        }
+
+        @Override
+        public int apply(int rgb) {
+            return sums[red[(rgb >> 16) & 0xFF] + green[(rgb >> 8) & 0xFF] + blue[rgb & 0xFF]];
+        }
+
+        @Override
+        public void apply(int[] src, int[] dest, int from, int to) {
+            final int[] r = red;
+            final int[] g = green;
+            final int[] b = blue;
+            final int[] s = sums;
+            for (int i = from; i < to; i++) {
+                final int rgb = src[i];
+                dest[i] = s[r[(rgb >> 16) & 0xFF] + g[(rgb >> 8) & 0xFF] + b[rgb & 0xFF]];
+            }
+        }
+
+        @Override
+        public PointOperator then(PointOperator next) {
+            final int[] table = new int[sums.length];
+            for (int sum = 0; sum < sums.length; sum++) {
+                table[sum] = next.apply(sums[sum]);
+            }
+            return new ChannelSum(red, green, blue, table);
+        }
+
+        private static int[] sumTable(int maxSum, IntUnaryOperator pixelForSum) {
+            final int[] table = new int[maxSum + 1];
+            for (int sum = 0; sum <= maxSum; sum++) {
+                table[sum] = pixelForSum.applyAsInt(sum) & 0xFFFFFF;
+            }
+            return table;
+        }
+
+        private static int max(int[] table) {
+            int result = 0;
+            for (int value : table) {
+                result = Math.max(result, value);
+            }
+            return result;
+        }
+    }
+}
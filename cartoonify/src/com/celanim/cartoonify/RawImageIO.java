@@ -0,0 +1,350 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads and writes uncompressed images directly, without going through ImageIO and <code>BufferedImage</code>.
+ * <p>
+ * These formats are much faster than PNG or JPEG for handing images from one program to
+ * another, since there is no codec: the file is memory-mapped and its bytes are packed
+ * straight into (or out of) the RGB pixel array, a row at a time.
+ * The format is chosen by the file extension:
+ * <ul>
+ * <li><code>.ppm</code> is a binary PPM (P6) file;</li>
+ * <li><code>.pam</code> is a PAM (P7) file, with a depth of 1 (grayscale), 3 (RGB) or 4 (RGB and alpha,
+ * where the alpha is ignored).  RGB files are written;</li>
+ * <li><code>.rgb</code> is just the red, green and blue bytes of each pixel, with no header.
+ * The size is given by the file name instead, which must include the width and height,
+ * like <code>photo_640x480.rgb</code>.</li>
+ * </ul>
+ * PPM and PAM files may have any maximum value up to 65535, with two bytes per sample
+ * above 255.  The samples are scaled to 0..255 when they are read, and 255 is always written.
+ */
+final class RawImageIO {
+
+    private static final Pattern SIZE = Pattern.compile("(\\d+)x(\\d+)");
+
+    private RawImageIO() {
+    }
+
+    /**
+     * @param filename the name of an image file.
+     * @return true if the extension of this name is one of the raw formats.
+     */
+    static boolean supports(String filename) {
+        final String extn = extension(filename);
+        return extn.equals("ppm") || extn.equals("pam") || extn.equals("rgb");
+    }
+
+    /**
+     * Reads a raw image file.
+     *
+     * @param filename a <code>.ppm</code>, <code>.pam</code> or <code>.rgb</code> file.
+     * @param buffers  given the number of pixels, returns an array of that length for them.
+     * @return a frame that wraps the array from buffers.
+     * @throws IOException if the file cannot be read or is not a valid image.
+     */
+    static Frame read(String filename, IntFunction<int[]> buffers) throws IOException {
+        final Rows rows = open(filename);
+        final int[] pixels = buffers.apply(rows.width() * rows.height());
+        rows.read(0, rows.height(), pixels);
+        return new Frame(pixels, rows.width(), rows.height());
+    }
+
+    /**
+     * Opens a raw image file, so that any of its rows can be read without reading the rows above them.
+     *
+     * @param filename a <code>.ppm</code>, <code>.pam</code> or <code>.rgb</code> file.
+     * @return the rows of the file, memory-mapped.
+     * @throws IOException if the file cannot be read or is not a valid image.
+     */
+    static Rows open(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("image is too large to map: " + filename);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final Header header = extension(filename).equals("rgb")
+                    ? rawHeader(filename) : Header.parse(buffer, filename);
+            final long bytes = (long) header.width * header.height * header.depth * header.sampleBytes;
+            if (buffer.remaining() < bytes) {
+                throw new IOException("image data is truncated: " + filename);
+            }
+            return new Rows(buffer.slice(), header);
+        }
+    }
+
+    /**
+     * The rows of a memory-mapped raw image.  Reading a range of rows only touches the bytes of those rows.
+     */
+    static final class Rows {
+        private final ByteBuffer samples;
+        private final Header header;
+
+        private Rows(ByteBuffer samples, Header header) {
+            this.samples = samples;
+            this.header = header;
+        }
+
+        int width() {
+            return header.width;
+        }
+
+        int height() {
+            return header.height;
+        }
+
+        /**
+         * Packs some rows of the image into RGB pixels.
+         *
+         * @param top    the first row to read.
+         * @param rows   the number of rows.
+         * @param pixels at least <code>width() * rows</code> pixels, which are filled in.
+         * @return pixels.
+         */
+        int[] read(int top, int rows, int[] pixels) {
+            if (top < 0 || rows < 0 || top + rows > header.height) {
+                throw new IllegalArgumentException("rows " + top + ".." + (top + rows) + " are outside the image");
+            }
+            final ByteBuffer buffer = samples.duplicate();
+            buffer.position(top * header.rowBytes());
+            header.decode(buffer, pixels, rows);
+            return pixels;
+        }
+    }
+
+    /**
+     * Writes a raw image file.
+     *
+     * @param rgbPixels the pixels, in row-major order.
+     * @param width     the width of the image.
+     * @param height    the height of the image.
+     * @param newName   a <code>.ppm</code>, <code>.pam</code> or <code>.rgb</code> file.
+     * @throws IOException if the file cannot be written, or an <code>.rgb</code> name does not give this size.
+     */
+    static void write(int[] rgbPixels, int width, int height, String newName) throws IOException {
+        final String extn = extension(newName);
+        final String header;
+        if (extn.equals("ppm")) {
+            header = "P6\n" + width + " " + height + "\n255\n";
+        } else if (extn.equals("pam")) {
+            header = "P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH 3\nMAXVAL 255\nTUPLTYPE RGB\nENDHDR\n";
+        } else {
+            final Header named = rawHeader(newName);
+            if (named.width != width || named.height != height) {
+                throw new IOException("cannot write a " + width + "x" + height + " image to " + newName);
+            }
+            header = "";
+        }
+        final byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+        final long size = headerBytes.length + 3L * width * height;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("image is too large to map: " + newName);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(newName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.put(headerBytes);
+            final byte[] row = new byte[3 * width];
+            for (int y = 0; y < height; y++) {
+                final int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    final int rgb = rgbPixels[offset + x];
+                    row[3 * x] = (byte) (rgb >> 16);
+                    row[3 * x + 1] = (byte) (rgb >> 8);
+                    row[3 * x + 2] = (byte) rgb;
+                }
+                buffer.put(row);
+            }
+        }
+    }
+
+    private static String extension(String filename) {
+        final int dot = filename.lastIndexOf('.');
+        return dot < 0 ? "" : filename.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the header of a headerless <code>.rgb</code> file, from the last WIDTHxHEIGHT in its name.
+     */
+    private static Header rawHeader(String filename) throws IOException {
+        final String name = Paths.get(filename).getFileName().toString();
+        final Matcher matcher = SIZE.matcher(name);
+        String width = null;
+        String height = null;
+        while (matcher.find()) {
+            width = matcher.group(1);
+            height = matcher.group(2);
+        }
+        if (width == null) {
+            throw new IOException("raw RGB file names must include the size, like photo_640x480.rgb, not " + filename);
+        }
+        try {
+            return new Header(Integer.parseInt(width), Integer.parseInt(height), 3, 255, filename);
+        } catch (NumberFormatException ex) {
+            throw new IOException("invalid size in " + filename);
+        }
+    }
+
+    /**
+     * The size and layout of the samples in an image file.
+     */
+    private static final class Header {
+        final int width;
+        final int height;
+        /** The number of samples per pixel: 1, 3 or 4. */
+        final int depth;
+        final int maxValue;
+        /** The number of bytes per sample: 1, or 2 if maxValue is more than 255. */
+        final int sampleBytes;
+
+        Header(int width, int height, int depth, int maxValue, String filename) throws IOException {
+            if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE
+                    || maxValue < 1 || maxValue > 65535 || (depth != 1 && depth != 3 && depth != 4)) {
+                throw new IOException("unsupported image: " + width + "x" + height + ", depth " + depth
+                        + ", maximum value " + maxValue + ": " + filename);
+            }
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.maxValue = maxValue;
+            this.sampleBytes = maxValue > 255 ? 2 : 1;
+        }
+
+        /**
+         * Reads a PPM (P6) or PAM (P7) header, leaving the buffer at the first sample.
+         */
+        static Header parse(ByteBuffer buffer, String filename) throws IOException {
+            final String magic = token(buffer, filename);
+            if (magic.equals("P6")) {
+                final int width = number(token(buffer, filename), filename);
+                final int height = number(token(buffer, filename), filename);
+                final int maxValue = number(token(buffer, filename), filename);
+                // exactly one whitespace character separates the header from the samples.
+                buffer.get();
+                return new Header(width, height, 3, maxValue, filename);
+            }
+            if (magic.equals("P7")) {
+                int width = 0;
+                int height = 0;
+                int depth = 0;
+                int maxValue = 0;
+                for (String field = token(buffer, filename); !field.equals("ENDHDR"); field = token(buffer, filename)) {
+                    if (field.equals("WIDTH")) {
+                        width = number(token(buffer, filename), filename);
+                    } else if (field.equals("HEIGHT")) {
+                        height = number(token(buffer, filename), filename);
+                    } else if (field.equals("DEPTH")) {
+                        depth = number(token(buffer, filename), filename);
+                    } else if (field.equals("MAXVAL")) {
+                        maxValue = number(token(buffer, filename), filename);
+                    } else if (field.equals("TUPLTYPE")) {
+                        token(buffer, filename);
+                    } else {
+                        throw new IOException("unknown PAM header field " + field + ": " + filename);
+                    }
+                }
+                // ENDHDR is followed by a newline.
+                buffer.get();
+                return new Header(width, height, depth, maxValue, filename);
+            }
+            throw new IOException("not a binary PPM or PAM file: " + filename);
+        }
+
+        /**
+         * @return the next token of the header, skipping whitespace and comments.
+         */
+        private static String token(ByteBuffer buffer, String filename) throws IOException {
+            final StringBuilder token = new StringBuilder();
+            while (buffer.hasRemaining()) {
+                final char ch = (char) (buffer.get(buffer.position()) & 0xFF);
+                if (ch == '#' && token.length() == 0) {
+                    while (buffer.hasRemaining() && buffer.get() != '\n') {
+                        // skip the rest of the comment
+                    }
+                } else if (Character.isWhitespace(ch)) {
+                    if (token.length() > 0) {
+                        return token.toString();
+                    }
+                    buffer.get();
+                } else {
+                    token.append(ch);
+                    buffer.get();
+                }
+            }
+            throw new IOException("image header is truncated: " + filename);
+        }
+
+        private static int number(String token, String filename) throws IOException {
+            try {
+                return Integer.parseInt(token);
+            } catch (NumberFormatException ex) {
+                throw new IOException("expected a number in the image header, not " + token + ": " + filename);
+            }
+        }
+
+        /**
+         * @return the number of bytes in each row of samples.
+         */
+        int rowBytes() {
+            return width * depth * sampleBytes;
+        }
+
+        /**
+         * Packs the given number of rows of samples from the buffer into RGB pixels.
+         */
+        void decode(ByteBuffer buffer, int[] pixels, int rows) {
+            final byte[] row = new byte[rowBytes()];
+            final int[] scale = maxValue == 255 ? null : scaleTable();
+            for (int y = 0; y < rows; y++) {
+                buffer.get(row);
+                final int offset = y * width;
+                if (scale == null && depth == 3) {
+                    for (int x = 0; x < width; x++) {
+                        pixels[offset + x] = ((row[3 * x] & 0xFF) << 16) | ((row[3 * x + 1] & 0xFF) << 8)
+                                | (row[3 * x + 2] & 0xFF);
+                    }
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        final int sample = x * depth;
+                        final int red = sample(row, sample, scale);
+                        if (depth == 1) {
+                            pixels[offset + x] = (red << 16) | (red << 8) | red;
+                        } else {
+                            pixels[offset + x] = (red << 16) | (sample(row, sample + 1, scale) << 8)
+                                    | sample(row, sample + 2, scale);
+                        }
+                    }
+                }
+            }
+        }
+
+        private int sample(byte[] row, int sample, int[] scale) {
+            final int value = sampleBytes == 1 ? row[sample] & 0xFF
+                    : ((row[2 * sample] & 0xFF) << 8) | (row[2 * sample + 1] & 0xFF);
+            return scale == null ? value : scale[Math.min(value, maxValue)];
+        }
+
+        /**
+         * @return the colour value (0..255) of each sample value from 0 to maxValue, rounded to the nearest.
+         */
+        private int[] scaleTable() {
+            final int[] scale = new int[maxValue + 1];
+            for (int value = 0; value <= maxValue; value++) {
+                scale[value] = (value * Cartoonify.COLOUR_MASK + maxValue / 2) / maxValue;
+            }
+            return scale;
+        }
+    }
+}
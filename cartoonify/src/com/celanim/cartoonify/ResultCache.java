@@ -0,0 +1,256 @@
+package com.celanim.cartoonify;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An on-disk cache of cartoon results, so that photos that have not changed since they
+ * were last processed can be skipped without even decoding them.
+ * <p>
+ * Each result is stored in a file named by its key: the SHA-256 hash of the bytes of the
+ * input photo plus the settings that affect the output (see <code>Cartoonify.resultCacheKey</code>).
+ * Since the key depends on the content, not the name, renaming or copying a photo still
+ * finds its result, and changing the photo or the settings never finds a stale one.
+ * <p>
+ * The total size of the results is capped at <code>maxBytes</code>, by evicting the least
+ * recently used results.  The last-modified time of each result file is updated when it is used,
+ * so the least recently used order survives from one run to the next.
+ * <p>
+ * All the methods are thread-safe.  New results are written to a temporary file and then
+ * renamed, so other threads (or other processes sharing the directory) never see a partial result.
+ */
+public final class ResultCache {
+
+    /**
+     * The default maximum size of the cache: 1 gigabyte.
+     */
+    public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Path dir;
+
+    private final long maxBytes;
+
+    /**
+     * The size of each cached result, in least recently used order.
+     */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long totalBytes;
+
+    private long hits;
+
+    private long misses;
+
+    private long evictions;
+
+    /**
+     * Opens a cache directory, creating it if necessary.
+     * Any results already in the directory are kept, up to <code>maxBytes</code>.
+     *
+     * @param dir      the directory to keep the results in.
+     * @param maxBytes the maximum total size of the results.
+     * @throws IOException if the directory cannot be created or read.
+     */
+    public ResultCache(Path dir, long maxBytes) throws IOException {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("max bytes must be at least zero, not " + maxBytes);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dir);
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file); // left behind by a crash.
+                } else if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        final Map<Path, FileTime> times = new LinkedHashMap<>();
+        for (Path file : files) {
+            times.put(file, Files.getLastModifiedTime(file));
+        }
+        files.sort(Comparator.comparing(times::get));
+        synchronized (this) {
+            for (Path file : files) {
+                final long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+            evict();
+        }
+    }
+
+    /**
+     * Calculates the key of a photo.
+     *
+     * @param photo    the input photo.  Only its bytes are used, not its name.
+     * @param settings a description of all the settings that affect the result.
+     * @return a hexadecimal SHA-256 hash of the photo and the settings.
+     * @throws IOException if the photo cannot be read.
+     */
+    public String key(Path photo, String settings) throws IOException {
+        final MessageDigest digest = sha256();
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(photo)) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Copies a cached result to the given file, if there is one.
+     *
+     * @param key  a key from <code>key</code>.
+     * @param dest where to save the result.  It is replaced if it already exists.
+     * @return true if the result was found and copied, false if it was not in the cache.
+     * @throws IOException if the result cannot be copied.
+     */
+    public boolean get(String key, Path dest) throws IOException {
+        synchronized (this) {
+            if (entries.get(key) == null) {
+                misses++;
+                return false;
+            }
+            hits++;
+        }
+        final Path file = dir.resolve(key);
+        try {
+            Files.copy(file, dest, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException ex) {
+            // evicted by another thread (or deleted by another process) since we looked.
+            synchronized (this) {
+                hits--;
+                misses++;
+                remove(key);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a result to the cache, evicting the least recently used results if the cache is full.
+     *
+     * @param key    a key from <code>key</code>.
+     * @param result the file to copy into the cache.
+     * @throws IOException if the result cannot be copied.
+     */
+    public void put(String key, Path result) throws IOException {
+        final Path temp = Files.createTempFile(dir, key, TEMP_SUFFIX);
+        try {
+            Files.copy(result, temp, StandardCopyOption.REPLACE_EXISTING);
+            final long size = Files.size(temp);
+            synchronized (this) {
+                Files.move(temp, dir.resolve(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                final Long old = entries.put(key, size);
+                totalBytes += size - (old == null ? 0 : old);
+                evict();
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * @return the number of results in the cache.
+     */
+    public synchronized int entries() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total size of the results in the cache.
+     */
+    public synchronized long totalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return how many gets found their result.
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return how many gets did not find their result.
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * @return how many results have been evicted to keep the cache under its maximum size.
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultCache(hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                + ", entries=" + entries.size() + ", size=" + totalBytes + " of " + maxBytes + " bytes)";
+    }
+
+    /**
+     * Removes the least recently used results until the cache is no bigger than its maximum size.
+     * The caller must hold the lock.
+     */
+    private void evict() throws IOException {
+        final Iterator<Map.Entry<String, Long>> oldest = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && oldest.hasNext()) {
+            final Map.Entry<String, Long> entry = oldest.next();
+            oldest.remove();
+            totalBytes -= entry.getValue();
+            evictions++;
+            Files.deleteIfExists(dir.resolve(entry.getKey()));
+        }
+    }
+
+    /**
+     * Forgets a result that is no longer on disk.  The caller must hold the lock.
+     */
+    private void remove(String key) {
+        final Long size = entries.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("every Java platform must support SHA-256", ex);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.celanim.cartoonify;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A fork/join task that splits a range of image rows into bands and processes
+ * each band independently.
+ * <p>
+ * The image processing stages only ever read from their input images and write
+ * each output pixel once, so disjoint bands of rows can safely be processed in
+ * parallel, and the result is identical to processing all the rows in order.
+ */
+class RowBandTask extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Processes all the rows from <code>yStart</code> (inclusive) up to <code>yEnd</code> (exclusive).
+     */
+    interface Rows {
+        void process(int yStart, int yEnd);
+    }
+
+    private final Rows rows;
+    private final int yStart;
+    private final int yEnd;
+    private final int bandHeight;
+
+    /**
+     * @param rows       the processing to apply to each band of rows.
+     * @param yStart     the first row to process.
+     * @param yEnd       one past the last row to process.
+     * @param bandHeight bands with at most this many rows are processed sequentially.
+     */
+    RowBandTask(Rows rows, int yStart, int yEnd, int bandHeight) {
+        this.rows = rows;
+        this.yStart = yStart;
+        this.yEnd = yEnd;
+        this.bandHeight = Math.max(1, bandHeight);
+    }
+
+    @Override
+    protected void compute() {
+        if (yEnd - yStart <= bandHeight) {
+            rows.process(yStart, yEnd);
+        } else {
+            final int yMid = (yStart + yEnd) >>> 1;
+            invokeAll(new RowBandTask(rows, yStart, yMid, bandHeight),
+                    new RowBandTask(rows, yMid, yEnd, bandHeight));
+        }
+    }
+}
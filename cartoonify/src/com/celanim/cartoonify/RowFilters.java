@@ -0,0 +1,141 @@
+package com.celanim.cartoonify;
+
+/**
+ * The scratch buffers needed to blur or detect edges along a row of pixels.
+ * <p>
+ * Each band of rows uses its own instance, so the rows can be processed without
+ * allocating any memory per row, and different bands (or different images) can be
+ * processed in parallel.  An instance must only be used by one thread at a time.
+ */
+final class RowFilters {
+    private final int width;
+    private final int height;
+    private final EdgePolicy edges;
+    private final ConvolutionKernel.RowSums sums;
+    private final ConvolutionKernel.RowSums sums2;
+    private final int[] rowOffsets = new int[Cartoonify.GAUSSIAN_KERNEL.size()];
+
+    /**
+     * @param width  the width of the images that will be filtered.
+     * @param height the height of the images that will be filtered.
+     */
+    RowFilters(int width, int height) {
+        this(width, height, EdgePolicy.CLAMP);
+    }
+
+    /**
+     * @param width  the width of the images that will be filtered.
+     * @param height the height of the images that will be filtered.
+     * @param edges  how to find the pixels beyond the edges of the images.
+     */
+    RowFilters(int width, int height, EdgePolicy edges) {
+        this.width = width;
+        this.height = height;
+        this.edges = edges;
+        sums = new ConvolutionKernel.RowSums(width);
+        sums2 = new ConvolutionKernel.RowSums(width);
+    }
+
+    /**
+     * Blurs one row of a whole image.
+     *
+     * @param src    the pixels of the whole image.
+     * @param y      the row to blur.
+     * @param dest   where to put the blurred pixels.
+     * @param offset the position in <code>dest</code> of the first blurred pixel.
+     */
+    void blurRow(int[] src, int y, int[] dest, int offset) {
+        final ConvolutionKernel kernel = Cartoonify.GAUSSIAN_KERNEL;
+        kernel.convolveRow(src, kernel.rowOffsets(y, width, height, rowOffsets, edges), width, sums, edges);
+        for (int x = 0; x < width; x++) {
+            int red = clamp(sums.red[x] / Cartoonify.GAUSSIAN_SUM);
+            int green = clamp(sums.green[x] / Cartoonify.GAUSSIAN_SUM);
+            int blue = clamp(sums.blue[x] / Cartoonify.GAUSSIAN_SUM);
+            dest[offset + x] = (red << 16) | (green << 8) | blue;
+        }
+    }
+
+    /**
+     * Detects the edges along one row of pixels, using the 3x3 Sobel filters.
+     * <p>
+     * The three rows are given as offsets into <code>src</code>, so that this can be used on
+     * a whole image or on a small window of rows.
+     *
+     * @param src           the pixels to detect edges in.
+     * @param rowOffsets    the offsets of the row above, the row itself, and the row below.
+     * @param dest          where to put the edge pixels.
+     * @param offset        the position in <code>dest</code> of the first edge pixel.
+     * @param edgeThreshold the total gradient at which a pixel counts as an edge.
+     * @param edgeColour    the colour for edge pixels.
+     * @param otherColour   the colour for all the other pixels.
+     */
+    void edgeRow(int[] src, int[] rowOffsets, int[] dest, int offset,
+                 int edgeThreshold, int edgeColour, int otherColour) {
+        Cartoonify.SOBEL_VERTICAL_KERNEL.convolveRow(src, rowOffsets, width, sums, edges);
+        Cartoonify.SOBEL_HORIZONTAL_KERNEL.convolveRow(src, rowOffsets, width, sums2, edges);
+        for (int x = 0; x < width; x++) {
+            int verticalGradient = Math.abs(sums.red[x]) + Math.abs(sums.green[x]) + Math.abs(sums.blue[x]);
+            int horizontalGradient = Math.abs(sums2.red[x]) + Math.abs(sums2.green[x]) + Math.abs(sums2.blue[x]);
+            // we could take use sqrt(vertGrad^2 + horizGrad^2), but simple addition catches most edges.
+            int totalGradient = verticalGradient + horizontalGradient;
+            dest[offset + x] = totalGradient >= edgeThreshold ? edgeColour : otherColour;
+        }
+    }
+
+    /**
+     * Detects the edges along one row of pixels, exactly as <code>edgeRow</code> does,
+     * but sets one bit per edge pixel, as in <code>EdgeMask</code>.
+     *
+     * @param src           the pixels to detect edges in.
+     * @param rowOffsets    the offsets of the row above, the row itself, and the row below.
+     * @param words         where to put the edge bits.  The row's words are overwritten.
+     * @param wordOffset    the position in <code>words</code> of the first word of the row.
+     * @param edgeThreshold the total gradient at which a pixel counts as an edge.
+     */
+    void edgeMaskRow(int[] src, int[] rowOffsets, long[] words, int wordOffset, int edgeThreshold) {
+        Cartoonify.SOBEL_VERTICAL_KERNEL.convolveRow(src, rowOffsets, width, sums, edges);
+        Cartoonify.SOBEL_HORIZONTAL_KERNEL.convolveRow(src, rowOffsets, width, sums2, edges);
+        long word = 0;
+        for (int x = 0; x < width; x++) {
+            int verticalGradient = Math.abs(sums.red[x]) + Math.abs(sums.green[x]) + Math.abs(sums.blue[x]);
+            int horizontalGradient = Math.abs(sums2.red[x]) + Math.abs(sums2.green[x]) + Math.abs(sums2.blue[x]);
+            if (verticalGradient + horizontalGradient >= edgeThreshold) {
+                word |= 1L << x;
+            }
+            if ((x & 63) == 63) {
+                words[wordOffset + (x >>> 6)] = word;
+                word = 0;
+            }
+        }
+        if ((width & 63) != 0) {
+            words[wordOffset + (width >>> 6)] = word;
+        }
+    }
+
+    /**
+     * Calculates the total Sobel gradient of each pixel along one row, exactly as
+     * <code>edgeRow</code> does, but stores the gradients instead of thresholding them.
+     *
+     * @param src        the pixels to detect edges in.
+     * @param rowOffsets the offsets of the row above, the row itself, and the row below.
+     * @param dest       where to put the gradients.
+     * @param offset     the position in <code>dest</code> of the first gradient.
+     */
+    void gradientRow(int[] src, int[] rowOffsets, int[] dest, int offset) {
+        Cartoonify.SOBEL_VERTICAL_KERNEL.convolveRow(src, rowOffsets, width, sums, edges);
+        Cartoonify.SOBEL_HORIZONTAL_KERNEL.convolveRow(src, rowOffsets, width, sums2, edges);
+        for (int x = 0; x < width; x++) {
+            int verticalGradient = Math.abs(sums.red[x]) + Math.abs(sums.green[x]) + Math.abs(sums.blue[x]);
+            int horizontalGradient = Math.abs(sums2.red[x]) + Math.abs(sums2.green[x]) + Math.abs(sums2.blue[x]);
+            dest[offset + x] = verticalGradient + horizontalGradient;
+        }
+    }
+
+    /**
+     * The same as <code>Cartoonify.clamp</code>.
+     */
+    private static int clamp(double value) {
+        int result = (int) value;
+        return result <= 0 ? 0 : result > Cartoonify.COLOUR_MASK ? Cartoonify.COLOUR_MASK : result;
+    }
+}
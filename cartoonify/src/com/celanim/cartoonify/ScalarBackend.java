@@ -0,0 +1,22 @@
+package com.celanim.cartoonify;
+
+/**
+ * Processes photos on the CPU, one stage at a time, using the current thread count and SIMD setting.
+ */
+public class ScalarBackend implements CartoonBackend {
+
+    @Override
+    public String name() {
+        return CartoonBackends.DEFAULT;
+    }
+
+    @Override
+    public String description() {
+        return "plain Java on the CPU, one stage at a time (the default)";
+    }
+
+    @Override
+    public void process(Cartoonify cartoon) {
+        cartoon.processPhotoOnCPU();
+    }
+}
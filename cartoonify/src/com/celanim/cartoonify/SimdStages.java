@@ -0,0 +1,74 @@
+package com.celanim.cartoonify;
+
+/**
+ * SIMD versions of the CPU image processing stages.
+ * <p>
+ * The implementation, <code>VectorApiStages</code>, uses the JDK Vector API
+ * (<code>jdk.incubator.vector</code>), so it is kept in the separate <code>src-vector</code>
+ * source folder, which must be compiled with JDK 16 or later:
+ * <pre>
+ *   javac --add-modules jdk.incubator.vector -cp bin -d bin src-vector/com/celanim/cartoonify/*.java
+ *   java --add-modules jdk.incubator.vector -cp bin:lib/* com.celanim.cartoonify.Cartoonify -v ...
+ * </pre>
+ * It is loaded by reflection, so if it has not been compiled or the module is missing
+ * at run time, <code>Loader.INSTANCE</code> is null and the scalar stages are used instead.
+ * <p>
+ * Every method must give exactly the same pixels as the corresponding scalar stage.
+ * The row methods process rows <code>yStart .. yEnd-1</code> of whole images, and the
+ * pixel methods process indexes <code>from .. to-1</code>, so that they can be used
+ * on bands of rows in parallel.
+ */
+interface SimdStages {
+
+    /**
+     * Gaussian blur, using <code>Cartoonify.GAUSSIAN_FILTER</code>.
+     */
+    void blurRows(int[] src, int[] dest, int width, int height, int yStart, int yEnd);
+
+    /**
+     * Sobel edge detection, writing <code>edgeColour</code> where the total gradient is
+     * at least <code>edgeThreshold</code> and <code>otherColour</code> elsewhere.
+     */
+    void edgeRows(int[] src, int[] dest, int width, int height, int yStart, int yEnd,
+                  int edgeThreshold, int edgeColour, int otherColour);
+
+    /**
+     * Sobel edge detection, setting the bits of an <code>EdgeMask</code> where the total
+     * gradient is at least <code>edgeThreshold</code>.  The words of the rows are overwritten.
+     */
+    void edgeMaskRows(int[] src, long[] words, int wordsPerRow, int width, int height, int yStart, int yEnd,
+                      int edgeThreshold);
+
+    /**
+     * Replaces each pixel by the average of its three colour values.
+     */
+    void grayscalePixels(int[] src, int[] dest, int from, int to);
+
+    /**
+     * Chooses the photo pixel where the mask is <code>maskColour</code>, otherwise the mask pixel.
+     */
+    void mergePixels(int[] mask, int maskColour, int[] photo, int[] dest, int from, int to);
+
+    /**
+     * Loads the SIMD stages the first time they are needed.
+     */
+    final class Loader {
+        /**
+         * The SIMD stages, or null if they are not available on this JVM.
+         */
+        static final SimdStages INSTANCE = load();
+
+        private Loader() {
+        }
+
+        private static SimdStages load() {
+            try {
+                Class<?> stages = Class.forName("com.celanim.cartoonify.VectorApiStages");
+                return (SimdStages) stages.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError ex) {
+                System.err.println("WARNING: SIMD stages are not available, so using scalar code: " + ex);
+                return null;
+            }
+        }
+    }
+}
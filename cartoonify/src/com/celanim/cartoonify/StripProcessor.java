@@ -0,0 +1,386 @@
+package com.celanim.cartoonify;
+
+import java.awt.Image;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Vector;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Turns photos that are too big to fit in memory into cartoons, one strip of rows at a time.
+ * <p>
+ * Each strip of the input is decoded on its own (using an ImageReader with a source region),
+ * together with a halo of <code>HALO</code> rows above and below it, and then blurred,
+ * edge detected, colour reduced and merged in one fused pass.  (With a stack blur, the halo
+ * is the blur radius plus one row.  The separate CPU stages are used for a stack blur or
+ * luminance edges.)  The output is an image that
+ * computes its strips only when the ImageWriter asks for them, so a writer that encodes
+ * a row at a time (such as PNG) never needs the whole image in memory.
+ * Peak memory is proportional to the width times the strip height, not the image size,
+ * and the output pixels are exactly the same as processing the whole photo at once.
+ * <p>
+ * Strips of <code>.ppm</code>, <code>.pam</code> and <code>.rgb</code> photos are read straight
+ * from the memory-mapped file, so each strip costs only its own rows.  But many image readers
+ * (including PNG and JPEG) must decompress all the rows above a source region to reach it,
+ * so for those formats the strips are made at least as tall as <code>minStripRows</code>
+ * allows, and a warning is printed if there are still more than <code>MANY_STRIPS</code> of them.
+ * Also, the standard JPEG writer copies any multi-strip image into one big raster before
+ * encoding it, so PNG output is best for very big images.
+ */
+public class StripProcessor {
+
+    /**
+     * The number of extra input rows needed above and below each strip:
+     * 2 rows for the 5x5 blur, plus 1 row for the 3x3 edge detection of the blurred rows.
+     */
+    public static final int HALO = 2 + 1;
+
+    /**
+     * @return the number of extra input rows (or columns) needed around a region of the cartoon,
+     *         with the blur chosen by the settings.
+     */
+    static int halo(Cartoonify settings) {
+        return settings.getBlurRadius() > 0 ? settings.getBlurRadius() + 1 : HALO;
+    }
+
+    /**
+     * The default number of output rows in each strip.
+     */
+    public static final int DEFAULT_STRIP_ROWS = 512;
+
+    /**
+     * The number of strips of a sequentially decoded photo above which a warning is printed,
+     * since each strip decodes all the rows above it again.
+     */
+    public static final int MANY_STRIPS = 16;
+
+    /**
+     * The fraction of the maximum heap size that one strip may use, when taller strips are faster.
+     */
+    private static final int HEAP_FRACTION = 8;
+
+    /**
+     * The number of arrays of strip pixels (decoded image, blur, edges, colours, cartoon, etc.)
+     * that are in memory at once while a strip is processed.
+     */
+    private static final int IMAGES_PER_STRIP = 6;
+
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0x00FF00, 0x0000FF);
+
+    private final Cartoonify settings;
+
+    private final int stripRows;
+
+    private final int halo;
+
+    /**
+     * @param settings  the edge threshold, number of colours and threads to use.
+     * @param stripRows the number of output rows to compute at a time.
+     */
+    public StripProcessor(Cartoonify settings, int stripRows) {
+        if (stripRows < 1) {
+            throw new IllegalArgumentException("strips must have at least one row, not " + stripRows);
+        }
+        if (settings.getEdgePolicy() != EdgePolicy.CLAMP) {
+            // the other policies need pixels from the far side of the photo, outside the strip.
+            throw new IllegalArgumentException("strips only support the CLAMP edge policy, not " + settings.getEdgePolicy());
+        }
+        this.settings = settings;
+        this.stripRows = stripRows;
+        this.halo = halo(settings);
+    }
+
+    /**
+     * @param width the width of the photo.
+     * @return the tallest strips (but at least one row) that fit in a fraction of the maximum heap size.
+     */
+    static int minStripRows(int width) {
+        final long bytesPerRow = (long) width * Integer.BYTES * IMAGES_PER_STRIP;
+        final long rows = Runtime.getRuntime().maxMemory() / HEAP_FRACTION / bytesPerRow;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, rows));
+    }
+
+    /**
+     * Reads a photo one strip at a time, and writes its cartoon version.
+     *
+     * @param name    the input photo.
+     * @param newName the output file.  The extension of this name (eg. .png) determines the output file type.
+     * @throws IOException if the photo cannot be read or the output cannot be written.
+     */
+    public void process(String name, String newName) throws IOException {
+        final String extn = newName.substring(newName.lastIndexOf('.') + 1);
+        final Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix(extn);
+        if (!writers.hasNext()) {
+            throw new IOException("Unknown kind of output file: " + newName);
+        }
+        final ImageWriter writer = writers.next();
+        try {
+            if (RawImageIO.supports(name)) {
+                write(new Cartoon(RawImageIO.open(name), stripRows), writer, newName);
+                return;
+            }
+            try (ImageInputStream input = ImageIO.createImageInputStream(new File(name))) {
+                final Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+                if (readers == null || !readers.hasNext()) {
+                    throw new RuntimeException("Invalid image file: " + name);
+                }
+                final ImageReader reader = readers.next();
+                try {
+                    reader.setInput(input, true, true);
+                    final int height = reader.getHeight(0);
+                    final int rows = Math.max(stripRows, Math.min(height, minStripRows(reader.getWidth(0))));
+                    final int strips = (height + rows - 1) / rows;
+                    if (strips > MANY_STRIPS) {
+                        System.err.println("WARNING: " + name + " is read in " + strips + " strips, and each one decodes"
+                                + " all the rows above it again.  A .ppm, .pam or .rgb photo (or more heap) is faster.");
+                    }
+                    write(new Cartoon(reader, rows), writer, newName);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Writes the cartoon, computing its strips as the writer asks for them.
+     */
+    private static void write(Cartoon cartoon, ImageWriter writer, String newName) throws IOException {
+        final File outFile = new File(newName);
+        outFile.delete(); // the output stream does not truncate an existing file.
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(outFile)) {
+            writer.setOutput(output);
+            writer.write(new IIOImage(cartoon, null, null));
+        } finally {
+            // the worker's thread pool is only for this photo, so shut it down.
+            cartoon.worker.setThreads(1);
+        }
+    }
+
+    /**
+     * The cartoon version of a photo, as an image made of horizontal strips (tiles) that
+     * are computed on demand.  The most recent strip is kept, so reading the rows in order
+     * computes each strip just once.
+     */
+    private class Cartoon implements RenderedImage {
+        private final ImageReader reader;
+        private final ImageReadParam param;
+        private final RawImageIO.Rows raw;
+        private final Cartoonify worker;
+        private final int width;
+        private final int height;
+        private final int stripRows;
+        private int currentStrip = -1;
+        private Raster currentTile;
+
+        /**
+         * @param reader    decodes strips of the photo with a source region.
+         * @param stripRows the number of output rows to compute at a time.
+         */
+        Cartoon(ImageReader reader, int stripRows) throws IOException {
+            this.reader = reader;
+            this.param = reader.getDefaultReadParam();
+            this.raw = null;
+            this.worker = settings.copySettings();
+            this.width = reader.getWidth(0);
+            this.height = reader.getHeight(0);
+            this.stripRows = stripRows;
+        }
+
+        /**
+         * @param raw       the memory-mapped rows of the photo.
+         * @param stripRows the number of output rows to compute at a time.
+         */
+        Cartoon(RawImageIO.Rows raw, int stripRows) {
+            this.reader = null;
+            this.param = null;
+            this.raw = raw;
+            this.worker = settings.copySettings();
+            this.width = raw.width();
+            this.height = raw.height();
+            this.stripRows = stripRows;
+        }
+
+        /**
+         * Reads one strip of the photo plus its halo, and turns it into a cartoon.
+         *
+         * @param strip 0 .. getNumYTiles()-1.
+         * @return the cartoon rows of that strip.
+         */
+        private Raster computeStrip(int strip) throws IOException {
+            final int yStart = strip * stripRows;
+            final int yEnd = Math.min(height, yStart + stripRows);
+            final int top = Math.max(0, yStart - halo);
+            final int bottom = Math.min(height, yEnd + halo);
+            final CartoonMetrics.Timer timer = worker.getMetrics().start("decode");
+            final int[] src = worker.getBufferPool().borrow(width * (bottom - top));
+            if (raw != null) {
+                raw.read(top, bottom - top, src);
+            } else {
+                param.setSourceRegion(new Rectangle(0, top, width, bottom - top));
+                Cartoonify.rgbPixels(reader.read(0, param), src);
+            }
+            timer.stop(width, bottom - top);
+            // The halo means that the strip's own edges are only clamped where they are
+            // also the edges of the whole photo, so its rows come out the same as if the
+            // whole photo was processed.  Just the halo rows themselves are wrong.
+            worker.loadPixels(src, width, bottom - top);
+            if (worker.needsCpuStages()) {
+                worker.processPhotoOnCPU();
+            } else {
+                worker.processPhotoFused();
+            }
+            final int[] cartoon = worker.popImage();
+            worker.clear();
+            final DataBufferInt buffer = new DataBufferInt(cartoon, width * (yEnd - yStart), width * (yStart - top));
+            return Raster.createWritableRaster(RGB.createCompatibleSampleModel(width, yEnd - yStart),
+                    buffer, new Point(0, yStart));
+        }
+
+        @Override
+        public Raster getTile(int tileX, int tileY) {
+            if (tileX != 0 || tileY < 0 || tileY >= getNumYTiles()) {
+                throw new IllegalArgumentException("no tile " + tileX + "," + tileY);
+            }
+            if (tileY != currentStrip) {
+                try {
+                    currentTile = computeStrip(tileY);
+                } catch (IOException ex) {
+                    throw new IllegalStateException("cannot read strip " + tileY, ex);
+                }
+                currentStrip = tileY;
+            }
+            return currentTile;
+        }
+
+        @Override
+        public Raster getData(Rectangle rect) {
+            final WritableRaster result = RGB.createCompatibleWritableRaster(rect.width, rect.height)
+                    .createWritableTranslatedChild(rect.x, rect.y);
+            copyData(result);
+            return result;
+        }
+
+        @Override
+        public Raster getData() {
+            return getData(new Rectangle(0, 0, width, height));
+        }
+
+        @Override
+        public WritableRaster copyData(WritableRaster raster) {
+            if (raster == null) {
+                raster = RGB.createCompatibleWritableRaster(width, height);
+            }
+            final int minY = Math.max(0, raster.getMinY());
+            final int maxY = Math.min(height, raster.getMinY() + raster.getHeight());
+            for (int strip = minY / stripRows; strip * stripRows < maxY; strip++) {
+                raster.setRect(getTile(0, strip));
+            }
+            return raster;
+        }
+
+        @Override
+        public Vector<RenderedImage> getSources() {
+            return null;
+        }
+
+        @Override
+        public Object getProperty(String name) {
+            return Image.UndefinedProperty;
+        }
+
+        @Override
+        public String[] getPropertyNames() {
+            return null;
+        }
+
+        @Override
+        public ColorModel getColorModel() {
+            return RGB;
+        }
+
+        @Override
+        public SampleModel getSampleModel() {
+            return RGB.createCompatibleSampleModel(width, Math.min(height, stripRows));
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getMinX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinY() {
+            return 0;
+        }
+
+        @Override
+        public int getNumXTiles() {
+            return 1;
+        }
+
+        @Override
+        public int getNumYTiles() {
+            return (height + stripRows - 1) / stripRows;
+        }
+
+        @Override
+        public int getMinTileX() {
+            return 0;
+        }
+
+        @Override
+        public int getMinTileY() {
+            return 0;
+        }
+
+        @Override
+        public int getTileWidth() {
+            return width;
+        }
+
+        @Override
+        public int getTileHeight() {
+            return stripRows;
+        }
+
+        @Override
+        public int getTileGridXOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getTileGridYOffset() {
+            return 0;
+        }
+    }
+}
@@ -2,14 +2,52 @@ package com.celanim.cartoonify;
 
 import static org.junit.Assert.*;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import org.junit.Ignore;
+import javax.imageio.ImageIO;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 
 public class CartoonifyTest {
 
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	/**
+	 * @return a pseudo-random 24-bit value for index i, the same on every run.
+	 */
+	private static int noise(long i) {
+		return (int) (i * 2654435761L % 0x1000000);
+	}
+
+	/**
+	 * @return a synthetic photo of noise pixels, with only the bits in mask kept.
+	 */
+	private static int[] noisePixels(int length, int mask) {
+		int[] pixels = new int[length];
+		for (int i = 0; i < length; i++) {
+			pixels[i] = noise(i) & mask;
+		}
+		return pixels;
+	}
+
 	@Test
 	public void testLoad() throws IOException {
 		Cartoonify cart = new Cartoonify();
@@ -79,6 +117,853 @@ public class CartoonifyTest {
 		assertEquals(0, cart.numImages());
 	}
 
+	@Test
+	public void testStackParallel() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.setThreads(4);
+		assertEquals(4, cart.getThreads());
+		cart.loadPhoto("test.png");
+		cart.setEdgeThreshold(256);
+		cart.setNumColours(3);
+		cart.processPhotoOnCPU();
+		assertEquals(5, cart.numImages()); // the edges are only pushed as an image when debugging
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		int[] expected = cart.popImage();
+		int[] actual = cart.popImage();
+		// the parallel stages must give exactly the same pixels as the sequential ones.
+		for (int i = 0; i < expected.length; i++) {
+			final String msg = String.format("pixel[%d] expected 0x%x but got 0x%x", i, expected[i], actual[i]);
+			assertEquals(msg, expected[i], actual[i]);
+		}
+	}
+
+	@Test
+	public void testFused() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test.png");
+		cart.setEdgeThreshold(256);
+		cart.setNumColours(3);
+		cart.processPhotoFused();
+		assertEquals(2, cart.numImages()); // no intermediate images
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		int[] expected = cart.popImage();
+		int[] actual = cart.popImage();
+		for (int i = 0; i < expected.length; i++) {
+			final String msg = String.format("pixel[%d] expected 0x%x but got 0x%x", i, expected[i], actual[i]);
+			assertEquals(msg, expected[i], actual[i]);
+		}
+	}
+
+	@Test
+	public void testBatchPipeline() throws IOException, InterruptedException {
+		File dir = tmp.newFolder("batch");
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < 3; i++) {
+			File photo = new File(dir, "photo" + i + ".png");
+			Files.copy(new File("test.png").toPath(), photo.toPath());
+			names.add(photo.getPath());
+		}
+		names.add(new File(dir, "missing.png").getPath()); // should be skipped
+		Cartoonify settings = new Cartoonify();
+		settings.setEdgeThreshold(256);
+		settings.setNumColours(3);
+		BatchPipeline batch = new BatchPipeline(settings, 2, 2, 2, 1);
+		assertEquals(3, batch.run(names));
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		for (int i = 0; i < 3; i++) {
+			cart.loadPhoto(new File(dir, "photo" + i + "_cartoon.png").getPath());
+			int[] actual = cart.popImage();
+			assertArrayEquals(cart.currentImage(), actual);
+		}
+	}
+
+	@Test
+	public void testFrameOps() throws Exception {
+		Frame photo = Frame.read("test.png");
+		Frame cartoon = FrameOps.cartoonify(photo, 256, 3);
+		assertEquals(Frame.read("test_cartoon_e256_c3.png"), cartoon);
+		Frame edges = FrameOps.sobelEdgeDetect(FrameOps.gaussianBlur(photo), 256);
+		Frame colours = FrameOps.reduceColours(photo, 3);
+		assertEquals(cartoon, FrameOps.mergeMask(edges, FrameOps.WHITE, colours));
+
+		// photos of different sizes can be processed at the same time on a shared pool.
+		final int[] pixels = photo.toArray();
+		final Frame small = Frame.of(Arrays.copyOf(pixels, 20 * 30), 20, 30);
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Frame>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				final Frame input = i % 2 == 0 ? photo : small;
+				results.add(pool.submit(() -> FrameOps.cartoonify(input, 256, 3)));
+			}
+			Cartoonify cart = new Cartoonify();
+			cart.setEdgeThreshold(256);
+			cart.setNumColours(3);
+			cart.loadFrame(small);
+			cart.processPhotoOnCPU();
+			Frame expectedSmall = cart.currentFrame();
+			for (int i = 0; i < results.size(); i++) {
+				assertEquals(i % 2 == 0 ? cartoon : expectedSmall, results.get(i).get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testBufferPool() throws IOException {
+		PixelBufferPool pool = new PixelBufferPool(100);
+		int[] a = pool.borrow(10);
+		assertEquals(1, pool.misses());
+		pool.release(a);
+		assertEquals(40, pool.retainedBytes());
+		assertSame(a, pool.borrow(10));
+		assertEquals(1, pool.hits());
+		pool.release(a);
+		pool.release(new int[20]); // too big to keep as well
+		assertEquals(1, pool.dropped());
+		pool.setMaxRetainedBytes(0);
+		assertEquals(0, pool.retainedBytes());
+
+		// once the first photo is done, processing another photo of the same size allocates no images.
+		Cartoonify cart = new Cartoonify();
+		cart.setEdgeThreshold(256);
+		cart.setNumColours(3);
+		cart.loadPhoto("test.png");
+		cart.processPhotoOnCPU();
+		cart.clear();
+		final long misses = cart.getBufferPool().misses();
+		cart.loadPhoto("test.png");
+		cart.processPhotoOnCPU();
+		assertEquals(misses, cart.getBufferPool().misses());
+		assertEquals(5, cart.numImages());
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		int[] expected = cart.popImage();
+		assertArrayEquals(expected, cart.popImage());
+	}
+
+	@Test
+	public void testStrips() throws IOException {
+		Cartoonify settings = new Cartoonify();
+		settings.setEdgeThreshold(256);
+		settings.setNumColours(3);
+		File out = File.createTempFile("strips", ".png");
+		out.deleteOnExit();
+		Frame expected = Frame.read("test_cartoon_e256_c3.png");
+		// the strips of a raw photo are read from the mapped file, the others with a source region.
+		String ppm = tmp.newFile("strips.ppm").getPath();
+		Frame.read("test.png").write(ppm);
+		for (String photo : new String[] {"test.png", ppm}) {
+			for (int rows : new int[] {1, 4, 7, 30, 100}) {
+				new StripProcessor(settings, rows).process(photo, out.getPath());
+				assertEquals(photo + " in strips of " + rows + " rows", expected, Frame.read(out.getPath()));
+			}
+		}
+		assertTrue(StripProcessor.minStripRows(Integer.MAX_VALUE) >= 1);
+	}
+
+	@Test
+	public void testImageEncoder() throws IOException {
+		final int w = 9;
+		final int h = 5;
+		File dir = tmp.newFolder("encode");
+		PixelBufferPool pool = new PixelBufferPool();
+		List<int[]> expected = new ArrayList<>();
+		final int[] saved = new int[1];
+		// a queue of one image, so that save has to wait for the encoders.
+		try (ImageEncoder encoder = new ImageEncoder(pool, new CartoonMetrics(), 2, 1)) {
+			for (int i = 0; i < 12; i++) {
+				int[] pixels = pool.borrow(w * h);
+				for (int p = 0; p < pixels.length; p++) {
+					pixels[p] = noise(p + 31L * i);
+				}
+				expected.add(pixels.clone());
+				encoder.save(new File(dir, "image" + i + ".png").getPath(), pixels, w, h, () -> {
+					synchronized (saved) {
+						saved[0]++;
+					}
+				});
+			}
+		}
+		assertEquals(12, saved[0]);
+		for (int i = 0; i < 12; i++) {
+			BufferedImage image = Cartoonify.readImage(new File(dir, "image" + i + ".png").getPath());
+			assertArrayEquals("image " + i, expected.get(i), Cartoonify.rgbPixels(image, null));
+		}
+		assertTrue("saved arrays go back to the pool", pool.retainedBytes() > 0);
+
+		ImageEncoder encoder = new ImageEncoder(pool, new CartoonMetrics(), 1);
+		encoder.save(new File(dir, "missing/image.png").getPath(), new int[w * h], w, h, null);
+		try {
+			encoder.close();
+			fail("expected the failure to be reported");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testImageEncoderError() throws IOException {
+		File dir = tmp.newFolder("encode");
+		// one thread and a queue of one image: once the thread stops, nothing takes images from the queue.
+		ImageEncoder encoder = new ImageEncoder(new PixelBufferPool(), new CartoonMetrics(), 1, 1);
+		try {
+			for (int i = 0; i < 5; i++) {
+				encoder.save(new File(dir, "image" + i + ".png").getPath(), new int[4 * 3], 4, 3, () -> {
+					throw new OutOfMemoryError("test");
+				});
+			}
+			fail("expected the stopped encoder to be reported");
+		} catch (IOException ex) {
+			assertTrue(ex.toString(), ex.getCause() instanceof OutOfMemoryError);
+		}
+		try {
+			encoder.close();
+		} catch (IOException ex) {
+			// the images still in the queue were not saved
+		}
+	}
+
+	@Test
+	public void testRawImageIO() throws IOException {
+		final int w = 7;
+		final int h = 3;
+		File dir = tmp.newFolder("raw");
+		int[] pixels = noisePixels(w * h, 0xFFFFFF);
+		Frame expected = Frame.of(pixels, w, h);
+		for (String name : new String[] {"photo.ppm", "photo.PAM", "photo_7x3.rgb", "photo.png"}) {
+			String path = new File(dir, name).getPath();
+			expected.write(path);
+			expected.write(path); // overwriting must truncate the old file
+			assertEquals(name, expected, Frame.read(path));
+		}
+		assertEquals(3 * w * h, new File(dir, "photo_7x3.rgb").length());
+		int[] lastRows = RawImageIO.open(new File(dir, "photo.ppm").getPath()).read(1, 2, new int[2 * w]);
+		assertArrayEquals(Arrays.copyOfRange(pixels, w, 3 * w), lastRows);
+		try {
+			expected.write(new File(dir, "photo_3x7.rgb").getPath());
+			fail("expected the wrong size to be rejected");
+		} catch (IOException ex) {
+			// expected
+		}
+
+		// comments, other maximum values, and grayscale or RGB_ALPHA tuples.
+		File ppm = new File(dir, "scaled.ppm");
+		Files.write(ppm.toPath(), concat("P6 # comment\n2 1\n# another\n15\n".getBytes(), new byte[] {15, 0, 7, 0, 15, 8}));
+		assertEquals(Frame.of(new int[] {0xFF0077, 0x00FF88}, 2, 1), Frame.read(ppm.getPath()));
+		File wide = new File(dir, "wide.ppm");
+		Files.write(wide.toPath(), concat("P6\n1 1\n65535\n".getBytes(), new byte[] {-1, -1, 0, 0, -128, 0}));
+		assertEquals(Frame.of(new int[] {0xFF0080}, 1, 1), Frame.read(wide.getPath()));
+		File gray = new File(dir, "gray.pam");
+		Files.write(gray.toPath(), concat("P7\nWIDTH 2\nHEIGHT 1\nDEPTH 1\nMAXVAL 255\nTUPLTYPE GRAYSCALE\nENDHDR\n".getBytes(),
+				new byte[] {0x12, -1}));
+		assertEquals(Frame.of(new int[] {0x121212, 0xFFFFFF}, 2, 1), Frame.read(gray.getPath()));
+		File alpha = new File(dir, "alpha.pam");
+		Files.write(alpha.toPath(), concat("P7\nWIDTH 1\nHEIGHT 1\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n".getBytes(),
+				new byte[] {1, 2, 3, 4}));
+		assertEquals(Frame.of(new int[] {0x010203}, 1, 1), Frame.read(alpha.getPath()));
+		Files.write(ppm.toPath(), "P6\n2 2\n255\n123".getBytes());
+		try {
+			Frame.read(ppm.getPath());
+			fail("expected a truncated image to be rejected");
+		} catch (IOException ex) {
+			// expected
+		}
+
+		// processing a raw photo gives a raw cartoon, with the same pixels as a PNG photo.
+		Cartoonify cart = new Cartoonify();
+		cart.processPhoto(new File(dir, "photo.png").getPath());
+		cart.processPhoto(new File(dir, "photo_7x3.rgb").getPath());
+		assertEquals(Frame.read(new File(dir, "photo_cartoon.png").getPath()),
+				Frame.read(new File(dir, "photo_7x3_cartoon.rgb").getPath()));
+	}
+
+	private static byte[] concat(byte[] header, byte[] samples) {
+		byte[] result = Arrays.copyOf(header, header.length + samples.length);
+		System.arraycopy(samples, 0, result, header.length, samples.length);
+		return result;
+	}
+
+	@Test
+	public void testSweepThresholds() {
+		final int w = 37;
+		final int h = 23;
+		int[] photo = new int[w * h];
+		for (int i = 0; i < photo.length; i++) {
+			photo[i] = (noise(i) < 0x800000 ? 0x204060 : 0xE0C0A0) + (i % 7) * 0x010101;
+		}
+		Cartoonify cart = new Cartoonify();
+		cart.loadPixels(photo.clone(), w, h);
+		cart.gaussianBlur();
+		cart.sobelGradient();
+		for (int threshold : new int[] {0, 50, 128, 300, 5000}) {
+			cart.setEdgeThreshold(threshold);
+			cart.cloneImage(1);
+			cart.sobelEdgeDetect();
+			int[] expected = cart.popImage();
+			cart.popImage();
+			cart.thresholdEdges(2, threshold);
+			assertArrayEquals("threshold " + threshold, expected, cart.popImage());
+		}
+		assertEquals("foo_cartoon_e64_c5.jpg", ParameterSweep.variantName("foo", 64, 5, ".jpg"));
+	}
+
+	@Test
+	public void testResultCache() throws Exception {
+		File dir = tmp.newFolder("cache");
+		File photo = new File(dir, "photo.png");
+		File out = new File(dir, "out.png");
+		Files.write(photo.toPath(), new byte[] {1, 2, 3});
+		ResultCache cache = new ResultCache(new File(dir, "cache").toPath(), 25);
+		String key = cache.key(photo.toPath(), "e=1");
+		assertEquals(64, key.length());
+		assertEquals(key, cache.key(photo.toPath(), "e=1"));
+		assertNotEquals(key, cache.key(photo.toPath(), "e=2"));
+		assertFalse(cache.get(key, out.toPath()));
+
+		// each result is 10 bytes, so only two fit, and the least recently used is evicted.
+		for (String name : new String[] {"a", "b", "c"}) {
+			Files.write(out.toPath(), (name + "123456789").getBytes());
+			cache.put(name, out.toPath());
+			if (name.equals("b")) {
+				assertTrue(cache.get("a", out.toPath()));
+				assertEquals("a123456789", new String(Files.readAllBytes(out.toPath())));
+			}
+		}
+		assertEquals(2, cache.entries());
+		assertEquals(1, cache.evictions());
+		assertTrue(cache.get("a", out.toPath()));
+		assertFalse(cache.get("b", out.toPath()));
+		assertEquals(2, cache.hits());
+		assertEquals(2, cache.misses());
+
+		// a new cache on the same directory finds the same results.
+		ResultCache reopened = new ResultCache(new File(dir, "cache").toPath(), 25);
+		assertEquals(2, reopened.entries());
+		assertTrue(reopened.get("c", out.toPath()));
+
+		// concurrent puts and gets stay within the limit.
+		ExecutorService threads = Executors.newFixedThreadPool(4);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t = 0; t < 4; t++) {
+			final int id = t;
+			futures.add(threads.submit(() -> {
+				File result = new File(dir, "result" + id);
+				for (int i = 0; i < 50; i++) {
+					Files.write(result.toPath(), "0123456789".getBytes());
+					reopened.put("k" + (i % 5), result.toPath());
+					reopened.get("k" + ((i + id) % 5), new File(dir, "copy" + id).toPath());
+				}
+				return null;
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get();
+		}
+		threads.shutdown();
+		assertTrue(reopened.totalBytes() <= 25);
+		assertEquals(reopened.entries(), new File(dir, "cache").list().length);
+
+		// a cache hit is not counted as a processed photo.
+		Frame.of(new int[] {0xFF0000, 0x00FF00, 0x0000FF, 0xFFFFFF}, 2, 2).write(photo.getPath());
+		Cartoonify cart = new Cartoonify();
+		cart.setResultCache(new ResultCache(new File(dir, "results").toPath(), 1 << 20));
+		assertTrue(cart.processPhoto(photo.getPath()) >= 0);
+		assertEquals(Cartoonify.CACHED, cart.processPhoto(photo.getPath()));
+	}
+
+	@Test
+	public void testFrameSequence() {
+		final int w = 150;
+		final int h = 100;
+		int[] frame = noisePixels(w * h, 0xF0F0F0);
+		for (int threads : new int[] {1, 3}) {
+			Cartoonify settings = new Cartoonify();
+			settings.setThreads(threads);
+			try (FrameSequence sequence = new FrameSequence(settings, 16)) {
+				int[] pixels = frame.clone();
+				// change single pixels at the corners, on tile boundaries, and within 3 pixels of them.
+				int[][] changes = {{}, {0, 0}, {w - 1, h - 1}, {16, 16}, {18, 45}, {77, 47}, {149, 50}, {}, {60, 0}};
+				for (int[] change : changes) {
+					if (change.length > 0) {
+						pixels[change[1] * w + change[0]] ^= 0xFFFFFF;
+					}
+					int[] actual = sequence.process(pixels, w, h);
+					Frame expected = FrameOps.cartoonify(Frame.of(pixels, w, h), settings.getEdgeThreshold(), settings.getNumColours());
+					assertArrayEquals("after changing " + Arrays.toString(change), expected.toArray(), actual);
+				}
+				assertTrue(sequence.lastDirtyFraction() < 0.3);
+				assertTrue(sequence.dirtyFraction() < 0.3);
+				assertEquals(changes.length, sequence.frames());
+			}
+			settings.setThreads(1);
+		}
+	}
+
+	@Test
+	public void testServer() throws Exception {
+		final int w = 41;
+		final int h = 29;
+		int[] photo = noisePixels(w * h, 0xF0F0F0);
+		BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, w, h, photo, 0, w);
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", png);
+		final byte[] body = png.toByteArray();
+
+		CartoonServer server = new CartoonServer(new Cartoonify(), 0, 2);
+		server.start();
+		try {
+			final String base = "http://localhost:" + server.port();
+			ExecutorService clients = Executors.newFixedThreadPool(4);
+			List<Future<int[]>> results = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				final int threshold = 64 * (i % 4);
+				results.add(clients.submit(() -> {
+					HttpURLConnection conn = (HttpURLConnection) new URL(base + "/cartoon?e=" + threshold + "&c=4").openConnection();
+					conn.setRequestMethod("POST");
+					conn.setDoOutput(true);
+					conn.getOutputStream().write(body);
+					assertEquals(200, conn.getResponseCode());
+					assertEquals("image/png", conn.getContentType());
+					// read up to the end of the response, which the server closes after recording its latency.
+					BufferedImage cartoon = ImageIO.read(new ByteArrayInputStream(readAll(conn.getInputStream())));
+					return Cartoonify.rgbPixels(cartoon, null);
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				Frame expected = FrameOps.cartoonify(Frame.of(photo, w, h), 64 * (i % 4), 4);
+				assertArrayEquals(expected.toArray(), results.get(i).get());
+			}
+			clients.shutdown();
+			assertEquals(8, server.latency().count());
+
+			HttpURLConnection bad = (HttpURLConnection) new URL(base + "/cartoon?c=1").openConnection();
+			bad.setRequestMethod("POST");
+			bad.setDoOutput(true);
+			bad.getOutputStream().write(body);
+			assertEquals(400, bad.getResponseCode());
+			assertEquals(405, ((HttpURLConnection) new URL(base + "/cartoon").openConnection()).getResponseCode());
+
+			HttpURLConnection stats = (HttpURLConnection) new URL(base + "/stats").openConnection();
+			assertEquals(200, stats.getResponseCode());
+			String text = new String(readAll(stats.getInputStream()), "UTF-8");
+			assertTrue(text, text.startsWith("requests 8"));
+			assertTrue(text, text.contains("process"));
+
+			HttpURLConnection garbage = (HttpURLConnection) new URL(base + "/cartoon").openConnection();
+			garbage.setRequestMethod("POST");
+			garbage.setDoOutput(true);
+			garbage.getOutputStream().write(Arrays.copyOf(body, 40)); // a truncated PNG
+			assertEquals(400, garbage.getResponseCode());
+		} finally {
+			server.stop(0);
+		}
+
+		// bodies over the limit are rejected, whether or not they give their length.
+		CartoonServer small = new CartoonServer(new Cartoonify(), 0, 1, body.length / 2);
+		small.start();
+		try {
+			for (boolean chunked : new boolean[] {false, true}) {
+				HttpURLConnection big = (HttpURLConnection) new URL("http://localhost:" + small.port() + "/cartoon").openConnection();
+				big.setRequestMethod("POST");
+				big.setDoOutput(true);
+				if (chunked) {
+					big.setChunkedStreamingMode(1024);
+				}
+				big.getOutputStream().write(body);
+				assertEquals("chunked " + chunked, 413, big.getResponseCode());
+			}
+		} finally {
+			small.stop(0);
+		}
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+			bytes.write(buffer, 0, n);
+		}
+		in.close();
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void testEdgeMask() {
+		// widths either side of whole 64-bit words, including a row of all edges.
+		for (int w : new int[] {1, 63, 64, 65, 130}) {
+			final int h = 9;
+			int[] photo = new int[w * h];
+			for (int i = 0; i < photo.length; i++) {
+				photo[i] = noise(i) & (i / w == 4 ? 0xFFFFFF : 0x0F0F0F);
+			}
+			Cartoonify cart = new Cartoonify();
+			cart.loadPixels(photo, w, h);
+			cart.setEdgeThreshold(200);
+			cart.sobelEdgeDetect();
+			int[] expected = cart.popImage();
+			EdgeMask mask = cart.sobelEdgeMask();
+			assertEquals(EdgeMask.fromPixels(expected, w, h, cart.black), mask);
+			assertArrayEquals(expected, mask.toPixels(null, cart.black, cart.white));
+			int edges = 0;
+			for (int pixel : expected) {
+				edges += pixel == cart.black ? 1 : 0;
+			}
+			assertEquals(edges, mask.edgeCount());
+			assertEquals(expected[w] == cart.black, mask.isEdge(0, 1));
+
+			cart.pushImage(expected);
+			cart.mergeMask(-1, cart.white, 0);
+			int[] merged = cart.popImage();
+			cart.popImage();
+			cart.mergeMask(mask, 0);
+			assertArrayEquals("width " + w, merged, cart.popImage());
+		}
+	}
+
+	@Test
+	public void testPointOperator() {
+		Cartoonify cart = new Cartoonify();
+		int[] photo = noisePixels(1 << 16, 0xFFFFFF);
+		PointOperator gray = PointOperator.grayscale();
+		for (int n = 2; n <= 256; n++) {
+			PointOperator quantize = PointOperator.quantize(n);
+			assertSame(quantize, PointOperator.quantize(n));
+			PointOperator both = quantize.then(gray);
+			for (int rgb : photo) {
+				int red = cart.quantizeColour(cart.red(rgb), n);
+				int green = cart.quantizeColour(cart.green(rgb), n);
+				int blue = cart.quantizeColour(cart.blue(rgb), n);
+				int reduced = cart.createPixel(red, green, blue);
+				assertEquals(reduced, quantize.apply(rgb));
+				int average = (red + green + blue) / 3;
+				assertEquals(cart.createPixel(average, average, average), both.apply(rgb));
+			}
+		}
+		// composing in the other order, and with a per-channel function.
+		PointOperator invert = PointOperator.perChannel(v -> 255 - v);
+		PointOperator chain = gray.then(PointOperator.quantize(4)).then(invert);
+		PointOperator steps = PointOperator.identity().then(invert).then(invert);
+		int[] result = new int[photo.length];
+		chain.apply(photo, result, 0, photo.length);
+		for (int i = 0; i < photo.length; i++) {
+			assertEquals(invert.apply(PointOperator.quantize(4).apply(gray.apply(photo[i]))), result[i]);
+			assertEquals(photo[i], steps.apply(photo[i]));
+		}
+
+		cart.loadPixels(photo, 256, 256);
+		cart.applyOperator(gray);
+		int[] applied = cart.popImage();
+		cart.grayscale();
+		assertArrayEquals(cart.popImage(), applied);
+	}
+
+	@Test(expected = ArithmeticException.class)
+	public void testPointOperatorOneColour() {
+		PointOperator.quantize(1);
+	}
+
+	@Test
+	public void testStackBlur() {
+		final int w = 67;
+		final int h = 45;
+		// gradients, with a sharp edge and some noise, like a photo.
+		Cartoonify cart = new Cartoonify();
+		int[] photo = new int[w * h];
+		for (int i = 0; i < photo.length; i++) {
+			int x = i % w;
+			int y = i / w;
+			int noise = noise(i) % 32;
+			photo[i] = cart.createPixel(x * 3 + noise, y * 5 + noise, x > y ? 200 + noise : noise);
+		}
+		cart.setThreads(3);
+		cart.loadPixels(photo, w, h);
+		// radius 2 is within the documented tolerance of the Gaussian filter.
+		cart.gaussianBlur();
+		int[] gaussian = cart.popImage();
+		cart.stackBlur(2);
+		int[] stack = cart.popImage();
+		long total = 0;
+		for (int i = 0; i < photo.length; i++) {
+			for (int colour = Cartoonify.BLUE; colour <= Cartoonify.RED; colour++) {
+				int diff = Math.abs(cart.colourValue(stack[i], colour) - cart.colourValue(gaussian[i], colour));
+				assertTrue("pixel " + i + " differs by " + diff, diff <= 8);
+				total += diff;
+			}
+		}
+		assertTrue(total < 3 * photo.length);
+
+		// every radius gives the triangle-weighted average of each row, then each column.
+		for (int radius : new int[] {1, 4, 50}) {
+			cart.stackBlur(radius);
+			int[] blurred = cart.popImage();
+			for (int[] xy : new int[][] {{0, 0}, {33, 20}, {66, 44}, {5, 40}}) {
+				for (int colour = Cartoonify.BLUE; colour <= Cartoonify.RED; colour++) {
+					int d = (radius + 1) * (radius + 1);
+					int sum = 0;
+					for (int j = -radius; j <= radius; j++) {
+						int y = ConvolutionKernel.clampIndex(xy[1] + j, h);
+						int rowSum = 0;
+						for (int i = -radius; i <= radius; i++) {
+							int x = ConvolutionKernel.clampIndex(xy[0] + i, w);
+							rowSum += (radius + 1 - Math.abs(i)) * cart.colourValue(photo[y * w + x], colour);
+						}
+						sum += (radius + 1 - Math.abs(j)) * ((rowSum + d / 2) / d);
+					}
+					assertEquals((sum + d / 2) / d, cart.colourValue(blurred[xy[1] * w + xy[0]], colour));
+				}
+			}
+		}
+
+		// the blur radius setting chooses the blur.
+		cart.setBlurRadius(4);
+		cart.blur();
+		int[] chosen = cart.popImage();
+		cart.stackBlur(4);
+		assertArrayEquals(cart.popImage(), chosen);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testStackBlurRadius() {
+		new Cartoonify().setBlurRadius(StackBlur.MAX_RADIUS + 1);
+	}
+
+	@Test
+	public void testLumaEdges() {
+		final int w = 70;
+		final int h = 30;
+		Cartoonify cart = new Cartoonify();
+		cart.setThreads(3);
+		cart.setEdgeThreshold(100);
+		// on a gray photo, the luma is the gray value, so the edges are exactly the same.
+		int[] gray = new int[w * h];
+		int[] colour = new int[w * h];
+		for (int i = 0; i < gray.length; i++) {
+			int value = noise(i) % 256 / (i % 3 + 1);
+			gray[i] = cart.createPixel(value, value, value);
+			colour[i] = noise(i);
+		}
+		cart.loadPixels(gray, w, h);
+		cart.sobelGradient();
+		int[] rgbGradients = cart.popImage();
+		cart.sobelEdgeDetect();
+		int[] rgbEdges = cart.popImage();
+		cart.setLumaEdges(true);
+		cart.sobelGradient();
+		assertArrayEquals(rgbGradients, cart.popImage());
+		cart.sobelEdgeDetect();
+		assertArrayEquals(rgbEdges, cart.popImage());
+		assertEquals(EdgeMask.fromPixels(rgbEdges, w, h, cart.black), cart.sobelEdgeMask());
+		cart.clear();
+
+		// on a colour photo, the three forms of the luma edges agree with each other.
+		cart.loadPixels(colour, w, h);
+		cart.sobelEdgeDetect();
+		int[] edges = cart.popImage();
+		assertEquals(EdgeMask.fromPixels(edges, w, h, cart.black), cart.sobelEdgeMask());
+		cart.sobelGradient();
+		cart.thresholdEdges(cart.numImages() - 1, cart.getEdgeThreshold());
+		assertArrayEquals(edges, cart.popImage());
+	}
+
+	@Test
+	public void testEdgePolicy() {
+		assertEquals(0, EdgePolicy.CLAMP.index(-7, 5));
+		assertEquals(4, EdgePolicy.CLAMP.index(12, 5));
+		assertEquals(3, EdgePolicy.REFLECT.index(-4, 5));
+		assertEquals(1, EdgePolicy.REFLECT.index(8, 5));
+		assertEquals(3, EdgePolicy.WRAP.index(-2, 5));
+		assertEquals(2, EdgePolicy.WRAP.index(12, 5));
+		assertEquals(0, EdgePolicy.REFLECT.index(-1, 1));
+
+		final int w = 9;
+		final int h = 7;
+		int[] photo = noisePixels(w * h, 0xFFFFFF);
+		for (EdgePolicy edges : EdgePolicy.values()) {
+			Cartoonify cart = new Cartoonify();
+			cart.setEdgePolicy(edges);
+			cart.setThreads(2);
+			cart.loadPixels(photo, w, h);
+			// the row filters give the same results as convolving each pixel on its own.
+			cart.gaussianBlur();
+			int[] blurred = cart.popImage();
+			cart.sobelGradient();
+			int[] gradients = cart.popImage();
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					int gradient = 0;
+					for (int colour = Cartoonify.BLUE; colour <= Cartoonify.RED; colour++) {
+						int sum = cart.convolution(x, y, Cartoonify.GAUSSIAN_FILTER, colour);
+						assertEquals(edges + " blur " + x + "," + y, cart.clamp(sum / Cartoonify.GAUSSIAN_SUM),
+								cart.colourValue(blurred[y * w + x], colour));
+						gradient += Math.abs(cart.convolution(x, y, Cartoonify.SOBEL_VERTICAL_FILTER, colour));
+						gradient += Math.abs(cart.convolution(x, y, Cartoonify.SOBEL_HORIZONTAL_FILTER, colour));
+					}
+					assertEquals(edges + " gradient " + x + "," + y, gradient, gradients[y * w + x]);
+				}
+			}
+			// the stack blur uses the policy for every tap beyond the edges.
+			final int radius = 5;
+			final int d = (radius + 1) * (radius + 1);
+			cart.stackBlur(radius);
+			int[] stack = cart.popImage();
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					int sum = 0;
+					for (int j = -radius; j <= radius; j++) {
+						int rowSum = 0;
+						for (int i = -radius; i <= radius; i++) {
+							int rgb = photo[cart.wrap(y + j, h) * w + cart.wrap(x + i, w)];
+							rowSum += (radius + 1 - Math.abs(i)) * cart.green(rgb);
+						}
+						sum += (radius + 1 - Math.abs(j)) * ((rowSum + d / 2) / d);
+					}
+					assertEquals(edges + " stack " + x + "," + y, (sum + d / 2) / d, cart.green(stack[y * w + x]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testHistogram() {
+		Histogram hist = new Histogram();
+		assertEquals(0, hist.percentile(50));
+		for (int i = 1; i <= 1000; i++) {
+			hist.record(i * 1000L);
+		}
+		assertEquals(1000, hist.count());
+		assertEquals(1000000, hist.max());
+		assertEquals(500500.0, hist.mean(), 1e-9);
+		for (int p : new int[] {1, 50, 90, 99}) {
+			long expected = p * 10 * 1000L;
+			long actual = hist.percentile(p);
+			assertTrue("p" + p + " was " + actual, actual >= expected && actual <= expected * 1.01);
+		}
+		assertEquals(1000000, hist.percentile(100));
+		// small values are exact, and every bucket holds values within 1% of each other.
+		for (long v = 0; v < 2 * Histogram.SUB_BUCKETS; v++) {
+			assertEquals(v, Histogram.highestEquivalentValue(Histogram.bucket(v)));
+		}
+		for (long v = 1; v < Histogram.MAX_VALUE; v = v * 3 + 1) {
+			long high = Histogram.highestEquivalentValue(Histogram.bucket(v));
+			assertTrue(v + " -> " + high, high >= v && high <= v + v / 100);
+		}
+		hist.reset();
+		assertEquals(0, hist.count());
+	}
+
+	@Test
+	public void testMetrics() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.loadPixels(new int[64 * 48], 64, 48);
+		cart.processPhotoOnCPU();
+		CartoonMetrics metrics = cart.getMetrics();
+		for (String stage : new String[] {"blur", "edges", "colours", "merge"}) {
+			assertEquals(stage, 1, metrics.stage(stage).nanos().count());
+			assertEquals(stage, 64 * 48, metrics.stage(stage).pixels());
+		}
+		metrics.recordQueueDepth("test", 3);
+		assertEquals(3, metrics.queue("test").max());
+		assertTrue(metrics.report().contains("colours"));
+		metrics.reset();
+		assertTrue(metrics.stageNames().isEmpty());
+	}
+
+	@Test
+	public void testPlanar() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test.png");
+		cart.setEdgeThreshold(256);
+		cart.setNumColours(3);
+		cart.processPhotoPlanar();
+		assertEquals(2, cart.numImages()); // intermediate images are only pushed when debugging
+		cart.loadPhoto("test_cartoon_e256_c3.png");
+		int[] expected = cart.popImage();
+		int[] actual = cart.popImage();
+		for (int i = 0; i < expected.length; i++) {
+			final String msg = String.format("pixel[%d] expected 0x%x but got 0x%x", i, expected[i], actual[i]);
+			assertEquals(msg, expected[i], actual[i]);
+		}
+	}
+
+	@Test
+	public void testPlanarImage() {
+		int[] pixels = {0x00FF0000, 0x0000FF00, 0x000000FF, 0x008899AB, 0xFF123456, 0x00000000};
+		PlanarImage image = PlanarImage.fromPacked(pixels, 3, 2);
+		assertEquals(0x88, image.plane(Cartoonify.RED)[3] & 0xFF);
+		assertEquals(0x99, image.plane(Cartoonify.GREEN)[3] & 0xFF);
+		assertEquals(0xAB, image.plane(Cartoonify.BLUE)[3] & 0xFF);
+		int[] packed = image.toPacked();
+		for (int i = 0; i < pixels.length; i++) {
+			assertEquals(pixels[i] & 0x00FFFFFF, packed[i]); // the alpha channel is dropped
+		}
+	}
+
+	@Test
+	public void testSimd() throws IOException {
+		// if the Vector API is not available, this just compares the scalar stages with themselves.
+		Cartoonify scalar = new Cartoonify();
+		Cartoonify simd = new Cartoonify();
+		simd.setSimd(true);
+		scalar.loadPhoto("test.png");
+		simd.loadPhoto("test.png");
+		for (int numColours = 2; numColours <= 256; numColours++) {
+			scalar.setNumColours(numColours);
+			simd.setNumColours(numColours);
+			scalar.reduceColours();
+			simd.reduceColours();
+			assertArrayEquals("numColours=" + numColours, scalar.popImage(), simd.popImage());
+		}
+		scalar.grayscale();
+		simd.grayscale();
+		assertArrayEquals(scalar.popImage(), simd.popImage());
+		scalar.processPhotoOnCPU();
+		simd.processPhotoOnCPU();
+		while (scalar.numImages() > 0) {
+			assertArrayEquals(scalar.popImage(), simd.popImage());
+		}
+	}
+
+	@Test
+	public void testBackends() {
+		Cartoonify cart = new Cartoonify();
+		assertEquals("cpu", cart.getBackend());
+		assertTrue(CartoonBackends.names().containsAll(Arrays.asList("cpu", "parallel", "fused", "planar", "opencl")));
+		// choosing the OpenCL backend must not initialize OpenCL, so this works without a GPU.
+		cart.setBackend("opencl");
+		assertEquals("opencl", cart.getBackend());
+	}
+
+	@Test
+	public void testParallelBackendThreads() {
+		final int cpus = Runtime.getRuntime().availableProcessors();
+		Cartoonify cart = new Cartoonify();
+		cart.setFlags(new String[] {"-b", "parallel", "photo.png"}, 0);
+		assertEquals(cpus, cart.getThreads());
+		// an explicit thread count is kept.
+		Cartoonify single = new Cartoonify();
+		single.setFlags(new String[] {"-b", "parallel", "-p", "1", "photo.png"}, 0);
+		assertEquals(1, single.getThreads());
+		single.loadPixels(new int[32 * 24], 32, 24);
+		CartoonBackends.find("parallel").process(single);
+		assertEquals(1, single.getThreads());
+		// workers share the cores, but never use more threads than the settings.
+		assertEquals(Math.max(1, cpus / 2), cart.threadsPerWorker(2));
+		assertEquals(1, single.threadsPerWorker(2));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownBackend() {
+		new Cartoonify().setBackend("abacus");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetThreadsZero() {
+		new Cartoonify().setThreads(0);
+	}
+
 	@Test
 	public void testClamp() {
 		Cartoonify cart = new Cartoonify();
@@ -93,9 +978,10 @@ public class CartoonifyTest {
 		assertEquals(255, cart.clamp(255.99));
 	}
 
-	@Ignore("alternative wrap method")
+	@Test
 	public void testWrap() {
 		Cartoonify cart = new Cartoonify();
+		cart.setEdgePolicy(EdgePolicy.REFLECT);
 		// Test small violations of the lower bound
 		// The mirror is at the very edge.  So we should see each pixel twice.
 		assertEquals(2, cart.wrap(2, 100));
@@ -178,6 +1064,58 @@ public class CartoonifyTest {
 		}
 	}
 
+	@Test
+	public void testConvolutionKernelRows() throws IOException {
+		Cartoonify cart = new Cartoonify();
+		cart.loadPhoto("test.png");
+		final int[] image = cart.currentImage();
+		final int width = cart.width();
+		final int height = cart.height();
+		// a 7x7 filter has wider borders than the standard filters
+		int[] filter = new int[49];
+		for (int i = 0; i < filter.length; i++) {
+			filter[i] = i % 5 - 2;
+		}
+		ConvolutionKernel kernel = new ConvolutionKernel(filter);
+		assertEquals(7, kernel.size());
+		ConvolutionKernel.RowSums sums = new ConvolutionKernel.RowSums(width);
+		int[] rowOffsets = new int[kernel.size()];
+		for (int y = 0; y < height; y++) {
+			kernel.convolveRow(image, kernel.rowOffsets(y, width, height, rowOffsets), width, sums);
+			for (int x = 0; x < width; x++) {
+				final int red = clampedConvolution(image, width, height, x, y, filter, Cartoonify.RED);
+				assertEquals(red, sums.red[x]);
+				assertEquals(clampedConvolution(image, width, height, x, y, filter, Cartoonify.GREEN), sums.green[x]);
+				assertEquals(clampedConvolution(image, width, height, x, y, filter, Cartoonify.BLUE), sums.blue[x]);
+				assertEquals(red, cart.convolution(x, y, filter, Cartoonify.RED));
+			}
+		}
+	}
+
+	/**
+	 * The plain nested loops of the original convolution, with the coordinates clamped to the image.
+	 */
+	private static int clampedConvolution(int[] image, int width, int height, int xCentre, int yCentre,
+			int[] filter, int colour) {
+		final int size = (int) Math.sqrt(filter.length);
+		final int half = size / 2;
+		int sum = 0;
+		for (int dy = 0; dy < size; dy++) {
+			final int y = Math.max(0, Math.min(height - 1, yCentre + dy - half));
+			for (int dx = 0; dx < size; dx++) {
+				final int x = Math.max(0, Math.min(width - 1, xCentre + dx - half));
+				sum += ((image[y * width + x] >> (colour * Cartoonify.COLOUR_BITS)) & Cartoonify.COLOUR_MASK)
+						* filter[dy * size + dx];
+			}
+		}
+		return sum;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConvolutionKernelNonSquare() {
+		new ConvolutionKernel(new int[] {1, 2, 3});
+	}
+
 	@Test
 	public void testGaussianBlurMiddle() throws IOException {
 		Cartoonify cart = new Cartoonify();
@@ -0,0 +1,251 @@
+package nz.ac.waikato.phototool;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A list of PhotoTool commands, compiled once so that it can be run on many photos
+ * without reflection, and with as few passes over the pixels as possible.
+ * <p>
+ * Instead of making a new photo for every command, the pipeline keeps a stack of pending photos,
+ * where each one is described as: a photo that has been made, halved k times, and then put through
+ * a list of per-pixel operations (grayscale and sepia).  A photo is only made when it is saved
+ * or shown, in one pass that reads just the pixels it needs.  Since <code>half</code> just picks
+ * every second pixel of every second row, it gives exactly the same result before or after a
+ * per-pixel operation, so it is always done first: "grayscale sepia half save" reads a quarter
+ * of the pixels once, and makes one photo instead of three.
+ * <p>
+ * The per-pixel operations are the same static functions that the PhotoTool commands use,
+ * so the saved photos are identical to running the commands one at a time.  Any other
+ * command is still called by reflection, after making all the pending photos.
+ */
+class CommandPipeline {
+
+    /**
+     * Thrown when a command fails, with the same message that PhotoTool has always printed.
+     * If the command was one of the per-pixel operations that are fused into a later pass,
+     * the message names all the commands of that pass.
+     */
+    static class CommandFailed extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        CommandFailed(String command, Exception cause) {
+            super("ERROR executing command " + command + ": " + cause, cause);
+        }
+    }
+
+    private static final int GRAYSCALE = 0;
+    private static final int SEPIA = 1;
+
+    private enum Kind { PIXEL, HALF, UNDO, SAVE, SHOW, CALL }
+
+    /**
+     * One compiled command.
+     */
+    private static final class Step {
+        final Kind kind;
+        final String name;
+        /** For PIXEL steps: GRAYSCALE or SEPIA. */
+        final int op;
+        /** For CALL steps: the method to call. */
+        final Method method;
+
+        Step(Kind kind, String name, int op, Method method) {
+            this.kind = kind;
+            this.name = name;
+            this.op = op;
+            this.method = method;
+        }
+    }
+
+    /**
+     * A photo on the stack while the pipeline runs: either a photo that has been made,
+     * or a recipe for making it from one.
+     */
+    private static final class Pending {
+        final Picture base;
+        final int halves;
+        final int[] ops;
+        /** The photo, once it has been made. */
+        Picture picture;
+
+        Pending(Picture picture) {
+            this(picture, 0, new int[0]);
+            this.picture = picture;
+        }
+
+        Pending(Picture base, int halves, int[] ops) {
+            this.base = base;
+            this.halves = halves;
+            this.ops = ops;
+        }
+
+        Pending then(int op) {
+            final int[] more = Arrays.copyOf(ops, ops.length + 1);
+            more[ops.length] = op;
+            return new Pending(base, halves, more);
+        }
+
+        Pending half() {
+            return new Pending(base, halves + 1, ops);
+        }
+
+        /**
+         * @return the commands that make this photo from the base photo, like "half grayscale sepia".
+         */
+        String commands() {
+            final StringBuilder result = new StringBuilder();
+            for (int i = 0; i < halves; i++) {
+                result.append(result.length() > 0 ? " " : "").append("half");
+            }
+            for (int op : ops) {
+                result.append(result.length() > 0 ? " " : "").append(op == GRAYSCALE ? "grayscale" : "sepia");
+            }
+            return result.toString();
+        }
+
+        /**
+         * @return the photo, making it in one pass over the pixels of the base photo if it has not been made yet.
+         */
+        Picture make() {
+            if (picture == null) {
+                int width = base.width();
+                int height = base.height();
+                for (int i = 0; i < halves; i++) {
+                    width /= 2;
+                    height /= 2;
+                }
+                final Picture result = new Picture(width, height);
+                final int[] todo = ops;
+                final int shift = halves;
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        int pixel = base.get(x << shift, y << shift);
+                        for (int op : todo) {
+                            pixel = op == GRAYSCALE ? PhotoTool.grayscalePixel(pixel) : PhotoTool.sepiaPixel(pixel);
+                        }
+                        result.set(x, y, pixel);
+                    }
+                }
+                picture = result;
+            }
+            return picture;
+        }
+    }
+
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * @param cmds the commands, as found by name in the PhotoTool class.
+     */
+    CommandPipeline(List<Method> cmds) {
+        for (Method cmd : cmds) {
+            final String name = cmd.getName();
+            if (name.equals("grayscale")) {
+                steps.add(new Step(Kind.PIXEL, name, GRAYSCALE, null));
+            } else if (name.equals("sepia")) {
+                steps.add(new Step(Kind.PIXEL, name, SEPIA, null));
+            } else if (name.equals("half")) {
+                steps.add(new Step(Kind.HALF, name, 0, null));
+            } else if (name.equals("undo")) {
+                steps.add(new Step(Kind.UNDO, name, 0, null));
+            } else if (name.equals("save")) {
+                steps.add(new Step(Kind.SAVE, name, 0, null));
+            } else if (name.equals("show")) {
+                steps.add(new Step(Kind.SHOW, name, 0, null));
+            } else {
+                steps.add(new Step(Kind.CALL, name, 0, cmd));
+            }
+        }
+    }
+
+    /**
+     * Runs all the commands on the given photo editor.
+     * <p>
+     * Afterwards, the current photo of the editor is the same as if the commands were run one
+     * at a time, but the photos below it on its stack are only the ones that were made:
+     * usually just the original photo.
+     *
+     * @throws CommandFailed if a command throws an exception.
+     */
+    void run(PhotoTool tool) throws CommandFailed {
+        final List<Pending> stack = new ArrayList<>();
+        for (Picture picture : tool.pictures()) {
+            stack.add(new Pending(picture));
+        }
+        for (Step step : steps) {
+            try {
+                final Pending top = stack.get(stack.size() - 1);
+                switch (step.kind) {
+                    case PIXEL:
+                        stack.add(top.then(step.op));
+                        break;
+                    case HALF:
+                        stack.add(top.half());
+                        break;
+                    case UNDO:
+                        if (stack.size() > 1) {
+                            stack.remove(stack.size() - 1);
+                        }
+                        break;
+                    case SAVE:
+                        tool.save(make(top, step.name));
+                        break;
+                    case SHOW:
+                        tool.show(make(top, step.name));
+                        break;
+                    default:
+                        // the command may use any of the photos, so make them all first.
+                        update(tool, stack, true, step.name);
+                        step.method.invoke(tool);
+                        stack.clear();
+                        for (Picture picture : tool.pictures()) {
+                            stack.add(new Pending(picture));
+                        }
+                        break;
+                }
+            } catch (InvocationTargetException ex) {
+                throw new CommandFailed(step.name, ex);
+            } catch (IllegalAccessException | RuntimeException ex) {
+                throw new CommandFailed(step.name, step.kind == Kind.CALL ? ex : new InvocationTargetException(ex));
+            }
+        }
+        update(tool, stack, false, "the end of the commands");
+    }
+
+    /**
+     * Makes a pending photo, reporting a failure under the names of the fused commands.
+     *
+     * @param next the command that needed the photo.
+     */
+    private static Picture make(Pending pending, String next) throws CommandFailed {
+        try {
+            return pending.make();
+        } catch (RuntimeException ex) {
+            throw new CommandFailed(pending.commands() + " (fused into one pass before " + next + ")",
+                    new InvocationTargetException(ex));
+        }
+    }
+
+    /**
+     * Replaces the stack of the photo editor by the photos that have been made, plus the current photo.
+     *
+     * @param all  true means make all the pending photos, not just the current one.
+     * @param next the command that needed the photos.
+     */
+    private static void update(PhotoTool tool, List<Pending> stack, boolean all, String next) throws CommandFailed {
+        final List<Picture> pictures = tool.pictures();
+        pictures.clear();
+        for (int i = 0; i < stack.size(); i++) {
+            final Pending pending = stack.get(i);
+            if (all || i == stack.size() - 1) {
+                pictures.add(make(pending, next));
+            } else if (pending.picture != null) {
+                pictures.add(pending.picture);
+            }
+        }
+    }
+}
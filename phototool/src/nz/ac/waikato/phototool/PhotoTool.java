@@ -3,7 +3,6 @@ package nz.ac.waikato.phototool;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.List;
@@ -45,6 +44,15 @@ public class PhotoTool {
         return pictures.get(pictures.size() - 1);
     }
 
+    /**
+     * For internal use by <code>CommandPipeline</code>.
+     *
+     * @return the stack of photos itself, not a copy.
+     */
+    List<Picture> pictures() {
+        return pictures;
+    }
+
     /**
      * @return the number of photos currently on the stack.  At least one.
      */
@@ -81,7 +89,14 @@ public class PhotoTool {
      * Does not block the program.
      */
     public void show() {
-        getCurrentPhoto().show(photoName);
+        show(getCurrentPhoto());
+    }
+
+    /**
+     * Show the given photo in a popup window, with the name of the original photo.
+     */
+    void show(Picture picture) {
+        picture.show(photoName);
     }
 
     /**
@@ -93,14 +108,21 @@ public class PhotoTool {
         for (int y = 0; y < getHeight(); y++) {         // Task 2.1 Stop boxing!
             for (int x = 0; x < getWidth(); x++) {      // Task 2.1 Stop boxing!
                 int pixel = getCurrentPhoto().get(x, y); // Task 2.2 Go primitive in your arrays!
-                // Calculate average bitwise without division
-                int average = ((((pixel >> 16) & 0xFF + (pixel >> 8) & 0xFF) >> 1) + pixel & 0xFF) >> 1;
-                newPic.set(x, y, (average << 16) | (average << 8) | average); // Task 2.2 Go primitive in your arrays!
+                newPic.set(x, y, grayscalePixel(pixel)); // Task 2.2 Go primitive in your arrays!
             }
         }
         pictures.add(newPic);
     }
 
+    /**
+     * @return the grayscale version of one pixel.  Used by both <code>grayscale</code> and <code>CommandPipeline</code>.
+     */
+    static int grayscalePixel(int pixel) {
+        // Calculate average bitwise without division
+        int average = ((((pixel >> 16) & 0xFF + (pixel >> 8) & 0xFF) >> 1) + pixel & 0xFF) >> 1;
+        return (average << 16) | (average << 8) | average;
+    }
+
     /**
      * Create a sepia version of the current photo and push it on the stack.
      * See <a href="http://www.techrepublic.com/blog/howdoi/how-do-i-convert-images-to-grayscale-and-sepia-tone-using-c/120">http://www.techrepublic.com/blog/howdoi/how-do-i-convert-images-to-grayscale-and-sepia-tone-using-c/120</a>.
@@ -111,19 +133,26 @@ public class PhotoTool {
         for (int y = 0; y < getHeight(); y++) { // Task 2.1 Stop boxing!
             for (int x = 0; x < getWidth(); x++) { // Task 2.1 Stop boxing!
                 int pixel = getCurrentPhoto().get(x, y); // Task 2.2 Go primitive in your arrays!
-                int r = (pixel >> 16) & 0xFF;
-                int g = (pixel >> 8) & 0xFF;
-                int b = pixel & 0xFF;
-                // Don't need clamp() method here.
-                int red = Math.min((int) ((r * .393f) + (g * .769f) + (b * .189f)), 255);
-                int green = Math.min((int) ((r * .349f) + (g * .686f) + (b * .168f)), 255);
-                int blue = (int) ((r * .272f) + (g * .534f) + (b * .131f));             // .272+.534+.131 < 1, so no need to clamp
-                newPic.set(x, y, (red << 16) | (green << 8) | blue);            // Task 2.2 Go primitive in your arrays!
+                newPic.set(x, y, sepiaPixel(pixel));            // Task 2.2 Go primitive in your arrays!
             }
         }
         pictures.add(newPic);
     }
 
+    /**
+     * @return the sepia version of one pixel.  Used by both <code>sepia</code> and <code>CommandPipeline</code>.
+     */
+    static int sepiaPixel(int pixel) {
+        int r = (pixel >> 16) & 0xFF;
+        int g = (pixel >> 8) & 0xFF;
+        int b = pixel & 0xFF;
+        // Don't need clamp() method here.
+        int red = Math.min((int) ((r * .393f) + (g * .769f) + (b * .189f)), 255);
+        int green = Math.min((int) ((r * .349f) + (g * .686f) + (b * .168f)), 255);
+        int blue = (int) ((r * .272f) + (g * .534f) + (b * .131f));             // .272+.534+.131 < 1, so no need to clamp
+        return (red << 16) | (green << 8) | blue;
+    }
+
     /**
      * Scale the current photo to half its size and push it on the stack.
      */
@@ -144,19 +173,34 @@ public class PhotoTool {
 
     /**
      * Save the current photo with the same name, suffixed with "_edited".
+     * The size in the name of a raw .rgb photo is changed to the size of the current photo,
+     * so photo_640x480.rgb becomes photo_320x240_edited.rgb after half.
      */
     public void save() {
+        save(getCurrentPhoto());
+    }
+
+    /**
+     * Save the given photo, with the name that <code>save()</code> would use.
+     */
+    void save(Picture picture) {
         final String newName;
         if (photoName.endsWith(".png")) {
             newName = photoName.substring(0, photoName.length() - 4) + "_edited.png";
         } else if (photoName.endsWith(".jpg")) {
             newName = photoName.substring(0, photoName.length() - 4) + "_edited.jpg";
+        } else if (photoName.endsWith(".ppm") || photoName.endsWith(".pam")) {
+            newName = photoName.substring(0, photoName.length() - 4) + "_edited" + photoName.substring(photoName.length() - 4);
+        } else if (photoName.endsWith(".rgb")) {
+            final File photo = new File(photoName);
+            final String resized = RawImage.resized(photo.getName(), picture.width(), picture.height());
+            newName = new File(photo.getParentFile(), resized.substring(0, resized.length() - 4) + "_edited.rgb").getPath();
         } else {
-            System.err.println("WARNING: could not save " + photoName + ".  Must be .png/.jpg");
+            System.err.println("WARNING: could not save " + photoName + ".  Must be .png/.jpg/.ppm/.pam/.rgb");
             return;
         }
         try {
-            getCurrentPhoto().save(newName);
+            picture.save(newName);
         } catch (IOException ex) {
             System.err.println("WARNING: IO error while saving " + photoName + ": " + ex.getMessage());
         }
@@ -235,6 +279,8 @@ public class PhotoTool {
         if (cmds.isEmpty() || photos.isEmpty()) {
             help();
         }
+        // compile the commands once, so each photo is processed without reflection and in as few passes as possible.
+        final CommandPipeline pipeline = new CommandPipeline(cmds);
 
         for (String photo : photos) {
             /**
@@ -254,13 +300,11 @@ public class PhotoTool {
             final long time0 = System.nanoTime();
 
             // Here goes the code you want to measure the speed of...
-            for (Method cmd : cmds) {
-                try {
-                    cmd.invoke(tool);
-                } catch (IllegalAccessException | IllegalArgumentException | InvocationTargetException ex) {
-                    System.err.println("ERROR executing command " + cmd.getName() + ": " + ex);
-                    System.exit(3);
-                }
+            try {
+                pipeline.run(tool);
+            } catch (CommandPipeline.CommandFailed ex) {
+                System.err.println(ex.getMessage());
+                System.exit(3);
             }
 
             //please do not move or change this time measurement statement
@@ -1,10 +1,21 @@
 package nz.ac.waikato.phototool;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 
+import javax.imageio.IIOException;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -15,39 +26,133 @@ import javax.swing.JLabel;
  * It also provides methods for reading the pixels from an image file,
  * writing the pixels to an image file,
  * and displaying the image in a popup window.
+ * The raw formats of <code>RawImage</code> (.ppm, .pam and .rgb) are read and written
+ * directly, and all other formats with ImageIO.
+ * <p>
+ * The pixels are the data array of a <code>TYPE_INT_RGB</code> BufferedImage, so saving
+ * and showing a picture use that image as it is, without copying any pixels.
+ * Where the ImageIO reader can, it decodes a file straight into such an image too.
  *
  * @author Mark Utting
  */
 class Picture {
+
+    /**
+     * The colour model of TYPE_INT_RGB images: 0x00RRGGBB.
+     */
+    private static final DirectColorModel RGB = new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF);
+
     private int width;
     private int height;
     private int[] pixels;    // Task 2.2 Go primitive in your arrays!
+    private BufferedImage image;
 
     public Picture(String filename) {
+        if (RawImage.supports(filename)) {
+            final RawImage raw;
+            try {
+                raw = RawImage.read(filename);
+            } catch (IOException ex) {
+                throw new RuntimeException("Could not open file: " + filename + ": " + ex.getMessage());
+            }
+            wrap(raw.pixels, raw.width, raw.height);
+            return;
+        }
         BufferedImage image;
         try {
-            image = ImageIO.read(new File(filename));
+            image = readImage(new File(filename));
         } catch (IOException ex) {
             throw new RuntimeException("Could not open file: " + filename + ": " + ex.getMessage());
         }
         if (image == null) {
             throw new RuntimeException("Invalid image file: " + filename);
         }
-        width = image.getWidth();
-        height = image.getHeight();
-        pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        final int[] data = rgbData(image);
+        if (data != null) {
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.pixels = data;
+            this.image = image;
+        } else {
+            // the reader could not decode to TYPE_INT_RGB, so convert all the pixels in one call.
+            wrap(new int[image.getWidth() * image.getHeight()], image.getWidth(), image.getHeight());
+            image.getRGB(0, 0, width, height, pixels, 0, width);
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] &= 0xFFFFFF;
+            }
+        }
     }
 
     public Picture(int w, int h) {
-        width = w;
-        height = h;
-        pixels = new int[width * height]; // Task 2.2 Go primitive in your arrays!
+        wrap(new int[w * h], w, h); // Task 2.2 Go primitive in your arrays!
 
         // Task 2.4 Find the bottlenecks!
         // The constructor of Picture class is the most heavily used complied method (via -Xprof)
         // Time is wasted at unnecessary initializing 2-D arrays
     }
 
+    /**
+     * Makes the given pixels the data of a new TYPE_INT_RGB image.
+     */
+    private void wrap(int[] pixels, int w, int h) {
+        width = w;
+        height = h;
+        this.pixels = pixels;
+        final DataBufferInt buffer = new DataBufferInt(pixels, pixels.length);
+        image = new BufferedImage(RGB, Raster.createPackedRaster(buffer, w, h, w, RGB.getMasks(), null), false, null);
+    }
+
+    /**
+     * Decodes an image file, asking the reader for a TYPE_INT_RGB image if it can produce one.
+     *
+     * @return the image, or null if no reader understands the file.
+     */
+    private static BufferedImage readImage(File file) throws IOException {
+        if (!file.canRead()) {
+            throw new IIOException("Can't read input file!");
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            final Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            final ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                final ImageReadParam param = reader.getDefaultReadParam();
+                for (Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0); types.hasNext(); ) {
+                    final ImageTypeSpecifier type = types.next();
+                    if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                        param.setDestinationType(type);
+                        break;
+                    }
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the pixel array of a TYPE_INT_RGB image that uses all of its array, one row after another,
+     *         or null if the image is stored in any other way.
+     */
+    private static int[] rgbData(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB
+                || !(image.getSampleModel() instanceof SinglePixelPackedSampleModel)
+                || image.getRaster().getParent() != null) {
+            return null;
+        }
+        final DataBuffer buffer = image.getRaster().getDataBuffer();
+        final SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) image.getSampleModel();
+        if (buffer.getNumBanks() != 1 || buffer.getOffset() != 0 || model.getScanlineStride() != image.getWidth()
+                || buffer.getSize() != image.getWidth() * image.getHeight()) {
+            return null;
+        }
+        return ((DataBufferInt) buffer).getData();
+    }
+
     public int width() {
         return width;
     }
@@ -64,19 +169,9 @@ class Picture {
         pixels[x + y * width] = newPixel;
     }
 
-    private BufferedImage getImage() {
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                image.setRGB(x, y, get(x, y));
-            }
-        }
-        return image;
-    }
-
     public void show(String name) {
         JFrame frame = new JFrame();
-        ImageIcon icon = new ImageIcon(getImage());
+        ImageIcon icon = new ImageIcon(image);
         frame.setContentPane(new JLabel(icon));
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         frame.setTitle(name);
@@ -86,10 +181,13 @@ class Picture {
     }
 
     public void save(String newName) throws IOException {
-        BufferedImage image = getImage();
+        if (RawImage.supports(newName)) {
+            RawImage.write(pixels, width, height, newName);
+            return;
+        }
         final int dot = newName.lastIndexOf('.');
         final String extn = newName.substring(dot + 1);
         final File outFile = new File(newName);
         ImageIO.write(image, extn, outFile);
     }
-}
\ No newline at end of file
+}
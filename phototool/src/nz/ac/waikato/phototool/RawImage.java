@@ -0,0 +1,258 @@
+package nz.ac.waikato.phototool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads and writes uncompressed image files directly, without ImageIO or a BufferedImage.
+ * <p>
+ * The file is memory-mapped, and its bytes are packed straight into (or out of) the pixel array.
+ * The format is chosen by the file extension:
+ * <ul>
+ * <li><code>.ppm</code> is a binary PPM (P6) file;</li>
+ * <li><code>.pam</code> is a PAM (P7) file, with a depth of 1 (grayscale), 3 (RGB) or 4 (RGB plus
+ * an alpha channel, which is ignored);</li>
+ * <li><code>.rgb</code> is just the red, green and blue bytes of each pixel.  There is no header,
+ * so the file name must include the size, like <code>photo_640x480.rgb</code>.</li>
+ * </ul>
+ * Samples with a maximum value other than 255 (up to 65535) are scaled to 0..255.
+ * The pixels are packed like those of a <code>TYPE_INT_RGB</code> image (0x00RRGGBB),
+ * so <code>Picture</code> can use the array as it is.
+ */
+final class RawImage {
+
+    private static final Pattern SIZE = Pattern.compile("(\\d+)x(\\d+)");
+
+    final int width;
+    final int height;
+    final int[] pixels;
+
+    private RawImage(int width, int height, int[] pixels) {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return true if the extension of this file name is one of the raw formats.
+     */
+    static boolean supports(String filename) {
+        final String extn = extension(filename);
+        return extn.equals("ppm") || extn.equals("pam") || extn.equals("rgb");
+    }
+
+    /**
+     * @param filename a file name that may include a size, like <code>photo_640x480.rgb</code>.
+     * @return the name with its (last) size changed to the given one, or the same name if it has no size.
+     */
+    static String resized(String filename, int width, int height) {
+        final Matcher matcher = SIZE.matcher(filename);
+        int start = -1;
+        int end = -1;
+        while (matcher.find()) {
+            start = matcher.start();
+            end = matcher.end();
+        }
+        return start < 0 ? filename : filename.substring(0, start) + width + "x" + height + filename.substring(end);
+    }
+
+    /**
+     * Reads a <code>.ppm</code>, <code>.pam</code> or <code>.rgb</code> file.
+     */
+    static RawImage read(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("image is too large to map: " + filename);
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final int[] header = extension(filename).equals("rgb") ? rawHeader(filename) : parseHeader(buffer, filename);
+            final int width = header[0];
+            final int height = header[1];
+            final int depth = header[2];
+            final int maxValue = header[3];
+            if (width < 1 || height < 1 || (long) width * height > Integer.MAX_VALUE
+                    || maxValue < 1 || maxValue > 65535 || (depth != 1 && depth != 3 && depth != 4)) {
+                throw new IOException("unsupported image: " + width + "x" + height + ", depth " + depth
+                        + ", maximum value " + maxValue + ": " + filename);
+            }
+            final int sampleBytes = maxValue > 255 ? 2 : 1;
+            if (buffer.remaining() < (long) width * height * depth * sampleBytes) {
+                throw new IOException("image data is truncated: " + filename);
+            }
+            final int[] pixels = new int[width * height];
+            final byte[] row = new byte[width * depth * sampleBytes];
+            final int[] scale = new int[maxValue + 1];
+            for (int value = 0; value <= maxValue; value++) {
+                scale[value] = (value * 255 + maxValue / 2) / maxValue;
+            }
+            for (int y = 0; y < height; y++) {
+                buffer.get(row);
+                final int offset = y * width;
+                if (maxValue == 255 && depth == 3) {
+                    for (int x = 0; x < width; x++) {
+                        pixels[offset + x] = ((row[3 * x] & 0xFF) << 16) | ((row[3 * x + 1] & 0xFF) << 8)
+                                | (row[3 * x + 2] & 0xFF);
+                    }
+                } else {
+                    for (int x = 0; x < width; x++) {
+                        final int sample = x * depth;
+                        final int red = scale[sample(row, sample, sampleBytes, maxValue)];
+                        final int green = depth == 1 ? red : scale[sample(row, sample + 1, sampleBytes, maxValue)];
+                        final int blue = depth == 1 ? red : scale[sample(row, sample + 2, sampleBytes, maxValue)];
+                        pixels[offset + x] = (red << 16) | (green << 8) | blue;
+                    }
+                }
+            }
+            return new RawImage(width, height, pixels);
+        }
+    }
+
+    /**
+     * Writes a <code>.ppm</code>, <code>.pam</code> or <code>.rgb</code> file, with one byte per sample.
+     *
+     * @throws IOException if the file cannot be written, or an <code>.rgb</code> name does not give this size.
+     */
+    static void write(int[] pixels, int width, int height, String newName) throws IOException {
+        final String extn = extension(newName);
+        final String header;
+        if (extn.equals("ppm")) {
+            header = "P6\n" + width + " " + height + "\n255\n";
+        } else if (extn.equals("pam")) {
+            header = "P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH 3\nMAXVAL 255\nTUPLTYPE RGB\nENDHDR\n";
+        } else {
+            final int[] named = rawHeader(newName);
+            if (named[0] != width || named[1] != height) {
+                throw new IOException("cannot write a " + width + "x" + height + " image to " + newName);
+            }
+            header = "";
+        }
+        final byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+        final long size = headerBytes.length + 3L * width * height;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("image is too large to map: " + newName);
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(newName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.put(headerBytes);
+            final byte[] row = new byte[3 * width];
+            for (int y = 0; y < height; y++) {
+                final int offset = y * width;
+                for (int x = 0; x < width; x++) {
+                    final int rgb = pixels[offset + x];
+                    row[3 * x] = (byte) (rgb >> 16);
+                    row[3 * x + 1] = (byte) (rgb >> 8);
+                    row[3 * x + 2] = (byte) rgb;
+                }
+                buffer.put(row);
+            }
+        }
+    }
+
+    private static String extension(String filename) {
+        final int dot = filename.lastIndexOf('.');
+        return dot < 0 ? "" : filename.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static int sample(byte[] row, int sample, int sampleBytes, int maxValue) {
+        final int value = sampleBytes == 1 ? row[sample] & 0xFF
+                : ((row[2 * sample] & 0xFF) << 8) | (row[2 * sample + 1] & 0xFF);
+        return Math.min(value, maxValue);
+    }
+
+    /**
+     * @return width, height, depth and maximum value of an <code>.rgb</code> file, from the last size in its name.
+     */
+    private static int[] rawHeader(String filename) throws IOException {
+        final Matcher matcher = SIZE.matcher(Paths.get(filename).getFileName().toString());
+        int[] header = null;
+        while (matcher.find()) {
+            try {
+                header = new int[] {Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), 3, 255};
+            } catch (NumberFormatException ex) {
+                throw new IOException("invalid size in " + filename);
+            }
+        }
+        if (header == null) {
+            throw new IOException("raw RGB file names must include the size, like photo_640x480.rgb, not " + filename);
+        }
+        return header;
+    }
+
+    /**
+     * Reads a PPM (P6) or PAM (P7) header, leaving the buffer at the first sample.
+     *
+     * @return width, height, depth and maximum value.
+     */
+    private static int[] parseHeader(ByteBuffer buffer, String filename) throws IOException {
+        final String magic = token(buffer, filename);
+        final int[] header = new int[4];
+        if (magic.equals("P6")) {
+            header[0] = number(token(buffer, filename), filename);
+            header[1] = number(token(buffer, filename), filename);
+            header[2] = 3;
+            header[3] = number(token(buffer, filename), filename);
+        } else if (magic.equals("P7")) {
+            for (String field = token(buffer, filename); !field.equals("ENDHDR"); field = token(buffer, filename)) {
+                if (field.equals("WIDTH")) {
+                    header[0] = number(token(buffer, filename), filename);
+                } else if (field.equals("HEIGHT")) {
+                    header[1] = number(token(buffer, filename), filename);
+                } else if (field.equals("DEPTH")) {
+                    header[2] = number(token(buffer, filename), filename);
+                } else if (field.equals("MAXVAL")) {
+                    header[3] = number(token(buffer, filename), filename);
+                } else if (field.equals("TUPLTYPE")) {
+                    token(buffer, filename);
+                } else {
+                    throw new IOException("unknown PAM header field " + field + ": " + filename);
+                }
+            }
+        } else {
+            throw new IOException("not a binary PPM or PAM file: " + filename);
+        }
+        // exactly one whitespace character separates the header from the samples.
+        buffer.get();
+        return header;
+    }
+
+    /**
+     * @return the next token of a header, skipping whitespace and comments.
+     */
+    private static String token(ByteBuffer buffer, String filename) throws IOException {
+        final StringBuilder token = new StringBuilder();
+        while (buffer.hasRemaining()) {
+            final char ch = (char) (buffer.get(buffer.position()) & 0xFF);
+            if (ch == '#' && token.length() == 0) {
+                while (buffer.hasRemaining() && buffer.get() != '\n') {
+                    // skip the rest of the comment
+                }
+            } else if (Character.isWhitespace(ch)) {
+                if (token.length() > 0) {
+                    return token.toString();
+                }
+                buffer.get();
+            } else {
+                token.append(ch);
+                buffer.get();
+            }
+        }
+        throw new IOException("image header is truncated: " + filename);
+    }
+
+    private static int number(String token, String filename) throws IOException {
+        try {
+            return Integer.parseInt(token);
+        } catch (NumberFormatException ex) {
+            throw new IOException("expected a number in the image header, not " + token + ": " + filename);
+        }
+    }
+}
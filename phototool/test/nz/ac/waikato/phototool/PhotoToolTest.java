@@ -1,11 +1,25 @@
 package nz.ac.waikato.phototool;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class PhotoToolTest {
 
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
 	@Test
 	public void testStack() {
 		PhotoTool tool = new PhotoTool("Eiffel.jpg");
@@ -33,4 +47,77 @@ public class PhotoToolTest {
 		assertEquals(1, tool.getStackSize());
 	}
 
+	@Test
+	public void testRawImage() throws IOException {
+		File dir = tmp.newFolder("raw");
+		Picture pic = new Picture(6, 4);
+		for (int y = 0; y < 4; y++) {
+			for (int x = 0; x < 6; x++) {
+				pic.set(x, y, (x * 40) << 16 | (y * 60) << 8 | (x + y));
+			}
+		}
+		for (String name : new String[] {"photo.ppm", "photo.pam", "photo_6x4.rgb"}) {
+			File file = new File(dir, name);
+			pic.save(file.getPath());
+			PhotoTool tool = new PhotoTool(file.getPath());
+			assertEquals(6, tool.getWidth());
+			assertEquals(4, tool.getHeight());
+			for (int y = 0; y < 4; y++) {
+				for (int x = 0; x < 6; x++) {
+					assertEquals(name, pic.get(x, y), tool.getCurrentPhoto().get(x, y));
+				}
+			}
+			tool.half();
+			tool.save();
+		}
+		assertEquals(3 * 3 * 2, new File(dir, "photo_3x2_edited.rgb").length());
+		Picture half = new Picture(new File(dir, "photo_edited.pam").getPath());
+		assertEquals(3, half.width());
+		assertEquals(pic.get(4, 2), half.get(2, 1));
+	}
+
+	@Test
+	public void testCommandPipeline() throws Exception {
+		File dir = tmp.newFolder("pipeline");
+		Picture pic = new Picture(13, 9);
+		for (int y = 0; y < 9; y++) {
+			for (int x = 0; x < 13; x++) {
+				pic.set(x, y, (x * 19 + y * 7) << 16 | (x * y * 5 & 0xFF) << 8 | (255 - x * 11));
+			}
+		}
+		String photo = new File(dir, "photo.ppm").getPath();
+		String edited = new File(dir, "photo_edited.ppm").getPath();
+		pic.save(photo);
+		String[][] tests = {
+				{"grayscale", "sepia", "half", "save"},
+				{"half", "sepia", "half", "grayscale", "save"},
+				{"sepia", "save", "half", "undo", "grayscale", "undo", "undo", "undo", "half"},
+				{"grayscale", "getWidth", "half", "sepia", "undo", "save", "undo", "sepia"},
+		};
+		for (String[] cmds : tests) {
+			List<Method> methods = new ArrayList<>();
+			for (String cmd : cmds) {
+				methods.add(PhotoTool.class.getMethod(cmd));
+			}
+			// run the commands one at a time, then compiled into a pipeline.
+			PhotoTool expected = new PhotoTool(photo);
+			for (Method method : methods) {
+				method.invoke(expected);
+			}
+			byte[] expectedFile = Files.readAllBytes(new File(edited).toPath());
+			new File(edited).delete();
+			PhotoTool actual = new PhotoTool(photo);
+			new CommandPipeline(methods).run(actual);
+			String name = Arrays.toString(cmds);
+			assertArrayEquals(name, expectedFile, Files.readAllBytes(new File(edited).toPath()));
+			assertEquals(name, expected.getWidth(), actual.getWidth());
+			assertEquals(name, expected.getHeight(), actual.getHeight());
+			for (int y = 0; y < expected.getHeight(); y++) {
+				for (int x = 0; x < expected.getWidth(); x++) {
+					assertEquals(name, expected.getCurrentPhoto().get(x, y), actual.getCurrentPhoto().get(x, y));
+				}
+			}
+		}
+	}
+
 }